@@ -0,0 +1,196 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * A minimal benchmark harness. The benchmarks are built with a plain javac
+ * of the sources (the tree only has the Android ant build, which doesn't
+ * resolve dependencies), so we don't use JMH. Each benchmark is warmed up
+ * for a while, and then run for a fixed number of operations while
+ * recording the latency of every operation in a preallocated array, so the
+ * harness doesn't allocate memory while it is measuring.
+ *
+ * It also generates the pool documents the benchmarks use.
+ *
+ * @author Trond Norbye
+ */
+public class Benchmark {
+    /**
+     * A single benchmarked operation
+     */
+    public interface Op {
+        /**
+         * Run the operation once
+         *
+         * @return a value depending on the result of the operation (so that
+         *         the JIT can't remove the work)
+         * @throws Exception
+         *             if the operation fails (aborts the benchmark)
+         */
+        long run() throws Exception;
+    }
+
+    private final long warmupMillis;
+    private final int iterations;
+    private final long[] latencies;
+
+    /**
+     * Create a new harness
+     *
+     * @param warmupMillis
+     *            the number of milliseconds to run each operation before we
+     *            start to measure
+     * @param iterations
+     *            the number of operations to measure
+     */
+    public Benchmark(long warmupMillis, int iterations) {
+        this.warmupMillis = warmupMillis;
+        this.iterations = iterations;
+        latencies = new long[iterations];
+    }
+
+    /**
+     * Run and report a benchmark
+     *
+     * @param name
+     *            the name of the benchmark
+     * @param op
+     *            the operation to run
+     * @throws Exception
+     *             if the operation fails
+     */
+    public void run(String name, Op op) throws Exception {
+        long blackhole = 0;
+        long end = System.currentTimeMillis() + warmupMillis;
+        while (System.currentTimeMillis() < end) {
+            blackhole += op.run();
+        }
+
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int ii = 0; ii < iterations; ++ii) {
+            long opStart = System.nanoTime();
+            blackhole += op.run();
+            latencies[ii] = System.nanoTime() - opStart;
+        }
+        long total = System.nanoTime() - start;
+        allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+
+        Arrays.sort(latencies);
+        System.out.println(String.format(
+                "%-36s %10.0f ops/s  p50 %8.1f  p90 %8.1f  p99 %8.1f"
+                        + "  max %9.1f us  %s",
+                name,
+                iterations * 1e9 / total,
+                percentile(0.50) / 1e3,
+                percentile(0.90) / 1e3,
+                percentile(0.99) / 1e3,
+                latencies[iterations - 1] / 1e3,
+                allocated < 0 ? "n/a" : (allocated / iterations)
+                        + " B/op"));
+        if (blackhole == 42) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Print the header for the results
+     */
+    public static void header(String title) {
+        System.out.println();
+        System.out.println(title);
+    }
+
+    private long percentile(double p) {
+        int idx = (int) Math.ceil(p * iterations) - 1;
+        return latencies[Math.max(0, Math.min(idx, iterations - 1))];
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread (only
+     * available on HotSpot)
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            // Look the method up through the public interface; the
+            // implementation class isn't accessible on newer JVMs
+            Method m = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) m.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Generate a pool document looking like the one returned from
+     * /pools/default on a cluster with the given number of nodes
+     */
+    static byte[] generatePoolDocument(int count) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"storageTotals\":{\"ram\":{\"total\":")
+                .append(count * 8589934592L)
+                .append(",\"quotaTotal\":2147483648,\"used\":1073741824}},");
+        sb.append("\"name\":\"default\",\"alerts\":[],\"nodes\":[");
+        for (int ii = 0; ii < count; ++ii) {
+            if (ii > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"systemStats\":{\"cpu_utilization_rate\":")
+                    .append(ii % 100 + 0.25)
+                    .append(",\"swap_total\":0,\"swap_used\":0},");
+            sb.append("\"interestingStats\":{\"curr_items\":")
+                    .append(ii * 1000)
+                    .append(",\"curr_items_tot\":")
+                    .append(ii * 2000)
+                    .append(",\"vb_replica_curr_items\":")
+                    .append(ii * 1000)
+                    .append(",\"ops\":")
+                    .append(ii * 10.5)
+                    .append(",\"mem_used\":")
+                    .append(ii * 1048576L)
+                    .append("},");
+            sb.append("\"uptime\":\"").append(3600 + ii).append("\",");
+            sb.append("\"memoryTotal\":8589934592,\"memoryFree\":4294967296,");
+            sb.append("\"mcdMemoryReserved\":6553,\"mcdMemoryAllocated\":6553,");
+            sb.append("\"clusterMembership\":\"active\",");
+            sb.append("\"status\":\"")
+                    .append(ii % 17 == 16 ? "unhealthy" : "healthy")
+                    .append("\",");
+            sb.append("\"hostname\":\"10.0.").append(ii / 256).append('.')
+                    .append(ii % 256).append(":8091\",");
+            sb.append("\"clusterCompatibility\":1,");
+            sb.append("\"version\":\"1.8.0r-55-g80f24f2-enterprise\",");
+            sb.append("\"os\":\"x86_64-unknown-linux-gnu\",");
+            sb.append("\"ports\":{\"proxy\":11211,\"direct\":11210}}");
+        }
+        sb.append("],\"buckets\":{\"uri\":\"/pools/default/buckets\"},");
+        sb.append("\"controllers\":{\"rebalance\":{\"uri\":\"/controller/rebalance\"}},");
+        sb.append("\"rebalanceStatus\":\"none\",\"balanced\":true,");
+        sb.append("\"stopRebalanceUri\":\"/controller/stopRebalance\",");
+        sb.append("\"nodeStatusesUri\":\"/nodeStatuses\",");
+        sb.append("\"stats\":{\"uri\":\"/pools/default/stats\"},");
+        sb.append("\"counters\":{},\"stopRebalanceIsSafe\":true}");
+        return sb.toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Benchmarks for the poll hot path: downloading the pool document, parsing
+ * it into a snapshot and computing the state of the cluster. The documents
+ * (3, 50 and 500 nodes) are served by an in-process HTTP server, so the
+ * numbers include the HTTP stack but not the network.
+ *
+ * This is not part of the application. Run it on a desktop JVM:
+ *
+ * <pre>
+ * javac -d out core/src/org/couchbase/health/*.java \
+ *     bench/org/couchbase/health/Benchmark.java \
+ *     bench/org/couchbase/health/PollBenchmark.java
+ * java -cp out org.couchbase.health.PollBenchmark [iterations]
+ * </pre>
+ *
+ * @author Trond Norbye
+ */
+public class PollBenchmark {
+    private static final int[] SIZES = { 3, 50, 500 };
+
+    /**
+     * The documents served by the stub, by path
+     */
+    private static final Map<String, byte[]> documents = new HashMap<String, byte[]>();
+
+    /**
+     * The stub serving the documents. Paths starting with /etag/ are served
+     * with an ETag (so that conditional requests get a 304).
+     */
+    private static class Stub implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            boolean etag = path.startsWith("/etag/");
+            byte[] body = documents.get(etag ? path.substring(5) : path);
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            String tag = "\"" + body.length + "\"";
+            if (etag) {
+                exchange.getResponseHeaders().set("ETag", tag);
+                if (tag.equals(exchange.getRequestHeaders().getFirst(
+                        "If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+            String encoding = exchange.getRequestHeaders().getFirst(
+                    "Accept-Encoding");
+            if (encoding != null && encoding.contains("gzip")) {
+                body = gzip(body);
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().set("Content-Type",
+                    "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Benchmark bench = new Benchmark(2000, iterations);
+
+        for (int nodes : SIZES) {
+            documents.put("/pools/n" + nodes,
+                    Benchmark.generatePoolDocument(nodes));
+        }
+
+        // The stub writes the headers and the body separately; without
+        // TCP_NODELAY every response waits for the delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                "127.0.0.1", 0), 0);
+        server.createContext("/", new Stub());
+        server.start();
+        String base = "127.0.0.1:" + server.getAddress().getPort();
+
+        try {
+            Benchmark.header("WebSpider.download (gzip, keep-alive)");
+            final WebSpider spider = new WebSpider();
+            for (int nodes : SIZES) {
+                final URL url = new URL("http://" + base + "/pools/n" + nodes);
+                bench.run("download " + nodes + " nodes", new Benchmark.Op() {
+                    public long run() throws Exception {
+                        return spider.download(url).length();
+                    }
+                });
+            }
+            final URL etagUrl = new URL("http://" + base + "/etag/pools/n500");
+            final WebSpider.BodyHandler<String> discard = new WebSpider.BodyHandler<String>() {
+                public String handle(InputStream body) throws IOException {
+                    return "";
+                }
+            };
+            spider.download(etagUrl, true, discard);
+            bench.run("download 500 nodes (304)", new Benchmark.Op() {
+                public long run() throws Exception {
+                    return spider.download(etagUrl, true, discard) == null ? 0
+                            : 1;
+                }
+            });
+
+            Benchmark.header("PoolHealthReader.getSnapshot");
+            for (int nodes : SIZES) {
+                final PoolHealthReader reader = newReader(base, "/pools/n"
+                        + nodes);
+                bench.run("getSnapshot " + nodes + " nodes",
+                        new Benchmark.Op() {
+                            public long run() throws Exception {
+                                return reader.getSnapshot().size();
+                            }
+                        });
+            }
+            final PoolHealthReader cached = newReader(base, "/etag/pools/n500");
+            bench.run("getSnapshot 500 nodes (304)", new Benchmark.Op() {
+                public long run() throws Exception {
+                    return cached.getSnapshot().size();
+                }
+            });
+
+            Benchmark.header("PoolDocumentParser.parseSnapshot (in memory)");
+            for (int nodes : SIZES) {
+                final byte[] document = documents.get("/pools/n" + nodes);
+                bench.run("parse " + nodes + " nodes", new Benchmark.Op() {
+                    public long run() throws Exception {
+                        return parse(document).size();
+                    }
+                });
+            }
+
+            Benchmark.header("State evaluation (rules and diff)");
+            final RuleEngine rules = RuleEngine.compile(new StringReader(
+                    "BAD unhealthy_nodes >= 50%\n"
+                            + "DEGRADED unhealthy_nodes >= 1\n"
+                            + "DEGRADED inactive_nodes >= 1\n"
+                            + "DEGRADED bucket_ops_ratio < 20 for 2\n"));
+            for (int nodes : SIZES) {
+                final ClusterSnapshot snapshot = parse(documents
+                        .get("/pools/n" + nodes));
+                final RuleEngine.Evaluation evaluation = rules
+                        .newEvaluation();
+                bench.run("rules " + nodes + " nodes", new Benchmark.Op() {
+                    public long run() throws Exception {
+                        return rules.evaluate(snapshot, null, evaluation)
+                                .ordinal();
+                    }
+                });
+
+                final ClusterSnapshot[] snapshots = { snapshot,
+                        parse(documents.get("/pools/n" + nodes)) };
+                final SnapshotDiffer differ = new SnapshotDiffer(
+                        NodeChange.STATUS | NodeChange.MEMBERSHIP
+                                | NodeChange.RESTARTED);
+                bench.run("diff " + nodes + " nodes", new Benchmark.Op() {
+                    int next;
+
+                    public long run() throws Exception {
+                        List<NodeChange> changes = differ
+                                .diff(snapshots[next++ & 1]);
+                        return changes.size();
+                    }
+                });
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static PoolHealthReader newReader(String seed, String poolUri) {
+        PoolHealthReader reader = new PoolHealthReader("127.0.0.1", 1,
+                "default");
+        reader.restore(Arrays.asList(seed), poolUri, poolUri);
+        return reader;
+    }
+
+    private static ClusterSnapshot parse(byte[] document) throws IOException {
+        JsonPullParser parser = JsonPullParser
+                .obtain(new ByteArrayInputStream(document));
+        try {
+            return PoolDocumentParser.parseSnapshot(parser);
+        } finally {
+            parser.recycle();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(out);
+        gz.write(data);
+        gz.close();
+        return out.toByteArray();
+    }
+}
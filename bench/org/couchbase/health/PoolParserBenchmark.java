@@ -0,0 +1,176 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Compare the streaming parser with the org.json DOM we used to build for
+ * every poll of /pools/default.
+ *
+ * This is not part of the application. Run it on a desktop JVM with the
+ * org.json classes on the classpath:
+ *
+ * <pre>
+ * javac -cp json.jar -d out core/src/org/couchbase/health/*.java \
+ *     bench/org/couchbase/health/Benchmark.java \
+ *     bench/org/couchbase/health/PoolParserBenchmark.java
+ * java -cp json.jar:out org.couchbase.health.PoolParserBenchmark [pool-document.json ...]
+ * </pre>
+ *
+ * Without arguments it generates pool documents with 3, 50 and 500 nodes
+ * (with the per-node stats a real server returns).
+ *
+ * @author Trond Norbye
+ */
+public class PoolParserBenchmark {
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            int[] sizes = { 3, 50, 500 };
+            for (int nodes : sizes) {
+                run(nodes + " nodes", Benchmark
+                        .generatePoolDocument(nodes));
+            }
+        } else {
+            for (String file : args) {
+                run(file, readFile(file));
+            }
+        }
+    }
+
+    private static void run(String name, byte[] document) throws Exception {
+        for (int ii = 0; ii < WARMUP; ++ii) {
+            parseDom(document);
+            parseStreaming(document);
+        }
+
+        System.out.println(name + " (" + document.length + " bytes)");
+        report("  org.json DOM", measure(document, true));
+        report("  streaming   ", measure(document, false));
+    }
+
+    private static long[] measure(byte[] document, boolean dom)
+            throws Exception {
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        int nodes = 0;
+        for (int ii = 0; ii < ITERATIONS; ++ii) {
+            if (dom) {
+                nodes += parseDom(document).length;
+            } else {
+                nodes += parseStreaming(document).size();
+            }
+        }
+        long time = System.nanoTime() - start;
+        allocated = allocatedBytes() - allocated;
+        if (nodes == 0) {
+            throw new IllegalStateException("No nodes parsed");
+        }
+        return new long[] { time / ITERATIONS, allocated / ITERATIONS };
+    }
+
+    private static void report(String name, long[] result) {
+        System.out.println(name + ": " + result[0] / 1000 + " us/op, "
+                + (result[1] < 0 ? "n/a" : (result[1] / 1024 + " KB/op")));
+    }
+
+    /**
+     * The code PoolHealthReader used before it switched to the streaming
+     * parser
+     */
+    private static State[] parseDom(byte[] document) throws IOException,
+            JSONException {
+        InputStream in = new ByteArrayInputStream(document);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] array = new byte[8192];
+        int nr;
+        while ((nr = in.read(array)) > 0) {
+            out.write(array, 0, nr);
+        }
+        String json = out.toString("UTF-8");
+
+        JSONObject root = (JSONObject) (new JSONTokener(json)).nextValue();
+        JSONArray nodes = root.getJSONArray("nodes");
+        State[] ret = new State[nodes.length()];
+        for (int ii = 0; ii < nodes.length(); ++ii) {
+            JSONObject obj = nodes.optJSONObject(ii);
+            String status = obj.getString("status");
+            if (status.equalsIgnoreCase("healthy")) {
+                ret[ii] = State.GOOD;
+            } else {
+                ret[ii] = State.BAD;
+            }
+        }
+        return ret;
+    }
+
+    private static ClusterSnapshot parseStreaming(byte[] document)
+            throws IOException {
+        JsonPullParser parser = JsonPullParser
+                .obtain(new ByteArrayInputStream(document));
+        try {
+            return PoolDocumentParser.parseSnapshot(parser);
+        } finally {
+            parser.recycle();
+        }
+    }
+
+    /**
+     * Get the number of bytes allocated by the current thread (only
+     * available on HotSpot)
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method m = bean.getClass().getMethod("getThreadAllocatedBytes",
+                    long.class);
+            m.setAccessible(true);
+            return (Long) m.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static byte[] readFile(String name) throws IOException {
+        FileInputStream in = new FileInputStream(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] array = new byte[8192];
+            int nr;
+            while ((nr = in.read(array)) > 0) {
+                out.write(array, 0, nr);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
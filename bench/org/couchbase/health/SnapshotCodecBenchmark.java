@@ -0,0 +1,140 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+/**
+ * Compare the SnapshotCodec with the JSON documents we read from the
+ * server, for size and speed. The delta frames are encoded from a snapshot
+ * of the same cluster one poll later (the uptime, the ops and the free
+ * memory of every node changed).
+ *
+ * This is not part of the application. Run it on a desktop JVM:
+ *
+ * <pre>
+ * javac -d out core/src/org/couchbase/health/*.java \
+ *     bench/org/couchbase/health/Benchmark.java \
+ *     bench/org/couchbase/health/SnapshotCodecBenchmark.java
+ * java -cp out org.couchbase.health.SnapshotCodecBenchmark [iterations]
+ * </pre>
+ *
+ * @author Trond Norbye
+ */
+public class SnapshotCodecBenchmark {
+    private static final int[] SIZES = { 3, 50, 500 };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Benchmark bench = new Benchmark(2000, iterations);
+
+        Benchmark.header("Size (bytes)");
+        System.out.println(String.format("%-12s %10s %10s %10s %10s",
+                "nodes", "json", "keyframe", "delta", "unchanged"));
+        for (int nodes : SIZES) {
+            byte[] document = Benchmark.generatePoolDocument(nodes);
+            ClusterSnapshot first = parse(document);
+            SnapshotCodec.Encoder encoder = new SnapshotCodec.Encoder();
+            int keyframe = encoder.encode(first, State.GOOD);
+            int delta = encoder.encode(nextPoll(first), State.GOOD);
+            encoder.encode(first, State.GOOD, true);
+            int unchanged = encoder.encode(first, State.GOOD);
+            System.out.println(String.format("%-12d %10d %10d %10d %10d",
+                    nodes, document.length, keyframe, delta, unchanged));
+        }
+
+        for (int nodes : SIZES) {
+            final byte[] document = Benchmark.generatePoolDocument(nodes);
+            final ClusterSnapshot first = parse(document);
+            final ClusterSnapshot second = nextPoll(first);
+
+            SnapshotCodec.Encoder encoder = new SnapshotCodec.Encoder();
+            encoder.encode(first, State.GOOD);
+            final byte[] keyframe = encoder.toByteArray();
+            encoder.encode(second, State.GOOD);
+            final byte[] delta = encoder.toByteArray();
+
+            Benchmark.header(nodes + " nodes");
+            bench.run("parse json", new Benchmark.Op() {
+                public long run() throws Exception {
+                    return parse(document).size();
+                }
+            });
+
+            final SnapshotCodec.Encoder keyframes = new SnapshotCodec.Encoder();
+            bench.run("encode keyframe", new Benchmark.Op() {
+                public long run() throws Exception {
+                    return keyframes.encode(first, State.GOOD, true);
+                }
+            });
+
+            final SnapshotCodec.Encoder deltas = new SnapshotCodec.Encoder();
+            final ClusterSnapshot[] polls = { first, second };
+            bench.run("encode (1 keyframe in "
+                    + SnapshotCodec.KEYFRAME_INTERVAL + ")",
+                    new Benchmark.Op() {
+                        int next;
+
+                        public long run() throws Exception {
+                            next ^= 1;
+                            return deltas.encode(polls[next], State.GOOD);
+                        }
+                    });
+
+            final SnapshotCodec.Decoder decoder = new SnapshotCodec.Decoder();
+            bench.run("decode keyframe", new Benchmark.Op() {
+                public long run() throws Exception {
+                    return decoder.decode(keyframe).size();
+                }
+            });
+            bench.run("decode keyframe + delta", new Benchmark.Op() {
+                public long run() throws Exception {
+                    decoder.decode(keyframe);
+                    return decoder.decode(delta).size();
+                }
+            });
+        }
+    }
+
+    private static ClusterSnapshot parse(byte[] document) throws IOException {
+        JsonPullParser parser = JsonPullParser
+                .obtain(new ByteArrayInputStream(document));
+        try {
+            return PoolDocumentParser.parseSnapshot(parser);
+        } finally {
+            parser.recycle();
+        }
+    }
+
+    /**
+     * Create the snapshot we would get from the next poll of the cluster
+     */
+    private static ClusterSnapshot nextPoll(ClusterSnapshot snapshot) {
+        LinkedHashMap<String, NodeHealth> nodes = new LinkedHashMap<String, NodeHealth>();
+        int ii = 0;
+        for (NodeHealth node : snapshot.getNodes()) {
+            nodes.put(node.getHostname(), new NodeHealth(node.getHostname(),
+                    node.getStatus(), node.getClusterMembership(), node
+                            .getUptime() + 5, node.getMemoryTotal(), node
+                            .getMemoryFree() - 4096 * ii, node.getOps()
+                            + ii % 7));
+            ++ii;
+        }
+        return new ClusterSnapshot(snapshot.getTimestamp() + 5000, nodes);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.Random;
+
+/**
+ * A PollPolicy adapting the poll interval to the state of the cluster:
+ * 
+ * <ul>
+ * <li>When we fail to talk to the cluster (NETWORK_ERROR) we back off
+ * exponentially (with jitter) from the configured interval to avoid
+ * hammering a dead node.</li>
+ * <li>When the cluster is DEGRADED or BAD we poll at a much shorter interval
+ * so that we may confirm or clear the problem quickly.</li>
+ * <li>While the cluster is REBALANCING we poll at half the interval to follow
+ * the progress.</li>
+ * <li>When the cluster turns GOOD we relax the interval gradually (up to half
+ * the interval), and use the configured interval once it has been GOOD for
+ * the stable period. A cluster that is GOOD from the start is polled at the
+ * configured interval right away.</li>
+ * </ul>
+ * 
+ * @author Trond Norbye
+ */
+public class AdaptivePollPolicy implements PollPolicy {
+    /**
+     * The shortest interval we'll ever use
+     */
+    public static final long MIN_INTERVAL = 5000;
+
+    /**
+     * The maximum jitter added to each interval (as a fraction of the
+     * interval)
+     */
+    private static final double JITTER = 0.1;
+
+    private final long interval;
+    private final long fastInterval;
+    private final long maxBackoff;
+    private final long stablePeriod;
+    private final Clock clock;
+    private final Random random;
+
+    /**
+     * The number of NETWORK_ERRORs in a row
+     */
+    private int failures;
+
+    /**
+     * The time the cluster turned GOOD (or -1 if it isn't GOOD)
+     */
+    private long goodSince = -1;
+
+    /**
+     * Set when the cluster leaves the GOOD state (or never reached it), and
+     * cleared once it has been GOOD for the stable period
+     */
+    private boolean recovering;
+
+    /**
+     * The last delay we returned (without the jitter)
+     */
+    private long delay;
+
+    /**
+     * Create a new AdaptivePollPolicy using the system clock, with a fast
+     * interval of a tenth of the interval, backing off to at most four times
+     * the interval and considering the cluster stable after being GOOD for
+     * one interval.
+     * 
+     * @param interval
+     *            the configured poll interval (in ms)
+     */
+    public AdaptivePollPolicy(long interval) {
+        this(interval, interval / 10, interval * 4, interval, Clock.SYSTEM,
+                new Random());
+    }
+
+    /**
+     * Create a new AdaptivePollPolicy
+     * 
+     * @param interval
+     *            the configured poll interval (in ms)
+     * @param fastInterval
+     *            the interval to use while the cluster is DEGRADED or BAD
+     * @param maxBackoff
+     *            the longest interval to use while we're backing off
+     * @param stablePeriod
+     *            the number of ms the cluster must be GOOD before we're back
+     *            at the configured interval
+     * @param clock
+     *            the clock to use
+     * @param random
+     *            the source of the jitter
+     */
+    public AdaptivePollPolicy(long interval, long fastInterval,
+            long maxBackoff, long stablePeriod, Clock clock, Random random) {
+        this.interval = interval;
+        this.fastInterval = Math.min(interval, Math.max(MIN_INTERVAL,
+                fastInterval));
+        this.maxBackoff = Math.max(interval, maxBackoff);
+        this.stablePeriod = stablePeriod;
+        this.clock = clock;
+        this.random = random;
+        delay = interval;
+    }
+
+    public synchronized long nextDelay(State state) {
+        switch (state) {
+        case NETWORK_ERROR:
+            goodSince = -1;
+            recovering = true;
+            ++failures;
+            delay = Math.min(maxBackoff, interval << Math.min(failures - 1, 20));
+            break;
+        case GOOD:
+            failures = 0;
+            long now = clock.currentTimeMillis();
+            if (goodSince == -1) {
+                goodSince = now;
+            }
+            if (!recovering || now - goodSince >= stablePeriod) {
+                recovering = false;
+                delay = interval;
+            } else {
+                // Relax gradually so that we'll notice if it flaps
+                delay = Math.max(fastInterval, Math.min(interval / 2,
+                        delay * 2));
+            }
+            break;
+        case REBALANCING:
+            // Poll often enough to follow the progress, but a rebalance may
+            // run for hours
+            failures = 0;
+            goodSince = -1;
+            recovering = true;
+            delay = Math.max(fastInterval, interval / 2);
+            break;
+        case UNINITIALISED:
+            delay = interval;
+            break;
+        default:
+            // DEGRADED or BAD: confirm / clear the problem quickly
+            failures = 0;
+            goodSince = -1;
+            recovering = true;
+            delay = fastInterval;
+        }
+        return jitter(delay);
+    }
+
+    public synchronized long currentDelay() {
+        return jitter(delay);
+    }
+
+    private long jitter(long value) {
+        long spread = (long) (value * JITTER);
+        return value - spread + (long) (2 * spread * random.nextDouble());
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The AlertPipeline sits between the state changes and the notifications
+ * shown to the user, so that a flapping node doesn't produce a storm of
+ * notifications.
+ * 
+ * <ul>
+ * <li>All of the alerts submitted within a window are coalesced into a single
+ * batch.</li>
+ * <li>Alerts are deduplicated per key (cluster or node): only the last state
+ * of a key within the window is kept, and it is dropped if it is the same
+ * state we last told the user about.</li>
+ * <li>The batches are rate limited by a token bucket. A batch without a token
+ * is held back (and merged with the following alerts) until a token is
+ * available.</li>
+ * </ul>
+ * 
+ * The pipeline isn't thread safe, and is driven by the caller: submit()
+ * tells if a new window was opened, and the caller must then call flush()
+ * when the window has elapsed.
+ * 
+ * @author Trond Norbye
+ */
+public class AlertPipeline {
+    /**
+     * A single alert
+     */
+    public static class Alert {
+        private final String key;
+        private final State state;
+        private final String message;
+        private final long timestamp;
+        private int transitions = 1;
+
+        Alert(String key, State state, String message, long timestamp) {
+            this.key = key;
+            this.state = state;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return the key identifying what the alert is about (the cluster
+         *         or node)
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the number of transitions coalesced into this alert
+         */
+        public int getTransitions() {
+            return transitions;
+        }
+
+        @Override
+        public String toString() {
+            if (transitions > 1) {
+                return message + " (flapped " + transitions + " times)";
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Where the batches are delivered
+     */
+    public interface Sink {
+        /**
+         * Deliver a batch of alerts to the user
+         * 
+         * @param batch
+         *            the alerts (in the order they were submitted)
+         */
+        void deliver(List<Alert> batch);
+    }
+
+    private final long window;
+    private final int burst;
+    private final long refillInterval;
+    private final Clock clock;
+    private final Sink sink;
+
+    /**
+     * The alerts in the current window
+     */
+    private final Map<String, Alert> pending = new LinkedHashMap<String, Alert>();
+
+    /**
+     * The state we last told the user about for each key
+     */
+    private final Map<String, State> delivered = new HashMap<String, State>();
+
+    private boolean open;
+    private double tokens;
+    private long lastRefill;
+
+    private long submittedCount;
+    private long coalescedCount;
+    private long suppressedCount;
+    private long deliveredCount;
+    private long batchCount;
+    private long rateLimitedCount;
+
+    /**
+     * Create a new AlertPipeline
+     * 
+     * @param window
+     *            the number of milliseconds to collect alerts before they are
+     *            delivered
+     * @param burst
+     *            the number of batches we may deliver in a row
+     * @param refillInterval
+     *            the number of milliseconds before we may deliver another
+     *            batch once the burst is used
+     * @param clock
+     *            the source of the current time
+     * @param sink
+     *            where to deliver the batches
+     */
+    public AlertPipeline(long window, int burst, long refillInterval,
+            Clock clock, Sink sink) {
+        this.window = window;
+        this.burst = burst;
+        this.refillInterval = refillInterval;
+        this.clock = clock;
+        this.sink = sink;
+        tokens = burst;
+        lastRefill = clock.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of milliseconds to collect alerts
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Submit an alert
+     * 
+     * @param key
+     *            the key identifying what the alert is about
+     * @param state
+     *            the new state
+     * @param message
+     *            the message to show the user
+     * @return true if this opened a new window (and the caller must call
+     *         flush() after getWindow() milliseconds)
+     */
+    public boolean submit(String key, State state, String message) {
+        ++submittedCount;
+        Alert alert = new Alert(key, state, message, clock.currentTimeMillis());
+        Alert prev = pending.remove(key);
+        if (prev != null) {
+            ++coalescedCount;
+            alert.transitions += prev.transitions;
+        }
+        pending.put(key, alert);
+
+        if (open) {
+            return false;
+        }
+        open = true;
+        return true;
+    }
+
+    /**
+     * Deliver the alerts collected in the window
+     * 
+     * @return -1 if the window is closed, or the number of milliseconds
+     *         until flush() must be called again (the batch was held back
+     *         by the rate limit)
+     */
+    public long flush() {
+        if (!open) {
+            return -1;
+        }
+
+        // Drop the alerts that wouldn't tell the user anything new
+        for (Iterator<Alert> iter = pending.values().iterator(); iter
+                .hasNext();) {
+            Alert alert = iter.next();
+            State last = delivered.get(alert.key);
+            if (alert.state == (last == null ? State.GOOD : last)) {
+                ++suppressedCount;
+                iter.remove();
+            }
+        }
+        if (pending.isEmpty()) {
+            open = false;
+            return -1;
+        }
+
+        refill();
+        if (tokens < 1) {
+            ++rateLimitedCount;
+            return (long) Math.ceil((1 - tokens) * refillInterval);
+        }
+        tokens -= 1;
+
+        List<Alert> batch = new ArrayList<Alert>(pending.values());
+        pending.clear();
+        open = false;
+        for (Alert alert : batch) {
+            delivered.put(alert.key, alert.state);
+        }
+        deliveredCount += batch.size();
+        ++batchCount;
+        sink.deliver(batch);
+        return -1;
+    }
+
+    /**
+     * Forget about a key (so that the next alert for it is delivered even
+     * if it has the same state as the last one delivered)
+     * 
+     * @param key
+     *            the key
+     */
+    public void reset(String key) {
+        delivered.remove(key);
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * @return the number of alerts replaced by a later alert for the same
+     *         key in the same window
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return the number of alerts dropped because they didn't change the
+     *         state the user was told about
+     */
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return the number of times a batch was held back by the rate limit
+     */
+    public long getRateLimitedCount() {
+        return rateLimitedCount;
+    }
+
+    private void refill() {
+        long now = clock.currentTimeMillis();
+        tokens = Math.min(burst, tokens + (double) (now - lastRefill)
+                / refillInterval);
+        lastRefill = now;
+    }
+
+    @Override
+    public String toString() {
+        return "submitted=" + submittedCount + " coalesced=" + coalescedCount
+                + " suppressed=" + suppressedCount + " delivered="
+                + deliveredCount + " batches=" + batchCount
+                + " rate-limited=" + rateLimitedCount;
+    }
+}
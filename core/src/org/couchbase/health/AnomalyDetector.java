@@ -0,0 +1,549 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Learns the normal behaviour of every node in a cluster, and flags the
+ * metrics that leave it, instead of comparing the raw numbers with fixed
+ * thresholds.
+ * 
+ * For each node and metric we keep an exponentially weighted moving
+ * average and variance (the baseline), and a P-square sketch (Jain and
+ * Chlamtac) of the 5th and 95th percentile of the samples (the band). A
+ * sample is anomalous when it is more than SIGMAS standard deviations away
+ * from the baseline <em>and</em> outside of the band, so a metric that
+ * is naturally noisy or bimodal doesn't fire. The standard deviation has
+ * a floor (a percentage of the baseline plus an absolute value per
+ * metric), so a metric that never moved doesn't fire on the first wobble.
+ * 
+ * The weight of a sample depends on the time since the previous one (like
+ * the rate in RebalanceTracker), so the baseline doesn't move faster when
+ * we poll more often because the cluster isn't healthy. Anomalous samples
+ * only move the average (with a lower weight, and clamped to the edge of
+ * the normal range) and are kept out of the band, so a short spike doesn't
+ * move the baseline or blow up the variance, but a permanent change is
+ * eventually accepted as the new normal. The sketches are restarted every
+ * WINDOW samples (keeping the band of the previous window) so the band
+ * follows the cluster as well.
+ * 
+ * Everything is kept in primitive arrays sized by the number of nodes (up
+ * to maxNodes, after which the node we haven't seen for the longest time
+ * is forgotten), so the memory used doesn't grow with the number of polls.
+ * 
+ * @author Trond Norbye
+ */
+public class AnomalyDetector {
+    /**
+     * The cpu utilization (in percent)
+     */
+    public static final int CPU = 0;
+
+    /**
+     * The free memory (in percent of the total)
+     */
+    public static final int MEMORY_FREE = 1;
+
+    /**
+     * The operations per second
+     */
+    public static final int OPS = 2;
+
+    /**
+     * The names of the metrics (indexed by the constants above)
+     */
+    public static final String[] METRICS = { "cpu", "memory_free", "ops" };
+
+    /**
+     * The default largest number of nodes tracked per cluster
+     */
+    public static final int DEFAULT_MAX_NODES = 1024;
+
+    /**
+     * The time constant (in milliseconds) of the baseline
+     */
+    public static final long BASELINE_WINDOW = 60 * 60 * 1000;
+
+    /**
+     * The number of standard deviations from the baseline a sample must be
+     * to be anomalous
+     */
+    public static final double SIGMAS = 4;
+
+    /**
+     * The number of samples of a metric we need before we flag anything
+     */
+    public static final int WARMUP = 20;
+
+    /**
+     * The number of samples in a quantile sketch before it is restarted
+     */
+    public static final int WINDOW = 2048;
+
+    /**
+     * The weight of an anomalous sample relative to a normal one
+     */
+    private static final double ANOMALOUS_WEIGHT = 0.2;
+
+    /**
+     * The floor of the standard deviation in percent of the baseline, and
+     * the absolute floor per metric
+     */
+    private static final double RELATIVE_FLOOR = 0.1;
+    private static final double[] ABSOLUTE_FLOOR = { 5, 5, 10 };
+
+    /**
+     * The quantiles in the band
+     */
+    private static final double[] QUANTILES = { 0.05, 0.95 };
+
+    private static final int M = METRICS.length;
+    private static final int Q = QUANTILES.length;
+
+    private final int maxNodes;
+
+    /**
+     * The slot of each node we track
+     */
+    private final Map<String, Integer> slotOf = new HashMap<String, Integer>();
+
+    // Per slot
+    private String[] hostnames = new String[0];
+    private long[] lastSeen = new long[0];
+    private long[] lastTime = new long[0];
+    private int slots;
+
+    // Per slot and metric
+    private double[] mean = new double[0];
+    private double[] variance = new double[0];
+    private int[] count = new int[0];
+    private int[] sketchCount = new int[0];
+
+    // Per slot, metric and quantile (the band of the previous window, and
+    // the five markers of the P-square sketches)
+    private double[] band = new double[0];
+    private double[] heights = new double[0];
+    private int[] positions = new int[0];
+    private double[] desired = new double[0];
+
+    /**
+     * The number of updates (used to find the node we haven't seen for the
+     * longest time)
+     */
+    private long generation;
+
+    // The result of the last update
+    private int anomalousNodes;
+    private double maxScore;
+    private int worstSlot = -1;
+    private int worstMetric;
+    private double worstValue;
+    private double worstScore;
+    private double worstMean;
+    private double worstDeviation;
+
+    /**
+     * Create a detector tracking up to DEFAULT_MAX_NODES nodes
+     */
+    public AnomalyDetector() {
+        this(DEFAULT_MAX_NODES);
+    }
+
+    /**
+     * Create a detector
+     * 
+     * @param maxNodes
+     *            the largest number of nodes to track
+     */
+    public AnomalyDetector(int maxNodes) {
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Feed the detector with a snapshot of the cluster, and find the
+     * anomalous nodes
+     * 
+     * @param snapshot
+     *            the snapshot
+     * @param now
+     *            the time of the poll (the snapshot is reused while the
+     *            cluster doesn't change)
+     */
+    public void update(ClusterSnapshot snapshot, long now) {
+        ++generation;
+        anomalousNodes = 0;
+        maxScore = Double.NaN;
+        worstSlot = -1;
+        int nodes = snapshot.size();
+        for (int ii = 0; ii < nodes; ++ii) {
+            NodeHealth node = snapshot.getNode(ii);
+            int slot = slot(node.getHostname());
+            if (slot == -1) {
+                continue;
+            }
+            lastSeen[slot] = generation;
+
+            // Don't learn twice from the same point in time
+            double weight = 0;
+            if (lastTime[slot] == Long.MIN_VALUE) {
+                weight = 1;
+                lastTime[slot] = now;
+            } else if (now > lastTime[slot]) {
+                weight = 1 - Math.exp(-(double) (now - lastTime[slot])
+                        / BASELINE_WINDOW);
+                lastTime[slot] = now;
+            }
+            boolean anomalous = false;
+            anomalous |= sample(slot, CPU, node.getCpu(), weight);
+            if (node.getMemoryTotal() > 0) {
+                anomalous |= sample(slot, MEMORY_FREE, node.getMemoryFree()
+                        * 100.0 / node.getMemoryTotal(), weight);
+            }
+            anomalous |= sample(slot, OPS, node.getOps(), weight);
+            if (anomalous) {
+                ++anomalousNodes;
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes with an anomalous metric in the last
+     *         update
+     */
+    public int getAnomalousNodes() {
+        return anomalousNodes;
+    }
+
+    /**
+     * @return the largest distance from the baseline (in standard
+     *         deviations) of a metric in the last update (NaN while we're
+     *         learning)
+     */
+    public double getMaxScore() {
+        return maxScore;
+    }
+
+    /**
+     * @return a description of the most anomalous metric in the last
+     *         update (null if none)
+     */
+    public String describe() {
+        if (worstSlot == -1) {
+            return null;
+        }
+        return hostnames[worstSlot] + " " + METRICS[worstMetric] + " is "
+                + format(worstValue) + " (normally " + format(worstMean)
+                + " +- " + format(worstDeviation) + ")";
+    }
+
+    /**
+     * @return the number of nodes tracked
+     */
+    public int size() {
+        return slots;
+    }
+
+    /**
+     * Add a sample to the baseline and the band of a metric
+     * 
+     * @param weight
+     *            the weight of the sample in the baseline (0 if we have
+     *            seen it already)
+     * @return true if the sample is anomalous
+     */
+    private boolean sample(int slot, int metric, double value, double weight) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return false;
+        }
+        int idx = slot * M + metric;
+        boolean anomalous = false;
+        double learned = value;
+        if (count[idx] >= WARMUP) {
+            double floor = RELATIVE_FLOOR * Math.abs(mean[idx])
+                    + ABSOLUTE_FLOOR[metric];
+            double deviation = Math.max(Math.sqrt(variance[idx]), floor);
+            double score = Math.abs(value - mean[idx]) / deviation;
+            if (score > SIGMAS && outsideBand(idx, value, floor)) {
+                anomalous = true;
+                weight *= ANOMALOUS_WEIGHT;
+                learned = mean[idx] + (value > mean[idx] ? SIGMAS : -SIGMAS)
+                        * deviation;
+            }
+            if (!(score <= maxScore)) {
+                maxScore = score;
+            }
+            if (anomalous && (worstSlot == -1 || score > worstScore)) {
+                worstSlot = slot;
+                worstMetric = metric;
+                worstValue = value;
+                worstScore = score;
+                worstMean = mean[idx];
+                worstDeviation = Math.sqrt(variance[idx]);
+            }
+        } else if (weight > 0) {
+            // Learn the plain average while we warm up
+            weight = Math.max(weight, 1.0 / (count[idx] + 1));
+            ++count[idx];
+        }
+        if (weight == 0) {
+            return anomalous;
+        }
+
+        double diff = learned - mean[idx];
+        double increment = weight * diff;
+        mean[idx] += increment;
+        if (anomalous) {
+            return true;
+        }
+        variance[idx] = (1 - weight) * (variance[idx] + diff * increment);
+
+        if (sketchCount[idx] == WINDOW) {
+            for (int q = 0; q < Q; ++q) {
+                band[idx * Q + q] = quantile(idx * Q + q, sketchCount[idx],
+                        QUANTILES[q]);
+            }
+            sketchCount[idx] = 0;
+        }
+        for (int q = 0; q < Q; ++q) {
+            insert(idx * Q + q, sketchCount[idx], QUANTILES[q], value);
+        }
+        ++sketchCount[idx];
+        return false;
+    }
+
+    /**
+     * @return true if the value is outside of the band (the union of the
+     *         band of the previous window and the current sketch, widened
+     *         by the floor)
+     */
+    private boolean outsideBand(int idx, double value, double floor) {
+        double low = band[idx * Q];
+        double high = band[idx * Q + 1];
+        int n = sketchCount[idx];
+        if (n >= WARMUP) {
+            low = min(low, quantile(idx * Q, n, QUANTILES[0]));
+            high = max(high, quantile(idx * Q + 1, n, QUANTILES[1]));
+        }
+        if (Double.isNaN(low) || Double.isNaN(high)) {
+            return true;
+        }
+        return value < low - floor || value > high + floor;
+    }
+
+    /**
+     * Add a sample to a P-square sketch
+     * 
+     * @param sketch
+     *            the index of the sketch
+     * @param n
+     *            the number of samples in the sketch
+     * @param p
+     *            the quantile estimated by the sketch
+     * @param x
+     *            the sample
+     */
+    private void insert(int sketch, int n, double p, double x) {
+        int base = sketch * 5;
+        if (n < 5) {
+            // Keep the first five samples sorted
+            int ii = n;
+            while (ii > 0 && heights[base + ii - 1] > x) {
+                heights[base + ii] = heights[base + ii - 1];
+                --ii;
+            }
+            heights[base + ii] = x;
+            if (n == 4) {
+                for (int jj = 0; jj < 5; ++jj) {
+                    positions[base + jj] = jj;
+                }
+                desired[base] = 0;
+                desired[base + 1] = 2 * p;
+                desired[base + 2] = 4 * p;
+                desired[base + 3] = 2 + 2 * p;
+                desired[base + 4] = 4;
+            }
+            return;
+        }
+
+        // Find the cell of the sample (and extend the extremes)
+        int k;
+        if (x < heights[base]) {
+            heights[base] = x;
+            k = 0;
+        } else if (x >= heights[base + 4]) {
+            heights[base + 4] = Math.max(heights[base + 4], x);
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= heights[base + k + 1]) {
+                ++k;
+            }
+        }
+        for (int ii = k + 1; ii < 5; ++ii) {
+            ++positions[base + ii];
+        }
+        desired[base + 1] += p / 2;
+        desired[base + 2] += p;
+        desired[base + 3] += (1 + p) / 2;
+        desired[base + 4] += 1;
+
+        // Adjust the heights of the middle markers
+        for (int ii = 1; ii < 4; ++ii) {
+            int i = base + ii;
+            double d = desired[i] - positions[i];
+            if ((d >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (d <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int sign = d > 0 ? 1 : -1;
+                double h = parabolic(i, sign);
+                if (heights[i - 1] < h && h < heights[i + 1]) {
+                    heights[i] = h;
+                } else {
+                    heights[i] += sign * (heights[i + sign] - heights[i])
+                            / (positions[i + sign] - positions[i]);
+                }
+                positions[i] += sign;
+            }
+        }
+    }
+
+    private double parabolic(int i, int d) {
+        double n0 = positions[i - 1];
+        double n1 = positions[i];
+        double n2 = positions[i + 1];
+        return heights[i]
+                + d
+                / (n2 - n0)
+                * ((n1 - n0 + d) * (heights[i + 1] - heights[i]) / (n2 - n1) + (n2
+                        - n1 - d)
+                        * (heights[i] - heights[i - 1]) / (n1 - n0));
+    }
+
+    /**
+     * @return the estimate of the quantile from a sketch
+     */
+    private double quantile(int sketch, int n, double p) {
+        int base = sketch * 5;
+        if (n == 0) {
+            return Double.NaN;
+        } else if (n < 5) {
+            return heights[base + (int) Math.round(p * (n - 1))];
+        }
+        return heights[base + 2];
+    }
+
+    /**
+     * Get the slot of a node (allocating one if needed)
+     * 
+     * @return the slot, or -1 if all of the slots are used by nodes in the
+     *         current snapshot
+     */
+    private int slot(String hostname) {
+        Integer slot = slotOf.get(hostname);
+        if (slot != null) {
+            return slot.intValue();
+        }
+
+        int ret;
+        if (slots < maxNodes) {
+            ret = slots++;
+            if (ret == hostnames.length) {
+                grow(Math.min(maxNodes, Math.max(16, slots * 2)));
+            }
+        } else {
+            // Forget the node we haven't seen for the longest time
+            ret = -1;
+            for (int ii = 0; ii < slots; ++ii) {
+                if (lastSeen[ii] < generation
+                        && (ret == -1 || lastSeen[ii] < lastSeen[ret])) {
+                    ret = ii;
+                }
+            }
+            if (ret == -1) {
+                return -1;
+            }
+            slotOf.remove(hostnames[ret]);
+        }
+
+        hostnames[ret] = hostname;
+        lastTime[ret] = Long.MIN_VALUE;
+        slotOf.put(hostname, Integer.valueOf(ret));
+        for (int metric = 0; metric < M; ++metric) {
+            int idx = ret * M + metric;
+            mean[idx] = 0;
+            variance[idx] = 0;
+            count[idx] = 0;
+            sketchCount[idx] = 0;
+            for (int q = 0; q < Q; ++q) {
+                band[idx * Q + q] = Double.NaN;
+            }
+        }
+        return ret;
+    }
+
+    private void grow(int capacity) {
+        hostnames = copy(hostnames, new String[capacity]);
+        lastSeen = copy(lastSeen, new long[capacity]);
+        lastTime = copy(lastTime, new long[capacity]);
+        mean = copy(mean, new double[capacity * M]);
+        variance = copy(variance, new double[capacity * M]);
+        count = copy(count, new int[capacity * M]);
+        sketchCount = copy(sketchCount, new int[capacity * M]);
+        band = copy(band, new double[capacity * M * Q]);
+        heights = copy(heights, new double[capacity * M * Q * 5]);
+        positions = copy(positions, new int[capacity * M * Q * 5]);
+        desired = copy(desired, new double[capacity * M * Q * 5]);
+    }
+
+    private static String[] copy(String[] from, String[] to) {
+        System.arraycopy(from, 0, to, 0, from.length);
+        return to;
+    }
+
+    private static long[] copy(long[] from, long[] to) {
+        System.arraycopy(from, 0, to, 0, from.length);
+        return to;
+    }
+
+    private static int[] copy(int[] from, int[] to) {
+        System.arraycopy(from, 0, to, 0, from.length);
+        return to;
+    }
+
+    private static double[] copy(double[] from, double[] to) {
+        System.arraycopy(from, 0, to, 0, from.length);
+        return to;
+    }
+
+    private static double min(double a, double b) {
+        if (Double.isNaN(a)) {
+            return b;
+        }
+        return Double.isNaN(b) ? a : Math.min(a, b);
+    }
+
+    private static double max(double a, double b) {
+        if (Double.isNaN(a)) {
+            return b;
+        }
+        return Double.isNaN(b) ? a : Math.max(a, b);
+    }
+
+    private static String format(double value) {
+        return Double.toString(Math.rint(value * 10) / 10);
+    }
+}
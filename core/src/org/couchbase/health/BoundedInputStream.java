@@ -0,0 +1,71 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream refusing to return more than a given number of bytes, so
+ * that a misbehaving server (or proxy) can't make us read an endless
+ * response into memory.
+ * 
+ * @author Trond Norbye
+ */
+class BoundedInputStream extends FilterInputStream {
+    private final long max;
+    private long total;
+
+    BoundedInputStream(InputStream in, long max) {
+        super(in);
+        this.max = max;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int ret = super.read();
+        if (ret != -1) {
+            count(1);
+        }
+        return ret;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int ret = super.read(b, off, len);
+        if (ret > 0) {
+            count(ret);
+        }
+        return ret;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long ret = super.skip(n);
+        if (ret > 0) {
+            count(ret);
+        }
+        return ret;
+    }
+
+    private void count(long nr) throws IOException {
+        total += nr;
+        if (total > max) {
+            throw new IOException("Response larger than " + max + " bytes");
+        }
+    }
+}
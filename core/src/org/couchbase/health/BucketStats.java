@@ -0,0 +1,191 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+/**
+ * The samples of the interesting statistics for a single bucket, as returned
+ * from /pools/default/buckets/{name}/stats.
+ * 
+ * The samples are kept in primitive arrays that are reused every time the
+ * stats are refreshed, so that polling the stats every few seconds doesn't
+ * create garbage.
+ * 
+ * @author Trond Norbye
+ */
+public class BucketStats {
+    /**
+     * Operations per second
+     */
+    public static final int OPS = 0;
+
+    /**
+     * The percentage of the active items resident in memory
+     */
+    public static final int RESIDENT_RATIO = 1;
+
+    /**
+     * The number of items waiting to be written to disk
+     */
+    public static final int DISK_WRITE_QUEUE = 2;
+
+    /**
+     * The names of the statistics in the stats document (indexed by the
+     * constants above)
+     */
+    public static final String[] METRICS = { "ops",
+            "vb_active_resident_items_ratio", "disk_write_queue" };
+
+    private final String name;
+    private final double[][] samples = new double[METRICS.length][];
+    private final int[] counts = new int[METRICS.length];
+    private long timestamp;
+
+    /**
+     * Create a new instance
+     * 
+     * @param name
+     *            the name of the bucket
+     */
+    public BucketStats(String name) {
+        this.name = name;
+        for (int ii = 0; ii < samples.length; ++ii) {
+            samples[ii] = new double[64];
+        }
+    }
+
+    /**
+     * Get the index of a metric
+     * 
+     * @param metric
+     *            the name of the metric in the stats document
+     * @return the index of the metric or -1 if it isn't collected
+     */
+    public static int indexOf(String metric) {
+        for (int ii = 0; ii < METRICS.length; ++ii) {
+            if (METRICS[ii].equals(metric)) {
+                return ii;
+            }
+        }
+        return -1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the time the stats was refreshed
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param metric
+     *            the metric
+     * @return the number of samples
+     */
+    public int getCount(int metric) {
+        return counts[metric];
+    }
+
+    /**
+     * Get a sample (the oldest sample has index 0)
+     * 
+     * @param metric
+     *            the metric
+     * @param index
+     *            the index of the sample
+     * @return the value
+     */
+    public double getSample(int metric, int index) {
+        if (index < 0 || index >= counts[metric]) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return samples[metric][index];
+    }
+
+    /**
+     * @param metric
+     *            the metric
+     * @return the newest sample (or NaN if there is no samples)
+     */
+    public double getLast(int metric) {
+        int count = counts[metric];
+        return count == 0 ? Double.NaN : samples[metric][count - 1];
+    }
+
+    /**
+     * @param metric
+     *            the metric
+     * @return the average of the samples (or NaN if there is no samples)
+     */
+    public double getMean(int metric) {
+        int count = counts[metric];
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double[] values = samples[metric];
+        double sum = 0;
+        for (int ii = 0; ii < count; ++ii) {
+            sum += values[ii];
+        }
+        return sum / count;
+    }
+
+    /**
+     * Drop all of the samples before the stats is refreshed
+     * 
+     * @param timestamp
+     *            the time of the refresh
+     */
+    void reset(long timestamp) {
+        this.timestamp = timestamp;
+        for (int ii = 0; ii < counts.length; ++ii) {
+            counts[ii] = 0;
+        }
+    }
+
+    /**
+     * Add a sample
+     * 
+     * @param metric
+     *            the metric
+     * @param value
+     *            the value
+     */
+    void add(int metric, double value) {
+        double[] values = samples[metric];
+        int count = counts[metric];
+        if (count == values.length) {
+            double[] grown = new double[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, count);
+            samples[metric] = values = grown;
+        }
+        values[count] = value;
+        counts[metric] = count + 1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name);
+        for (int ii = 0; ii < METRICS.length; ++ii) {
+            sb.append(' ').append(METRICS[ii]).append('=')
+                    .append(getLast(ii));
+        }
+        return sb.toString();
+    }
+}
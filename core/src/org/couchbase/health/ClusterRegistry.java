@@ -0,0 +1,136 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The registry of all of the clusters we're monitoring.
+ * 
+ * @author Trond Norbye
+ */
+public class ClusterRegistry {
+    /**
+     * The default port for the REST interface
+     */
+    public static final int DEFAULT_PORT = 8091;
+
+    /**
+     * All of the clusters, in the order they was specified
+     */
+    private final Map<String, ClusterTarget> targets = new LinkedHashMap<String, ClusterTarget>();
+
+    /**
+     * Parse a list of clusters on the form "host[:port], host[:port]"
+     * 
+     * @param spec
+     *            the list of clusters
+     * @return the clusters in the list
+     * @throws NumberFormatException
+     *             if one of the port numbers is invalid
+     */
+    public static List<ClusterTarget> parse(String spec) {
+        List<ClusterTarget> ret = new ArrayList<ClusterTarget>();
+        for (String entry : spec.split("[,\\s]+")) {
+            if (entry.length() == 0) {
+                continue;
+            }
+            String[] parts = entry.split(":");
+            int port = DEFAULT_PORT;
+            if (parts.length == 2) {
+                port = Integer.parseInt(parts[1]);
+            } else if (parts.length != 1) {
+                throw new NumberFormatException("Invalid host: " + entry);
+            }
+            ret.add(new ClusterTarget(parts[0], port));
+        }
+        return ret;
+    }
+
+    /**
+     * Add a cluster to the registry (replacing any cluster with the same key)
+     * 
+     * @param target
+     *            the cluster to add
+     */
+    public synchronized void add(ClusterTarget target) {
+        targets.put(target.getKey(), target);
+    }
+
+    /**
+     * Get a cluster from the registry
+     * 
+     * @param key
+     *            the key identifying the cluster
+     * @return the cluster or null if it isn't registered
+     */
+    public synchronized ClusterTarget get(String key) {
+        return targets.get(key);
+    }
+
+    /**
+     * @return a copy of the list of all of the clusters
+     */
+    public synchronized List<ClusterTarget> getTargets() {
+        return Collections.unmodifiableList(new ArrayList<ClusterTarget>(
+                targets.values()));
+    }
+
+    /**
+     * @return the number of clusters in the registry
+     */
+    public synchronized int size() {
+        return targets.size();
+    }
+
+    /**
+     * Aggregate the state of all of the clusters. The global state is the
+     * worst state of the clusters we've heard from.
+     * 
+     * @return the aggregated state of all of the clusters
+     */
+    public synchronized State getGlobalState() {
+        State ret = State.UNINITIALISED;
+        for (ClusterTarget target : targets.values()) {
+            State s = target.getState();
+            if (s == State.UNINITIALISED) {
+                continue;
+            }
+            if (ret == State.UNINITIALISED || s.ordinal() < ret.ordinal()) {
+                ret = s;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return a spec string that may be passed to parse()
+     */
+    public synchronized String toSpec() {
+        StringBuilder sb = new StringBuilder();
+        for (String key : targets.keySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(key);
+        }
+        return sb.toString();
+    }
+}
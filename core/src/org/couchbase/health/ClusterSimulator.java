@@ -0,0 +1,1007 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A fake Couchbase cluster used to test the monitor without a real server
+ * (and without network access). It serves the REST endpoints the monitor
+ * uses:
+ * 
+ * <pre>
+ * /pools                               the bootstrap document
+ * /pools/default                       the nodes (with ETag / 304)
+ * /pools/default/buckets               the buckets (with ETag / 304)
+ * /pools/default/buckets/NAME/stats    the stats of a bucket
+ * /pools/default/tasks                 the progress of the rebalance
+ * /nodes/self                          the node the request is sent to
+ * /poolsStreaming/default              the nodes, pushed on every change
+ * </pre>
+ * 
+ * The cluster may have thousands of nodes. Node N is given the address
+ * 127.0.X.Y:port (where X.Y is N + 1), and the simulator listens on all of
+ * them, so the monitor may fail over between the nodes (this requires the
+ * whole 127/8 network on the loopback interface, like on Linux). The
+ * document is only generated when the cluster changes.
+ * 
+ * The cluster and the faults are changed with commands, either directly
+ * with execute() or from a script with a command per line prefixed by the
+ * number of seconds after the start to run it:
+ * 
+ * <pre>
+ * # seconds command [arguments]
+ * 0   nodes 500
+ * 0   buckets 4
+ * 30  unhealthy 3          node 3 reports unhealthy (healthy / warmup)
+ * 40  failover 3           node 3 is failed over (addback to undo)
+ * 45  join 2               two nodes join, waiting for a rebalance
+ * 45  rebalance 600        a rebalance running for 600 seconds (0 stops)
+ * 48  stall                the rebalance stops making progress (resume)
+ * 50  restart 7            node 7 restarts (the uptime is reset)
+ * 55  cpu 7 95             node 7 reports 95% cpu utilization
+ * 60  kill 0               connections to node 0 are dropped (revive)
+ * 70  latency 2000 500     every response is delayed 2000 +- 500 ms
+ * 75  slow 4 3000          the responses from node 4 are delayed 3000 ms
+ * 80  errors 0.2 503       20% of the requests fail with a 503
+ * 90  truncate 0.1         10% of the bodies are cut in half
+ * 100 stat ops 5           set the bucket stat (ops, disk_write_queue ..)
+ * 110 down                 drop all connections (up)
+ * </pre>
+ * 
+ * The faults are picked with a seeded Random, so a run of a script may be
+ * reproduced. Run it standalone with:
+ * 
+ * <pre>
+ * java -cp classes org.couchbase.health.ClusterSimulator [-p port] \
+ *      [-n nodes] [-s seed] [script]
+ * </pre>
+ * 
+ * or in process with the -S option to the HeadlessMonitor.
+ * 
+ * @author Trond Norbye
+ */
+public class ClusterSimulator {
+    private static final Logger LOG = Logger
+            .getLogger("org.couchbase.health.simulator");
+
+    /**
+     * The number of samples returned in the bucket stats (one per second
+     * for the last minute, like the server)
+     */
+    private static final int SAMPLES = 60;
+
+    /**
+     * The number of milliseconds an idle keep-alive connection is kept open
+     */
+    private static final int IDLE_TIMEOUT = 60 * 1000;
+
+    private static final int MAX_LINE = 8192;
+
+    private final int requestedPort;
+    private final Random random;
+    private ServerSocket server;
+    private ExecutorService workers;
+    private ScheduledExecutorService scheduler;
+    private volatile boolean running;
+
+    /**
+     * The open connections and the node they are connected to
+     */
+    private final ConcurrentMap<Socket, Integer> connections = new ConcurrentHashMap<Socket, Integer>();
+
+    /*
+     * The state of the cluster (guarded by this)
+     */
+    private int nodeCount;
+    private String[] status = new String[0];
+    private String[] membership = new String[0];
+    private long[] startTime = new long[0];
+    private boolean[] killed = new boolean[0];
+    private long[] slow = new long[0];
+    private double[] cpu = new double[0];
+    private int bucketCount = 1;
+    private final double[] stats = { 1000, 100, 0 };
+
+    /*
+     * The rebalance (guarded by this): the time it started (-1 if it isn't
+     * running), the number of milliseconds it runs and the progress it is
+     * stuck at (-1 unless it is stalled)
+     */
+    private long rebalanceStart = -1;
+    private long rebalanceDuration;
+    private double rebalanceStalled = -1;
+
+    /**
+     * Incremented every time the cluster changes
+     */
+    private long version;
+
+    /**
+     * The documents generated for the current version (null until they are
+     * requested)
+     */
+    private Document poolDocument;
+    private Document bucketDocument;
+
+    /*
+     * The faults
+     */
+    private volatile long latency;
+    private volatile long jitter;
+    private volatile double errorRate;
+    private volatile int errorCode = 503;
+    private volatile double truncateRate;
+    private volatile boolean down;
+
+    /**
+     * A generated document (and the compressed version of it)
+     */
+    private static class Document {
+        final byte[] plain;
+        final byte[] gzip;
+        final String etag;
+
+        /**
+         * @param body
+         *            the document
+         * @param version
+         *            the version of the cluster the document was generated
+         *            from (-1 if it shouldn't have an ETag)
+         */
+        Document(String body, long version) throws IOException {
+            plain = body.getBytes("UTF-8");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            GZIPOutputStream gz = new GZIPOutputStream(out);
+            gz.write(plain);
+            gz.close();
+            gzip = out.toByteArray();
+            etag = version < 0 ? null : "\"" + version + "\"";
+        }
+    }
+
+    /**
+     * Create a new simulator
+     * 
+     * @param port
+     *            the port to listen to (0 to pick a free port)
+     * @param nodes
+     *            the number of nodes in the cluster
+     * @param seed
+     *            the seed used to pick the faults and the stats
+     */
+    public ClusterSimulator(int port, int nodes, long seed) {
+        requestedPort = port;
+        random = new Random(seed);
+        resize(nodes);
+    }
+
+    /**
+     * Start accepting connections
+     * 
+     * @throws IOException
+     *             if we fail to bind the port
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(requestedPort));
+        workers = Executors.newCachedThreadPool(new DaemonThreadFactory(
+                "simulator"));
+        scheduler = Executors
+                .newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                        "simulator-script"));
+        running = true;
+        workers.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+        LOG.info("Simulating " + nodeCount + " nodes on " + getSeed());
+    }
+
+    /**
+     * Stop the simulator and drop all of the connections
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            /* ignore */
+        }
+        scheduler.shutdownNow();
+        for (Socket socket : connections.keySet()) {
+            close(socket);
+        }
+        workers.shutdownNow();
+        notifyAll();
+    }
+
+    /**
+     * @return the port the simulator listens to
+     */
+    public int getPort() {
+        return server == null ? requestedPort : server.getLocalPort();
+    }
+
+    /**
+     * @return the host:port of the first node (to bootstrap from)
+     */
+    public String getSeed() {
+        return hostname(0);
+    }
+
+    /**
+     * Schedule the commands in a script
+     * 
+     * @param script
+     *            the script (a command per line prefixed with the number of
+     *            seconds after the start to run it)
+     * @throws IOException
+     *             if we fail to read the script, or it contains an invalid
+     *             line
+     */
+    public void load(Reader script) throws IOException {
+        BufferedReader in = new BufferedReader(script);
+        String line;
+        int lineno = 0;
+        while ((line = in.readLine()) != null) {
+            ++lineno;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] words = line.split("\\s+", 2);
+            final String command = words.length > 1 ? words[1] : "";
+            long delay;
+            try {
+                delay = (long) (Double.parseDouble(words[0]) * 1000);
+                // Validate the command now rather than when it runs
+                parse(command);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineno + ": " + e.getMessage());
+            }
+            if (delay <= 0) {
+                execute(command);
+            } else {
+                scheduler.schedule(new Runnable() {
+                    public void run() {
+                        execute(command);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Run a command (see the class documentation)
+     * 
+     * @param command
+     *            the command
+     * @throws IllegalArgumentException
+     *             if the command is invalid
+     */
+    public void execute(String command) {
+        String[] words = parse(command);
+        String name = words[0];
+        LOG.info("Simulator: " + command);
+        if (name.equals("latency")) {
+            latency = Long.parseLong(words[1]);
+            jitter = words.length > 2 ? Long.parseLong(words[2]) : 0;
+        } else if (name.equals("errors")) {
+            errorRate = Double.parseDouble(words[1]);
+            if (words.length > 2) {
+                errorCode = Integer.parseInt(words[2]);
+            }
+        } else if (name.equals("truncate")) {
+            truncateRate = Double.parseDouble(words[1]);
+        } else if (name.equals("down")) {
+            down = true;
+            for (Socket socket : connections.keySet()) {
+                close(socket);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        } else if (name.equals("up")) {
+            down = false;
+        } else if (name.equals("stall")) {
+            synchronized (this) {
+                rebalanceStalled = Math.max(0, getRebalanceProgress());
+            }
+        } else if (name.equals("resume")) {
+            synchronized (this) {
+                if (rebalanceStalled >= 0 && rebalanceStart != -1) {
+                    // Continue from where it stopped
+                    rebalanceStart = System.currentTimeMillis()
+                            - (long) (rebalanceStalled * rebalanceDuration / 100);
+                }
+                rebalanceStalled = -1;
+            }
+        } else {
+            update(words);
+        }
+    }
+
+    /**
+     * Split the command into words and verify the number of arguments
+     */
+    private static String[] parse(String command) {
+        String[] words = command.trim().toLowerCase(Locale.US).split("\\s+");
+        String name = words[0];
+        int min;
+        int max;
+        if (name.equals("down") || name.equals("up") || name.equals("stall")
+                || name.equals("resume")) {
+            min = max = 0;
+        } else if (name.equals("latency") || name.equals("errors")) {
+            min = 1;
+            max = 2;
+        } else if (name.equals("slow") || name.equals("cpu")) {
+            min = max = 2;
+        } else if (name.equals("stat")) {
+            if (words.length > 1 && BucketStats.indexOf(words[1]) == -1) {
+                throw new IllegalArgumentException("Unknown stat: " + words[1]);
+            }
+            min = max = 2;
+        } else if (name.equals("nodes") || name.equals("buckets")
+                || name.equals("truncate") || name.equals("healthy")
+                || name.equals("unhealthy") || name.equals("warmup")
+                || name.equals("failover") || name.equals("addback")
+                || name.equals("restart") || name.equals("kill")
+                || name.equals("revive") || name.equals("join")
+                || name.equals("rebalance")) {
+            min = max = 1;
+        } else {
+            throw new IllegalArgumentException("Unknown command: " + command);
+        }
+        if (words.length - 1 < min || words.length - 1 > max) {
+            throw new IllegalArgumentException("Invalid arguments: " + command);
+        }
+        // Verify that the arguments are numbers
+        for (int ii = name.equals("stat") ? 2 : 1; ii < words.length; ++ii) {
+            Double.parseDouble(words[ii]);
+        }
+        return words;
+    }
+
+    /**
+     * Run a command changing the cluster
+     */
+    private synchronized void update(String[] words) {
+        String name = words[0];
+        if (name.equals("nodes")) {
+            resize(Integer.parseInt(words[1]));
+        } else if (name.equals("buckets")) {
+            bucketCount = Integer.parseInt(words[1]);
+        } else if (name.equals("join")) {
+            int first = nodeCount;
+            resize(nodeCount + Integer.parseInt(words[1]));
+            for (int ii = first; ii < nodeCount; ++ii) {
+                membership[ii] = "inactiveAdded";
+            }
+        } else if (name.equals("rebalance")) {
+            long seconds = Long.parseLong(words[1]);
+            rebalanceStalled = -1;
+            if (seconds <= 0) {
+                rebalanceStart = -1;
+            } else {
+                rebalanceStart = System.currentTimeMillis();
+                rebalanceDuration = seconds * 1000;
+                // The nodes waiting to join are activated when the
+                // rebalance starts
+                for (int ii = 0; ii < nodeCount; ++ii) {
+                    if (membership[ii].equals("inactiveAdded")) {
+                        membership[ii] = "active";
+                    }
+                }
+            }
+        } else if (name.equals("stat")) {
+            stats[BucketStats.indexOf(words[1])] = Double
+                    .parseDouble(words[2]);
+            // The stats are generated for every request
+            return;
+        } else {
+            int node = Integer.parseInt(words[1]);
+            if (node < 0 || node >= nodeCount) {
+                LOG.warning("Simulator: no such node " + node);
+                return;
+            }
+            if (name.equals("healthy") || name.equals("unhealthy")
+                    || name.equals("warmup")) {
+                status[node] = name;
+            } else if (name.equals("failover")) {
+                membership[node] = "inactiveFailed";
+            } else if (name.equals("addback")) {
+                membership[node] = "active";
+            } else if (name.equals("restart")) {
+                startTime[node] = System.currentTimeMillis();
+            } else if (name.equals("kill")) {
+                killed[node] = true;
+                for (Map.Entry<Socket, Integer> entry : connections
+                        .entrySet()) {
+                    if (entry.getValue().intValue() == node) {
+                        close(entry.getKey());
+                    }
+                }
+                // The cluster document doesn't change, but the streaming
+                // connections to the node must stop
+                notifyAll();
+                return;
+            } else if (name.equals("revive")) {
+                killed[node] = false;
+                return;
+            } else if (name.equals("slow")) {
+                slow[node] = Long.parseLong(words[2]);
+                return;
+            } else if (name.equals("cpu")) {
+                cpu[node] = Double.parseDouble(words[2]);
+            }
+        }
+        changed();
+    }
+
+    /**
+     * Change the number of nodes (the existing nodes keep their state)
+     */
+    private synchronized void resize(int nodes) {
+        if (nodes < 1 || nodes > 65534) {
+            throw new IllegalArgumentException("Invalid number of nodes: "
+                    + nodes);
+        }
+        String[] s = new String[nodes];
+        String[] m = new String[nodes];
+        long[] t = new long[nodes];
+        boolean[] k = new boolean[nodes];
+        long[] l = new long[nodes];
+        double[] c = new double[nodes];
+        int keep = Math.min(nodes, nodeCount);
+        System.arraycopy(status, 0, s, 0, keep);
+        System.arraycopy(membership, 0, m, 0, keep);
+        System.arraycopy(startTime, 0, t, 0, keep);
+        System.arraycopy(killed, 0, k, 0, keep);
+        System.arraycopy(slow, 0, l, 0, keep);
+        System.arraycopy(cpu, 0, c, 0, keep);
+        long now = System.currentTimeMillis();
+        for (int ii = keep; ii < nodes; ++ii) {
+            s[ii] = "healthy";
+            m[ii] = "active";
+            t[ii] = now;
+            c[ii] = ii % 100 + 0.25;
+        }
+        status = s;
+        membership = m;
+        startTime = t;
+        killed = k;
+        slow = l;
+        cpu = c;
+        nodeCount = nodes;
+        changed();
+    }
+
+    /**
+     * Invalidate the documents and wake up the streaming connections
+     */
+    private synchronized void changed() {
+        ++version;
+        poolDocument = null;
+        bucketDocument = null;
+        notifyAll();
+    }
+
+    private String hostname(int node) {
+        int address = node + 1;
+        return "127.0." + (address >> 8) + "." + (address & 0xff) + ":"
+                + getPort();
+    }
+
+    /**
+     * @return the node a connection was made to (from the local address)
+     */
+    private static int nodeOf(Socket socket) {
+        byte[] address = socket.getLocalAddress().getAddress();
+        if (address.length != 4 || address[0] != 127) {
+            return 0;
+        }
+        int ret = ((address[2] & 0xff) << 8 | (address[3] & 0xff)) - 1;
+        return ret < 0 ? 0 : ret;
+    }
+
+    private void accept() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (running) {
+                    LOG.log(Level.WARNING, "Simulator: accept failed", e);
+                }
+                return;
+            }
+            workers.execute(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * Serve the requests on a connection until the client closes it (or we
+     * drop it)
+     */
+    private void serve(Socket socket) {
+        int node = nodeOf(socket);
+        connections.put(socket, Integer.valueOf(node));
+        try {
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(
+                    socket.getOutputStream());
+            while (running && serveRequest(node, in, out)) {
+                out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            /* The client went away */
+        } catch (InterruptedException e) {
+            /* We're stopping */
+        } finally {
+            connections.remove(socket);
+            close(socket);
+        }
+    }
+
+    /**
+     * Serve a single request
+     * 
+     * @return true if the connection should be kept open
+     */
+    private boolean serveRequest(int node, InputStream in, OutputStream out)
+            throws IOException, InterruptedException {
+        String request = readLine(in);
+        if (request == null) {
+            return false;
+        }
+        boolean gzip = false;
+        boolean keepAlive = request.endsWith("HTTP/1.1");
+        String ifNoneMatch = null;
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int idx = line.indexOf(':');
+            if (idx == -1) {
+                continue;
+            }
+            String name = line.substring(0, idx).trim();
+            String value = line.substring(idx + 1).trim();
+            if (name.equalsIgnoreCase("Accept-Encoding")) {
+                gzip = value.contains("gzip");
+            } else if (name.equalsIgnoreCase("If-None-Match")) {
+                ifNoneMatch = value;
+            } else if (name.equalsIgnoreCase("Connection")) {
+                keepAlive = value.equalsIgnoreCase("keep-alive");
+            }
+        }
+
+        if (down || isKilled(node)) {
+            return false;
+        }
+        long delay = latency + getSlow(node);
+        if (jitter > 0) {
+            delay += (long) ((random.nextDouble() * 2 - 1) * jitter);
+        }
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        if (errorRate > 0 && random.nextDouble() < errorRate) {
+            respond(out, errorCode, keepAlive, "{}");
+            return keepAlive;
+        }
+
+        String[] parts = request.split(" ");
+        String path = parts.length > 1 ? parts[1] : "/";
+        int idx = path.indexOf('?');
+        if (idx != -1) {
+            path = path.substring(0, idx);
+        }
+
+        Document document;
+        String self;
+        if (path.equals("/pools")) {
+            document = new Document("{\"pools\":[{\"name\":\"default\","
+                    + "\"uri\":\"/pools/default?uuid=simulator\","
+                    + "\"streamingUri\":\"/poolsStreaming/default?uuid=simulator\"}],"
+                    + "\"isAdminCreds\":false,\"implementationVersion\":\"simulator\"}",
+                    -1);
+        } else if (path.equals("/pools/default")) {
+            document = getPoolDocument();
+        } else if (path.equals("/pools/default/buckets")) {
+            document = getBucketDocument();
+        } else if (path.equals("/pools/default/tasks")) {
+            document = new Document(generateTasks(), -1);
+        } else if (path.equals("/nodes/self")
+                && (self = generateNodeSelf(node)) != null) {
+            document = new Document(self, -1);
+        } else if (path.startsWith("/pools/default/buckets/")
+                && path.endsWith("/stats")) {
+            document = new Document(generateStats(), -1);
+        } else if (path.equals("/poolsStreaming/default")) {
+            stream(node, out);
+            return false;
+        } else {
+            respond(out, 404, keepAlive, "Not found");
+            return keepAlive;
+        }
+
+        if (document.etag != null && document.etag.equals(ifNoneMatch)) {
+            writeHeaders(out, 304, document.etag, false, keepAlive, -1);
+            return keepAlive;
+        }
+
+        byte[] body = gzip ? document.gzip : document.plain;
+        writeHeaders(out, 200, document.etag, gzip, keepAlive, body.length);
+        if (truncateRate > 0 && random.nextDouble() < truncateRate) {
+            out.write(body, 0, body.length / 2);
+            return false;
+        }
+        out.write(body);
+        return keepAlive;
+    }
+
+    /**
+     * Push the pool document every time the cluster changes
+     */
+    private void stream(int node, OutputStream out) throws IOException,
+            InterruptedException {
+        String headers = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Connection: close\r\n"
+                + "Server: ClusterSimulator\r\n\r\n";
+        out.write(headers.getBytes("ISO-8859-1"));
+        long sent = -1;
+        while (true) {
+            Document document;
+            synchronized (this) {
+                while (sent == version && running && !down && !isKilled(node)) {
+                    wait(IDLE_TIMEOUT);
+                }
+                if (!running || down || isKilled(node)) {
+                    return;
+                }
+                sent = version;
+                document = getPoolDocument();
+            }
+            out.write(document.plain);
+            out.write("\n\n\n\n".getBytes("ISO-8859-1"));
+            out.flush();
+        }
+    }
+
+    private synchronized boolean isKilled(int node) {
+        return node < killed.length && killed[node];
+    }
+
+    private synchronized long getSlow(int node) {
+        return node < slow.length ? slow[node] : 0;
+    }
+
+    /**
+     * Get the progress of the rebalance (and end it once it is done)
+     * 
+     * @return the percentage done, or -1 if no rebalance is running
+     */
+    private synchronized double getRebalanceProgress() {
+        if (rebalanceStart == -1) {
+            return -1;
+        }
+        if (rebalanceStalled >= 0) {
+            return rebalanceStalled;
+        }
+        double progress = (System.currentTimeMillis() - rebalanceStart)
+                * 100.0 / rebalanceDuration;
+        if (progress >= 100) {
+            rebalanceStart = -1;
+            changed();
+            return -1;
+        }
+        return progress;
+    }
+
+    private synchronized Document getPoolDocument() throws IOException {
+        getRebalanceProgress();
+        if (poolDocument == null) {
+            poolDocument = new Document(generatePoolDocument(), version);
+        }
+        return poolDocument;
+    }
+
+    private synchronized Document getBucketDocument() throws IOException {
+        if (bucketDocument == null) {
+            bucketDocument = new Document(generateBucketList(), version);
+        }
+        return bucketDocument;
+    }
+
+    /**
+     * Generate /pools/default
+     */
+    private synchronized String generatePoolDocument() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder(nodeCount * 600 + 512);
+        sb.append("{\"storageTotals\":{\"ram\":{\"total\":")
+                .append(nodeCount * 8589934592L)
+                .append(",\"quotaTotal\":2147483648,\"used\":1073741824}},");
+        sb.append("\"name\":\"default\",\"alerts\":[],\"nodes\":[");
+        for (int ii = 0; ii < nodeCount; ++ii) {
+            if (ii > 0) {
+                sb.append(',');
+            }
+            appendNode(sb, ii, now);
+        }
+        sb.append("],\"buckets\":{\"uri\":\"/pools/default/buckets\"},");
+        sb.append("\"controllers\":{\"rebalance\":{\"uri\":\"/controller/rebalance\"}},");
+        sb.append("\"rebalanceStatus\":\"")
+                .append(rebalanceStart == -1 ? "none" : "running")
+                .append("\",\"balanced\":").append(rebalanceStart == -1)
+                .append(',');
+        sb.append("\"nodeStatusesUri\":\"/nodeStatuses\",");
+        sb.append("\"stats\":{\"uri\":\"/pools/default/stats\"},");
+        sb.append("\"counters\":{},\"stopRebalanceIsSafe\":true}");
+        return sb.toString();
+    }
+
+    /**
+     * Append the description of a node (as listed in /pools/default and
+     * returned from /nodes/self)
+     */
+    private synchronized void appendNode(StringBuilder sb, int ii, long now) {
+        sb.append("{\"systemStats\":{\"cpu_utilization_rate\":")
+                .append(cpu[ii])
+                .append(",\"swap_total\":0,\"swap_used\":0},");
+        sb.append("\"interestingStats\":{\"curr_items\":")
+                .append(ii * 1000).append(",\"ops\":")
+                .append(stats[BucketStats.OPS] * bucketCount / nodeCount)
+                .append(",\"mem_used\":").append(ii * 1048576L)
+                .append("},");
+        sb.append("\"uptime\":\"").append((now - startTime[ii]) / 1000)
+                .append("\",");
+        sb.append("\"memoryTotal\":8589934592,\"memoryFree\":4294967296,");
+        sb.append("\"mcdMemoryReserved\":6553,\"mcdMemoryAllocated\":6553,");
+        sb.append("\"clusterMembership\":\"").append(membership[ii])
+                .append("\",");
+        sb.append("\"status\":\"").append(status[ii]).append("\",");
+        sb.append("\"hostname\":\"").append(hostname(ii)).append("\",");
+        sb.append("\"clusterCompatibility\":1,");
+        sb.append("\"version\":\"1.8.0-simulator\",");
+        sb.append("\"os\":\"x86_64-unknown-linux-gnu\",");
+        sb.append("\"ports\":{\"proxy\":11211,\"direct\":11210}}");
+    }
+
+    /**
+     * Generate /nodes/self for a node
+     */
+    private synchronized String generateNodeSelf(int node) {
+        if (node >= nodeCount) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(1024);
+        appendNode(sb, node, System.currentTimeMillis());
+        // Replace the closing brace with the fields only found in
+        // /nodes/self
+        sb.setLength(sb.length() - 1);
+        sb.append(",\"storage\":{\"ssd\":[],\"hdd\":[{\"path\":\"/opt/couchbase/var/lib/couchbase/data\",\"quotaMb\":\"none\",\"state\":\"ok\"}]},");
+        sb.append("\"memoryQuota\":2048}");
+        return sb.toString();
+    }
+
+    /**
+     * Generate /pools/default/tasks
+     */
+    private synchronized String generateTasks() {
+        double progress = getRebalanceProgress();
+        if (progress < 0) {
+            return "[{\"type\":\"rebalance\",\"status\":\"notRunning\"}]";
+        }
+        return "[{\"type\":\"rebalance\",\"recommendedRefreshPeriod\":0.25,"
+                + "\"status\":\"running\",\"progress\":" + progress + "}]";
+    }
+
+    /**
+     * Generate /pools/default/buckets
+     */
+    private synchronized String generateBucketList() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int ii = 0; ii < bucketCount; ++ii) {
+            if (ii > 0) {
+                sb.append(',');
+            }
+            String uri = "/pools/default/buckets/bucket-" + ii;
+            sb.append("{\"name\":\"bucket-").append(ii)
+                    .append("\",\"bucketType\":\"membase\",\"uri\":\"")
+                    .append(uri).append("\",\"stats\":{\"uri\":\"")
+                    .append(uri).append("/stats\"}}");
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Generate the stats of a bucket (the samples vary +-10% around the
+     * configured values)
+     */
+    private String generateStats() {
+        double[] values;
+        synchronized (this) {
+            values = stats.clone();
+        }
+        StringBuilder sb = new StringBuilder(
+                "{\"op\":{\"samples\":{");
+        for (int metric = 0; metric < values.length; ++metric) {
+            if (metric > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(BucketStats.METRICS[metric]).append("\":[");
+            for (int ii = 0; ii < SAMPLES; ++ii) {
+                if (ii > 0) {
+                    sb.append(',');
+                }
+                double value = values[metric]
+                        * (0.9 + random.nextDouble() * 0.2);
+                sb.append((long) value);
+            }
+            sb.append(']');
+        }
+        sb.append("},\"samplesCount\":").append(SAMPLES)
+                .append(",\"isPersistent\":true,\"lastTStamp\":")
+                .append(System.currentTimeMillis()).append("}}");
+        return sb.toString();
+    }
+
+    private void respond(OutputStream out, int code, boolean keepAlive,
+            String body) throws IOException {
+        byte[] data = body.getBytes("UTF-8");
+        writeHeaders(out, code, null, false, keepAlive, data.length);
+        out.write(data);
+    }
+
+    private void writeHeaders(OutputStream out, int code, String etag,
+            boolean gzip, boolean keepAlive, int length) throws IOException {
+        StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(code)
+                .append(code == 200 ? " OK" : code == 304 ? " Not Modified"
+                        : " Error").append("\r\n");
+        sb.append("Server: ClusterSimulator\r\n");
+        if (length >= 0) {
+            sb.append("Content-Type: application/json; charset=utf-8\r\n");
+            sb.append("Content-Length: ").append(length).append("\r\n");
+        }
+        if (gzip) {
+            sb.append("Content-Encoding: gzip\r\n");
+        }
+        if (etag != null) {
+            sb.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (!keepAlive) {
+            sb.append("Connection: close\r\n");
+        }
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+    }
+
+    /**
+     * Read a line of the request header
+     * 
+     * @return the line (without the line terminator), or null at the end of
+     *         the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() == MAX_LINE) {
+                throw new IOException("Header line too long");
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            /* ignore */
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = 8091;
+        int nodes = 3;
+        long seed = 0;
+        String script = null;
+        for (int ii = 0; ii < args.length; ++ii) {
+            if (ii + 1 < args.length && args[ii].equals("-p")) {
+                port = Integer.parseInt(args[++ii]);
+            } else if (ii + 1 < args.length && args[ii].equals("-n")) {
+                nodes = Integer.parseInt(args[++ii]);
+            } else if (ii + 1 < args.length && args[ii].equals("-s")) {
+                seed = Long.parseLong(args[++ii]);
+            } else if (args[ii].startsWith("-") || script != null) {
+                System.err.println("Usage: ClusterSimulator [-p port]"
+                        + " [-n nodes] [-s seed] [script]");
+                System.exit(1);
+            } else {
+                script = args[ii];
+            }
+        }
+
+        ClusterSimulator simulator = new ClusterSimulator(port, nodes, seed);
+        simulator.start();
+        if (script != null) {
+            FileReader in = new FileReader(script);
+            try {
+                simulator.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        // All of the simulator's threads are daemon threads
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of the health of all of the nodes in a cluster, keyed by the
+ * hostname of the node, and the progress of the rebalance running in the
+ * cluster (if any).
+ * 
+ * @author Trond Norbye
+ */
+public class ClusterSnapshot {
+    /**
+     * The time (System.currentTimeMillis()) the snapshot was taken
+     */
+    private final long timestamp;
+
+    /**
+     * The nodes in the cluster (in the order the server listed them)
+     */
+    private final Map<String, NodeHealth> nodes;
+
+    /**
+     * The nodes in the cluster, so that they may be iterated without
+     * creating an Iterator
+     */
+    private final NodeHealth[] array;
+
+    /**
+     * Set if the pool document says that a rebalance is running
+     */
+    private final boolean rebalancing;
+
+    /**
+     * The progress of the rebalance (null unless it is tracked)
+     */
+    private final RebalanceTracker.Progress rebalance;
+
+    /**
+     * Create a new ClusterSnapshot
+     * 
+     * @param timestamp
+     *            the time the snapshot was taken
+     * @param nodes
+     *            the nodes in the cluster, keyed by hostname
+     */
+    public ClusterSnapshot(long timestamp, LinkedHashMap<String, NodeHealth> nodes) {
+        this(timestamp, nodes, false);
+    }
+
+    /**
+     * Create a new ClusterSnapshot
+     * 
+     * @param timestamp
+     *            the time the snapshot was taken
+     * @param nodes
+     *            the nodes in the cluster, keyed by hostname
+     * @param rebalancing
+     *            set if a rebalance is running
+     */
+    public ClusterSnapshot(long timestamp,
+            LinkedHashMap<String, NodeHealth> nodes, boolean rebalancing) {
+        this.timestamp = timestamp;
+        this.nodes = Collections.unmodifiableMap(nodes);
+        array = nodes.values().toArray(new NodeHealth[nodes.size()]);
+        this.rebalancing = rebalancing;
+        rebalance = null;
+    }
+
+    /**
+     * Create a copy of a snapshot with the progress of the rebalance
+     * 
+     * @param snapshot
+     *            the snapshot to copy (the nodes are shared)
+     * @param rebalance
+     *            the progress of the rebalance
+     */
+    ClusterSnapshot(ClusterSnapshot snapshot,
+            RebalanceTracker.Progress rebalance) {
+        timestamp = snapshot.timestamp;
+        nodes = snapshot.nodes;
+        array = snapshot.array;
+        rebalancing = snapshot.rebalancing;
+        this.rebalance = rebalance;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get a node from the snapshot
+     * 
+     * @param hostname
+     *            the hostname identifying the node
+     * @return the node, or null if it isn't part of the snapshot
+     */
+    public NodeHealth getNode(String hostname) {
+        return nodes.get(hostname);
+    }
+
+    /**
+     * Get a node from the snapshot
+     * 
+     * @param index
+     *            the index of the node (in the order the server listed them)
+     * @return the node
+     */
+    public NodeHealth getNode(int index) {
+        return array[index];
+    }
+
+    /**
+     * @return all of the nodes in the snapshot
+     */
+    public Collection<NodeHealth> getNodes() {
+        return nodes.values();
+    }
+
+    /**
+     * @return the number of nodes in the snapshot
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return true if a rebalance is running in the cluster
+     */
+    public boolean isRebalancing() {
+        return rebalancing;
+    }
+
+    /**
+     * @return the progress of the rebalance (null if no rebalance is
+     *         running, or it isn't tracked)
+     */
+    public RebalanceTracker.Progress getRebalance() {
+        return rebalance;
+    }
+
+    /**
+     * @return the number of nodes reporting themselves as healthy
+     */
+    public int getHealthyCount() {
+        int ret = 0;
+        for (NodeHealth node : nodes.values()) {
+            if (node.isHealthy()) {
+                ++ret;
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.List;
+
+/**
+ * A cluster we're monitoring.
+ * 
+ * @author Trond Norbye
+ */
+public class ClusterTarget {
+    /**
+     * The hostname of the node we're using to talk to the cluster
+     */
+    private final String host;
+
+    /**
+     * The port number of the REST interface on the node
+     */
+    private final int port;
+
+    /**
+     * The key identifying the cluster (host:port)
+     */
+    private final String key;
+
+    /**
+     * The reader we're using to get the current health of the cluster. It
+     * is only used from the PollEngine (which never runs two polls of the
+     * same cluster concurrently).
+     */
+    private final PoolHealthReader healthReader;
+
+    /**
+     * The last known state of the cluster
+     */
+    private volatile State state = State.UNINITIALISED;
+
+    /**
+     * The time (System.currentTimeMillis()) the state was last updated
+     */
+    private volatile long lastUpdate;
+
+    /**
+     * Set while we've got a streaming connection to the cluster delivering
+     * the updates (so there is no need to poll it)
+     */
+    private volatile boolean streaming;
+
+    /**
+     * A description of the rule deciding the current state (null if none
+     * of the rules fired)
+     */
+    private volatile String reason;
+
+    /**
+     * The state of the health rules for the cluster
+     */
+    private volatile RuleEngine.Evaluation evaluation;
+
+    /**
+     * Used to find the nodes that changed since the previous snapshot (we
+     * don't care about the metrics changing)
+     */
+    private final SnapshotDiffer differ = new SnapshotDiffer(NodeChange.STATUS
+            | NodeChange.MEMBERSHIP | NodeChange.RESTARTED);
+
+    /**
+     * Create a new instance of the ClusterTarget
+     * 
+     * @param host
+     * @param port
+     */
+    public ClusterTarget(String host, int port) {
+        this.host = host;
+        this.port = port;
+        key = host + ":" + port;
+        healthReader = new PoolHealthReader(host, port, "default");
+        healthReader.setMetrics(Diagnostics.getMetrics(key));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public PoolHealthReader getHealthReader() {
+        return healthReader;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     * Update the state of the cluster
+     * 
+     * @param next
+     *            the new state
+     * @return the previous state
+     */
+    public State setState(State next) {
+        State prev = state;
+        state = next;
+        lastUpdate = System.currentTimeMillis();
+        return prev;
+    }
+
+    /**
+     * Compare the snapshot with the previous snapshot of the cluster. It may
+     * be called from any thread.
+     * 
+     * @param snapshot
+     *            the new snapshot of the cluster
+     * @return the nodes that changed since the previous snapshot
+     */
+    public List<NodeChange> diff(ClusterSnapshot snapshot) {
+        return differ.diff(snapshot);
+    }
+
+    /**
+     * @return the last snapshot of the cluster (null if we haven't received
+     *         one yet)
+     */
+    public ClusterSnapshot getSnapshot() {
+        return differ.getPrevious();
+    }
+
+    /**
+     * Restore the last known state of the cluster (saved before we were
+     * stopped), so that the first poll is compared with it
+     * 
+     * @param snapshot
+     *            the last known snapshot of the cluster
+     * @param state
+     *            the last known state of the cluster
+     */
+    public void restore(ClusterSnapshot snapshot, State state) {
+        differ.reset(snapshot);
+        this.state = state;
+        lastUpdate = snapshot.getTimestamp();
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = reason;
+    }
+
+    public RuleEngine.Evaluation getEvaluation() {
+        return evaluation;
+    }
+
+    public void setEvaluation(RuleEngine.Evaluation evaluation) {
+        this.evaluation = evaluation;
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The instrumentation of the poll path for all of the clusters. It lives
+ * for the lifetime of the process (like the StateCache) so that the
+ * diagnostics screen can show it without talking to the service, and so
+ * that it survives the service being restarted.
+ * 
+ * @author Trond Norbye
+ */
+public class Diagnostics {
+    private static final ConcurrentMap<String, PollMetrics> metrics = new ConcurrentHashMap<String, PollMetrics>();
+
+    /**
+     * The number of nodes listed per cluster in the report
+     */
+    private static final int MAX_NODES_SHOWN = 20;
+
+    /**
+     * The stats from the last collection from every node of each cluster
+     */
+    private static final ConcurrentMap<String, List<NodeStats>> nodeStats = new ConcurrentHashMap<String, List<NodeStats>>();
+
+    /**
+     * Sorts the nodes with the problems first, and then the slowest
+     */
+    private static final Comparator<NodeStats> worstFirst = new Comparator<NodeStats>() {
+        public int compare(NodeStats a, NodeStats b) {
+            if (a.getStatus() != b.getStatus()) {
+                return b.getStatus().ordinal() - a.getStatus().ordinal();
+            }
+            return a.getLatency() < b.getLatency() ? 1
+                    : a.getLatency() == b.getLatency() ? 0 : -1;
+        }
+    };
+
+    /**
+     * The time spent refreshing the aggregated state (and publishing it)
+     */
+    private static final LatencyHistogram refresh = new LatencyHistogram();
+
+    /**
+     * The time from an update of the list of clusters until it is about to
+     * be drawn
+     */
+    private static final LatencyHistogram render = new LatencyHistogram();
+
+    private static volatile long since = System.currentTimeMillis();
+
+    /**
+     * The number of times the device was woken up to poll the clusters
+     */
+    private static final AtomicLong wakeups = new AtomicLong();
+
+    private Diagnostics() {
+    }
+
+    /**
+     * Get the metrics for a cluster (they are created the first time they
+     * are requested)
+     * 
+     * @param key
+     *            the key identifying the cluster
+     * @return the metrics for the cluster
+     */
+    public static PollMetrics getMetrics(String key) {
+        PollMetrics ret = metrics.get(key);
+        if (ret == null) {
+            PollMetrics created = new PollMetrics(key);
+            ret = metrics.putIfAbsent(key, created);
+            if (ret == null) {
+                ret = created;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the histogram of the time spent refreshing the aggregated
+     *         state of the clusters
+     */
+    public static LatencyHistogram getRefreshLatency() {
+        return refresh;
+    }
+
+    /**
+     * @return the histogram of the time spent updating the list of the
+     *         clusters (per frame)
+     */
+    public static LatencyHistogram getRenderLatency() {
+        return render;
+    }
+
+    /**
+     * Publish the stats from the last collection from every node of a
+     * cluster
+     * 
+     * @param key
+     *            the key identifying the cluster
+     * @param nodes
+     *            the stats of each node
+     */
+    public static void setNodeStats(String key, List<NodeStats> nodes) {
+        nodeStats.put(key, nodes);
+    }
+
+    /**
+     * @param key
+     *            the key identifying the cluster
+     * @return the stats from the last collection from every node of the
+     *         cluster (null if they're not collected)
+     */
+    public static List<NodeStats> getNodeStats(String key) {
+        return nodeStats.get(key);
+    }
+
+    /**
+     * Count a wakeup of the device (an alarm firing to poll the clusters)
+     */
+    public static void recordWakeup() {
+        wakeups.incrementAndGet();
+    }
+
+    public static long getWakeups() {
+        return wakeups.get();
+    }
+
+    /**
+     * @return the number of bytes received from all of the clusters
+     */
+    public static long getBytesReceived() {
+        long ret = 0;
+        for (PollMetrics m : metrics.values()) {
+            ret += m.getCount(PollMetrics.Counter.BYTES);
+        }
+        return ret;
+    }
+
+    /**
+     * Forget everything recorded
+     */
+    public static void reset() {
+        for (PollMetrics m : metrics.values()) {
+            m.reset();
+        }
+        refresh.reset();
+        render.reset();
+        wakeups.set(0);
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * @return a human readable report of everything we've recorded
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Couchbase health diagnostics\n");
+        sb.append("Created: ").append(new Date()).append('\n');
+        sb.append("Recording since: ").append(new Date(since)).append('\n');
+
+        StateCache.Entry entry = StateCache.get();
+        if (entry != null) {
+            sb.append("State: ").append(entry.getState()).append('\n');
+            for (int ii = 0; ii < entry.size(); ++ii) {
+                sb.append("  ").append(entry.getKey(ii)).append(' ')
+                        .append(entry.getState(ii)).append(" (")
+                        .append(new Date(entry.getLastUpdate(ii)))
+                        .append(")\n");
+            }
+        }
+        // The cost of monitoring (per hour, so that runs of different
+        // length may be compared)
+        double hours = Math.max(1, System.currentTimeMillis() - since) / 3600000.0;
+        long w = wakeups.get();
+        long bytes = getBytesReceived();
+        sb.append(String.format(Locale.US,
+                "Wakeups: %d (%.1f/hour)\nReceived: %d bytes (%.0f/hour)\n",
+                w, w / hours, bytes, bytes / hours));
+        for (EventBus.Subscription subscription : EventBus.getDefault()
+                .getSubscriptions()) {
+            sb.append("Subscriber: ").append(subscription).append('\n');
+        }
+
+        sb.append('\n');
+        PollMetrics.dumpHeader(sb);
+        PollMetrics.dump(sb, "refresh", refresh);
+        if (render.getCount() > 0) {
+            PollMetrics.dump(sb, "render", render);
+        }
+
+        // Sort them by the key so the report is stable
+        for (Map.Entry<String, PollMetrics> m : new TreeMap<String, PollMetrics>(
+                metrics).entrySet()) {
+            sb.append('\n');
+            m.getValue().dump(sb);
+            List<NodeStats> nodes = nodeStats.get(m.getKey());
+            if (nodes != null) {
+                dumpNodes(sb, nodes);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the stats of the nodes in a cluster (the ones with problems and
+     * the slowest first)
+     */
+    private static void dumpNodes(StringBuilder sb, List<NodeStats> nodes) {
+        int[] counts = new int[NodeStats.Status.values().length];
+        for (NodeStats node : nodes) {
+            ++counts[node.getStatus().ordinal()];
+        }
+        sb.append(String.format(Locale.US,
+                "  nodes: %d ok, %d stragglers, %d failed\n",
+                counts[NodeStats.Status.OK.ordinal()],
+                counts[NodeStats.Status.STRAGGLER.ordinal()],
+                counts[NodeStats.Status.FAILED.ordinal()]));
+        sb.append(String.format(Locale.US,
+                "  %-24s %-9s %7s %6s %10s %10s %9s\n", "(node)", "status",
+                "ms", "cpu%", "mem used", "items", "ops"));
+
+        List<NodeStats> sorted = new ArrayList<NodeStats>(nodes);
+        Collections.sort(sorted, worstFirst);
+        int shown = Math.min(sorted.size(), MAX_NODES_SHOWN);
+        for (int ii = 0; ii < shown; ++ii) {
+            NodeStats node = sorted.get(ii);
+            sb.append(String.format(Locale.US,
+                    "  %-24s %-9s %7d %6.1f %10d %10d %9.1f\n",
+                    node.getHostname(),
+                    node.getStatus().name().toLowerCase(Locale.US),
+                    node.getLatency(), node.getCpu(), node.getMemUsed(),
+                    node.getItems(), node.getOps()));
+            if (node.getError() != null) {
+                sb.append("    ").append(node.getError()).append('\n');
+            }
+        }
+        if (sorted.size() > shown) {
+            sb.append("  ... and ").append(sorted.size() - shown)
+                    .append(" more\n");
+        }
+    }
+}
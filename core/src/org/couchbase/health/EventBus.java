@@ -0,0 +1,587 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * An in-process stream of typed events about the clusters (the state
+ * changes, the node changes, the failed polls and the snapshot of every
+ * poll), published by the HealthMonitor so that any number of consumers
+ * (the activity, the widget, the history) may follow the clusters without
+ * polling them or serializing anything.
+ * 
+ * Every subscription has its own mailbox, drained on the executor of the
+ * subscriber. The mailbox keeps only the last event per key (see
+ * Event.getKey(), for instance the cluster), so a slow subscriber only
+ * sees the latest state of everything instead of a backlog, and the
+ * publisher never blocks. The mailbox is bounded as well: when it is full
+ * the oldest event is dropped.
+ * 
+ * The bus retains the last event per key of the types where the latest
+ * value is all that matters (the states and the snapshots), and replays
+ * them to new subscribers.
+ * 
+ * @author Trond Norbye
+ */
+public class EventBus {
+    /**
+     * The base class of all of the events
+     */
+    public static abstract class Event {
+        private final String cluster;
+        private final long timestamp;
+
+        protected Event(String cluster) {
+            this.cluster = cluster;
+            timestamp = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the key of the cluster the event is about (or null if it
+         *         is about all of them)
+         */
+        public String getCluster() {
+            return cluster;
+        }
+
+        /**
+         * @return the time the event was created
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the key of the event (a newer event of the same type with
+         *         the same key replaces this one if the subscriber didn't
+         *         get it yet)
+         */
+        public Object getKey() {
+            return cluster;
+        }
+
+        /**
+         * @return true if the bus should keep the last event with the key
+         *         for new subscribers
+         */
+        public boolean isRetained() {
+            return false;
+        }
+    }
+
+    /**
+     * The state of a cluster (or the aggregated state of all of them)
+     * changed
+     */
+    public static class StateChanged extends Event {
+        private final State previous;
+        private final State state;
+        private final String reason;
+
+        /**
+         * Create a new StateChanged
+         * 
+         * @param cluster
+         *            the cluster (null for the aggregated state)
+         * @param previous
+         *            the previous state
+         * @param state
+         *            the new state
+         * @param reason
+         *            why the cluster is in the state (may be null)
+         */
+        public StateChanged(String cluster, State previous, State state,
+                String reason) {
+            super(cluster);
+            this.previous = previous;
+            this.state = state;
+            this.reason = reason;
+        }
+
+        public State getPrevious() {
+            return previous;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public boolean isRetained() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return (getCluster() == null ? "all clusters" : getCluster())
+                    + " is " + state + (reason == null ? "" : ": " + reason);
+        }
+    }
+
+    /**
+     * A node in a cluster changed
+     */
+    public static class NodeChanged extends Event {
+        private final NodeChange change;
+        private final String key;
+
+        public NodeChanged(String cluster, NodeChange change) {
+            super(cluster);
+            this.change = change;
+            key = cluster + "/" + change.getHostname();
+        }
+
+        public NodeChange getChange() {
+            return change;
+        }
+
+        /**
+         * @return the cluster and the hostname of the node
+         */
+        @Override
+        public Object getKey() {
+            return key;
+        }
+
+        @Override
+        public String toString() {
+            return getCluster() + ": " + change;
+        }
+    }
+
+    /**
+     * A poll of a cluster failed
+     */
+    public static class PollFailed extends Event {
+        private final State state;
+        private final String error;
+
+        /**
+         * Create a new PollFailed
+         * 
+         * @param cluster
+         *            the cluster
+         * @param state
+         *            the state of the cluster after the poll
+         * @param error
+         *            what went wrong (may be null)
+         */
+        public PollFailed(String cluster, State state, String error) {
+            super(cluster);
+            this.state = state;
+            this.error = error;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Failed to poll " + getCluster()
+                    + (error == null ? "" : ": " + error);
+        }
+    }
+
+    /**
+     * The snapshot (and the state) of a cluster after a poll, or after the
+     * server pushed an update
+     */
+    public static class MetricsSample extends Event {
+        private final ClusterSnapshot snapshot;
+        private final State state;
+        private final String reason;
+
+        public MetricsSample(String cluster, ClusterSnapshot snapshot,
+                State state, String reason) {
+            super(cluster);
+            this.snapshot = snapshot;
+            this.state = state;
+            this.reason = reason;
+        }
+
+        public ClusterSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return why the cluster is in the state (may be null)
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public boolean isRetained() {
+            return true;
+        }
+    }
+
+    /**
+     * The alert pipeline delivered a batch of alerts
+     */
+    public static class AlertsDelivered extends Event {
+        private final List<AlertPipeline.Alert> alerts;
+        private final State state;
+
+        /**
+         * Create a new AlertsDelivered
+         * 
+         * @param alerts
+         *            the alerts
+         * @param state
+         *            the aggregated state of all of the clusters
+         */
+        public AlertsDelivered(List<AlertPipeline.Alert> alerts, State state) {
+            super(null);
+            this.alerts = alerts;
+            this.state = state;
+        }
+
+        public List<AlertPipeline.Alert> getAlerts() {
+            return alerts;
+        }
+
+        public State getState() {
+            return state;
+        }
+    }
+
+    /**
+     * The interface the subscribers implement
+     */
+    public interface Subscriber<T extends Event> {
+        /**
+         * Called on the executor of the subscription for every event the
+         * subscriber gets
+         * 
+         * @param event
+         *            the event
+         */
+        void onEvent(T event);
+    }
+
+    /**
+     * The key of an event in a mailbox (a subscriber may get events of
+     * different types with the same key)
+     */
+    private static class MailboxKey {
+        private final Class<?> type;
+        private final Object key;
+
+        MailboxKey(Event event) {
+            type = event.getClass();
+            key = event.getKey();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MailboxKey)) {
+                return false;
+            }
+            MailboxKey other = (MailboxKey) obj;
+            return type == other.type
+                    && (key == null ? other.key == null : key.equals(other.key));
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + (key == null ? 0 : key.hashCode());
+        }
+    }
+
+    /**
+     * A subscription (and the mailbox of the subscriber)
+     */
+    public class Subscription implements Runnable {
+        private final Class<? extends Event> type;
+        private final Executor executor;
+        private final Subscriber<Event> subscriber;
+        private final int capacity;
+
+        /**
+         * The events not delivered yet (by key, oldest first)
+         */
+        private final LinkedHashMap<MailboxKey, Event> mailbox = new LinkedHashMap<MailboxKey, Event>();
+
+        /**
+         * The events being delivered (only used by the executor)
+         */
+        private final List<Event> batch = new ArrayList<Event>();
+
+        /**
+         * Set while the mailbox is scheduled to be drained
+         */
+        private boolean scheduled;
+        private volatile boolean cancelled;
+
+        private long delivered;
+        private long conflated;
+        private long dropped;
+
+        private Subscription(Class<? extends Event> type, Executor executor,
+                Subscriber<Event> subscriber, int capacity) {
+            this.type = type;
+            this.executor = executor;
+            this.subscriber = subscriber;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Stop the delivery of events (the events in the mailbox are
+         * discarded)
+         */
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (this) {
+                mailbox.clear();
+            }
+        }
+
+        /**
+         * @return the number of events delivered
+         */
+        public synchronized long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * @return the number of events replaced by a newer one before they
+         *         were delivered
+         */
+        public synchronized long getConflated() {
+            return conflated;
+        }
+
+        /**
+         * @return the number of events dropped because the mailbox was
+         *         full
+         */
+        public synchronized long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Put an event in the mailbox, and schedule the delivery unless
+         * it is already scheduled
+         */
+        private void offer(Event event) {
+            if (cancelled || !type.isInstance(event)) {
+                return;
+            }
+            synchronized (this) {
+                MailboxKey key = new MailboxKey(event);
+                if (mailbox.containsKey(key)) {
+                    ++conflated;
+                } else if (mailbox.size() == capacity) {
+                    Iterator<MailboxKey> iter = mailbox.keySet().iterator();
+                    iter.next();
+                    iter.remove();
+                    ++dropped;
+                }
+                mailbox.put(key, event);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            executor.execute(this);
+        }
+
+        /**
+         * Deliver the events in the mailbox (on the executor)
+         */
+        public void run() {
+            synchronized (this) {
+                batch.addAll(mailbox.values());
+                mailbox.clear();
+            }
+            try {
+                for (int ii = 0; ii < batch.size() && !cancelled; ++ii) {
+                    subscriber.onEvent(batch.get(ii));
+                }
+            } finally {
+                boolean more;
+                synchronized (this) {
+                    delivered += batch.size();
+                    batch.clear();
+                    more = !mailbox.isEmpty() && !cancelled;
+                    scheduled = more;
+                }
+                if (more) {
+                    // Let the executor run other tasks before the next
+                    // batch
+                    executor.execute(this);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return type.getSimpleName() + " delivered " + getDelivered()
+                    + ", conflated " + getConflated() + ", dropped "
+                    + getDropped();
+        }
+    }
+
+    /**
+     * The default capacity of the mailbox of a subscription
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final EventBus defaultBus = new EventBus();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * The last event per key of the retained types (by type)
+     */
+    private final Map<Class<? extends Event>, Map<Object, Event>> retained = new HashMap<Class<? extends Event>, Map<Object, Event>>();
+
+    /**
+     * @return the bus shared by the service and the activities in the
+     *         process
+     */
+    public static EventBus getDefault() {
+        return defaultBus;
+    }
+
+    /**
+     * Subscribe to the events of a type (and its subtypes)
+     * 
+     * @param type
+     *            the type of events
+     * @param executor
+     *            where to call the subscriber (it must run the tasks one at
+     *            the time)
+     * @param subscriber
+     *            the subscriber
+     * @return the subscription
+     */
+    public <T extends Event> Subscription subscribe(Class<T> type,
+            Executor executor, Subscriber<? super T> subscriber) {
+        return subscribe(type, executor, subscriber, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Subscribe to the events of a type (and its subtypes)
+     * 
+     * @param type
+     *            the type of events
+     * @param executor
+     *            where to call the subscriber (it must run the tasks one at
+     *            the time)
+     * @param subscriber
+     *            the subscriber
+     * @param capacity
+     *            the largest number of events in the mailbox
+     * @return the subscription
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Event> Subscription subscribe(Class<T> type,
+            Executor executor, Subscriber<? super T> subscriber, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: "
+                    + capacity);
+        }
+        // Only events of the type are offered to the subscription
+        Subscription ret = new Subscription(type, executor,
+                (Subscriber<Event>) subscriber, capacity);
+
+        // Replay the retained events while no one publishes one, so a
+        // replayed event never replaces a newer one
+        synchronized (retained) {
+            subscriptions.add(ret);
+            for (Map.Entry<Class<? extends Event>, Map<Object, Event>> entry : retained
+                    .entrySet()) {
+                if (type.isAssignableFrom(entry.getKey())) {
+                    for (Event event : entry.getValue().values()) {
+                        ret.offer(event);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Publish an event to all of the subscribers of its type (from any
+     * thread)
+     * 
+     * @param event
+     *            the event
+     */
+    public void publish(Event event) {
+        if (event.isRetained()) {
+            synchronized (retained) {
+                Map<Object, Event> events = retained.get(event.getClass());
+                if (events == null) {
+                    events = new HashMap<Object, Event>();
+                    retained.put(event.getClass(), events);
+                }
+                events.put(event.getKey(), event);
+                offer(event);
+            }
+        } else {
+            offer(event);
+        }
+    }
+
+    private void offer(Event event) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Forget the retained events (for instance when the clusters we
+     * monitor change)
+     */
+    public void clearRetained() {
+        synchronized (retained) {
+            retained.clear();
+        }
+    }
+
+    /**
+     * @return the current subscriptions
+     */
+    public List<Subscription> getSubscriptions() {
+        return Collections.unmodifiableList(subscriptions);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Run the HealthMonitor on a plain JVM (for instance on a box next to the
+ * clusters) without any of the Android classes:
+ * 
+ * <pre>
+ * javac -d classes core/src/org/couchbase/health/*.java
+ * java -cp classes:core/src org.couchbase.health.HeadlessMonitor \
+ *      -i 60 -d /var/lib/couchbase-health node1:8091,node2:8091
+ * </pre>
+ * 
+ * (or with -S script instead of the list of clusters to monitor a
+ * simulated cluster, see ClusterSimulator). The default rules are read from
+ * health_rules.txt next to the classes (hence core/src on the classpath),
+ * -r file uses other rules. With -x file the snapshot of every poll is
+ * exported to the file (see SnapshotLog), and -p file prints an export.
+ * 
+ * The state changes and the alerts are written to the log, and the
+ * diagnostics (the timings of the polls, and with -n the stats collected
+ * from every node) are written to stderr when the monitor is stopped. The
+ * monitor uses a single thread for its callbacks, and the PollEngine's
+ * threads for the network IO, so it can monitor many clusters with a fixed
+ * number of threads.
+ * 
+ * @author Trond Norbye
+ */
+public class HeadlessMonitor {
+    private static final Logger LOG = Logger.getLogger("org.couchbase.health");
+
+    /**
+     * Stores the seeds of the clusters in a properties file
+     */
+    private static class PropertiesStore implements HealthMonitor.Store {
+        private final File file;
+        private final Properties properties = new Properties();
+
+        PropertiesStore(File file) {
+            this.file = file;
+            if (file.exists()) {
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        properties.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    LOG.warning("Failed to read " + file + ": " + e);
+                }
+            }
+        }
+
+        public String get(String name) {
+            return properties.getProperty(name);
+        }
+
+        public void putAll(Map<String, String> values) {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    properties.remove(entry.getKey());
+                } else {
+                    properties.setProperty(entry.getKey(), entry.getValue());
+                }
+            }
+            try {
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    properties.store(out, "Couchbase health monitor");
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                LOG.warning("Failed to write " + file + ": " + e);
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: HeadlessMonitor [-i interval] [-s] [-n]"
+                + " [-r rules] [-d datadir] [-x export] [-S script]"
+                + " host:port[,host:port...]");
+        System.err.println("       HeadlessMonitor -p export");
+        System.err.println("\t-i interval\tthe poll interval in seconds"
+                + " (default 300)");
+        System.err.println("\t-s\t\tuse streaming updates");
+        System.err.println("\t-n\t\tcollect the stats from every node");
+        System.err.println("\t-r rules\tthe file containing the health rules"
+                + " (default health_rules.txt on the classpath)");
+        System.err.println("\t-d datadir\twhere to store the history, the"
+                + " seeds and the last known state");
+        System.err.println("\t-x export\texport the snapshot of every poll"
+                + " to a file");
+        System.err.println("\t-p export\tprint the snapshots in an export");
+        System.err.println("\t-S script\tmonitor a simulated cluster"
+                + " running the script (see ClusterSimulator)");
+        System.exit(1);
+    }
+
+    /**
+     * Print the snapshots in a file written with -x
+     */
+    private static void print(File file) throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd HH:mm:ss");
+        int count = SnapshotLog.read(file, new SnapshotLog.Visitor() {
+            public boolean visit(String key, ClusterSnapshot snapshot,
+                    State state) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(format.format(new Date(snapshot.getTimestamp())))
+                        .append(' ').append(key).append(' ').append(state)
+                        .append(' ').append(snapshot.getHealthyCount())
+                        .append('/').append(snapshot.size())
+                        .append(" healthy");
+                if (snapshot.getRebalance() != null) {
+                    sb.append(", ").append(snapshot.getRebalance());
+                }
+                System.out.println(sb);
+                return true;
+            }
+        });
+        System.err.println(count + " snapshots");
+    }
+
+    public static void main(String[] args) throws IOException {
+        int interval = 5 * 60;
+        boolean streaming = false;
+        boolean nodeStats = false;
+        String rulesFile = null;
+        String dataDir = null;
+        String simulatorScript = null;
+        String exportFile = null;
+        StringBuilder spec = new StringBuilder();
+
+        for (int ii = 0; ii < args.length; ++ii) {
+            if (args[ii].equals("-s")) {
+                streaming = true;
+            } else if (args[ii].equals("-n")) {
+                nodeStats = true;
+            } else if (ii + 1 < args.length && args[ii].equals("-i")) {
+                interval = Integer.parseInt(args[++ii]);
+            } else if (ii + 1 < args.length && args[ii].equals("-r")) {
+                rulesFile = args[++ii];
+            } else if (ii + 1 < args.length && args[ii].equals("-d")) {
+                dataDir = args[++ii];
+            } else if (ii + 1 < args.length && args[ii].equals("-x")) {
+                exportFile = args[++ii];
+            } else if (ii + 1 < args.length && args[ii].equals("-p")) {
+                print(new File(args[++ii]));
+                return;
+            } else if (ii + 1 < args.length && args[ii].equals("-S")) {
+                simulatorScript = args[++ii];
+            } else if (args[ii].startsWith("-")) {
+                usage();
+            } else {
+                spec.append(args[ii]).append(' ');
+            }
+        }
+
+        if (simulatorScript != null) {
+            ClusterSimulator simulator = new ClusterSimulator(0, 3, 0);
+            simulator.start();
+            FileReader in = new FileReader(simulatorScript);
+            try {
+                simulator.load(in);
+            } finally {
+                in.close();
+            }
+            spec.append(simulator.getSeed()).append(' ');
+        }
+
+        ClusterRegistry registry = new ClusterRegistry();
+        try {
+            for (ClusterTarget target : ClusterRegistry.parse(spec.toString())) {
+                registry.add(target);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid cluster list: " + spec);
+            System.exit(1);
+        }
+        if (registry.size() == 0) {
+            usage();
+        }
+
+        RuleEngine rules;
+        if (rulesFile == null) {
+            try {
+                rules = RuleEngine.compileDefaults();
+            } catch (IOException e) {
+                LOG.warning("Failed to load the default rules (" + e
+                        + "), using the fallback rules");
+                rules = RuleEngine.compile(new StringReader(
+                        RuleEngine.FALLBACK_RULES));
+            }
+        } else {
+            FileReader in = new FileReader(rulesFile);
+            try {
+                rules = RuleEngine.compile(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        ExecutorService callbacks = Executors
+                .newSingleThreadExecutor(new DaemonThreadFactory(
+                        "couchbase-monitor"));
+        final HealthMonitor monitor = new HealthMonitor(registry, rules,
+                callbacks, new HealthMonitor.Listener() {
+                    public void onStateChanged(State state) {
+                        LOG.info("The state is now " + state);
+                    }
+
+                    public void onAlerts(List<AlertPipeline.Alert> batch,
+                            State state) {
+                        for (AlertPipeline.Alert alert : batch) {
+                            LOG.warning(alert.toString());
+                        }
+                    }
+                });
+
+        if (dataDir != null) {
+            File dir = new File(dataDir);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir);
+            }
+            monitor.setStore(new PropertiesStore(new File(dir,
+                    "seeds.properties")));
+            monitor.setHistory(new File(dir, "history.dat"));
+            monitor.setLastKnown(new File(dir, "snapshots.dat"));
+        }
+        if (exportFile != null) {
+            monitor.setExport(new SnapshotLog(new BufferedOutputStream(
+                    new FileOutputStream(exportFile))));
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                monitor.shutdown();
+                System.err.print(Diagnostics.dump());
+            }
+        });
+
+        if (nodeStats) {
+            monitor.setNodeStats(NodeStatsCollector.DEFAULT_MAX_IN_FLIGHT,
+                    NodeStatsCollector.DEFAULT_DEADLINE);
+        }
+        monitor.start(interval * 1000L, streaming);
+
+        // All of the monitor's threads are daemon threads
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,1104 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * The HealthMonitor polls (or streams) the state of all of the clusters in a
+ * registry, runs the health rules, records the history and feeds the alert
+ * pipeline. It doesn't depend on Android, so the same monitor runs in the
+ * StateMonitorService on a phone and in the HeadlessMonitor on a plain JVM.
+ * 
+ * The network IO runs on the PollEngine's threads. The state of the
+ * monitor is only updated from the callback executor (the main thread on
+ * Android), and the listener is called from the same executor. Everything
+ * that happens to the clusters is published to the EventBus (if any) as
+ * well, for the consumers that don't own the monitor.
+ * 
+ * @author Trond Norbye
+ */
+public class HealthMonitor {
+    /**
+     * Callback interface used to tell the embedding application about the
+     * state of the clusters (called from the callback executor)
+     */
+    public interface Listener {
+        /**
+         * Called when the aggregated state of all of the clusters changed
+         * 
+         * @param state
+         *            the new state
+         */
+        void onStateChanged(State state);
+
+        /**
+         * Called when the alert pipeline delivers a batch of alerts
+         * 
+         * @param batch
+         *            the alerts
+         * @param state
+         *            the aggregated state of all of the clusters
+         */
+        void onAlerts(List<AlertPipeline.Alert> batch, State state);
+    }
+
+    /**
+     * Persistent storage for the information we learn about the clusters
+     * (the seeds and the pool URIs)
+     */
+    public interface Store {
+        /**
+         * @param name
+         *            the name of the value
+         * @return the value (or null if it isn't stored)
+         */
+        String get(String name);
+
+        /**
+         * Store the values
+         * 
+         * @param values
+         *            the values to store
+         */
+        void putAll(Map<String, String> values);
+    }
+
+    private static final Logger LOG = Logger.getLogger("org.couchbase.health");
+
+    /**
+     * The number of milliseconds to wait for a seed before we send the
+     * request to the next seed in parallel
+     */
+    private static final long HEDGE_DELAY = 2000;
+
+    /**
+     * The alerts are collected for this many milliseconds before they are
+     * delivered
+     */
+    private static final long ALERT_WINDOW = 30 * 1000;
+
+    /**
+     * The number of milliseconds we collect the changes of the clusters
+     * before we save the last known state (it is saved at most once in this
+     * period, and when we're shut down)
+     */
+    private static final long SAVE_DELAY = 10 * 1000;
+
+    /**
+     * The number of milliseconds shutdown() waits for the last known state
+     * to be saved (the save continues in the background after that)
+     */
+    private static final long SHUTDOWN_TIMEOUT = 2000;
+
+    /**
+     * The number of batches we may deliver in a row before we're rate
+     * limited
+     */
+    private static final int ALERT_BURST = 3;
+
+    /**
+     * The number of milliseconds before we may deliver another batch once
+     * the burst is used
+     */
+    private static final long ALERT_REFILL = 10 * 60 * 1000;
+
+    /**
+     * The key used to schedule the flush of the alert pipeline in the
+     * PollScheduler (the clusters use host:port)
+     */
+    private static final String ALERT_KEY = "alerts";
+
+    /**
+     * All of the clusters we're monitoring
+     */
+    private final ClusterRegistry registry;
+
+    /**
+     * The rules used to compute the state of a cluster
+     */
+    private final RuleEngine rules;
+
+    /**
+     * Where the results of the polls and the listener callbacks run
+     */
+    private final Executor callbackExecutor;
+
+    private final Listener listener;
+
+    /**
+     * The engine running the network IO on its own threads
+     */
+    private final PollEngine pollEngine;
+
+    /**
+     * The timer wheel scheduling the polls of all of the clusters
+     */
+    private final PollScheduler pollScheduler;
+
+    /**
+     * The threads running the hedged requests to the seeds of the clusters.
+     * The first request runs on the poll thread, and the hedge is skipped
+     * (not queued) when all of the threads are busy.
+     */
+    private final ExecutorService hedgeExecutor;
+
+    /**
+     * The timer starting the hedged requests
+     */
+    private final ScheduledExecutorService hedgeTimer;
+
+    /**
+     * The thread reading and writing the files (so that we don't block the
+     * caller of start() and shutdown() or the callback executor, which may
+     * be the main thread of the application)
+     */
+    private final ScheduledExecutorService writer;
+
+    /**
+     * Released once the history is opened and the last known state is
+     * restored, so that no poll starts before
+     */
+    private final CountDownLatch restored = new CountDownLatch(1);
+
+    /**
+     * Set while a save of the last known state is scheduled
+     */
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    /**
+     * The threads running the requests collecting the stats from every node
+     * (null unless enabled). The number of requests in flight is bounded
+     * per cluster by the NodeStatsCollector.
+     */
+    private ExecutorService nodeStatsExecutor;
+    private int nodeStatsInFlight;
+    private long nodeStatsDeadline;
+
+    /**
+     * Coalesces, deduplicates and rate limits the alerts
+     */
+    private final AlertPipeline alertPipeline;
+
+    /**
+     * The file to record the history in (null if we don't record it)
+     */
+    private File historyFile;
+
+    /**
+     * The history of all of the clusters (null until it is opened on the
+     * writer thread, or if we don't record it)
+     */
+    private volatile HistoryStore history;
+
+    /**
+     * Where to persist the seeds (null if we don't persist them)
+     */
+    private Store store;
+
+    /**
+     * The file holding the last known state of the clusters (null if we
+     * don't persist it)
+     */
+    private File lastKnown;
+
+    /**
+     * Where to export every snapshot of the clusters (null if we don't
+     * export them)
+     */
+    private SnapshotLog export;
+
+    /**
+     * Where to publish the events about the clusters (null if we don't
+     * publish them)
+     */
+    private EventBus events;
+
+    /**
+     * The aggregated state of all of the clusters
+     */
+    private State state = State.UNINITIALISED;
+
+    /**
+     * The pollers for each cluster (so that we may request an immediate poll
+     * when we lose a streaming connection)
+     */
+    private final Map<String, Poller> pollers = new HashMap<String, Poller>();
+
+    /**
+     * The watchers holding streaming connections to the clusters (empty
+     * unless streaming is enabled)
+     */
+    private final List<StreamingWatcher> watchers = new ArrayList<StreamingWatcher>();
+
+    /**
+     * The clusters we're still waiting for in the current pollAll() batch
+     * (only used on the callback executor)
+     */
+    private final Set<String> batch = new HashSet<String>();
+
+    /**
+     * The callbacks to run once the current batch is complete
+     */
+    private final List<Runnable> batchDone = new ArrayList<Runnable>();
+
+    /**
+     * The Runnable object to use to request a refresh of the state of a
+     * cluster. It runs on the scheduler thread, and the poll itself runs on
+     * one of the PollEngine's threads. The next poll is scheduled when the
+     * result arrives, with a delay decided by the cluster's poll policy.
+     * While the cluster is streaming the nodes are pushed to us, so the poll
+     * only refreshes the bucket stats (which aren't pushed).
+     */
+    private class Poller implements Runnable, Callable<PollResult> {
+        private final ClusterTarget target;
+        private final PollPolicy policy;
+
+        Poller(ClusterTarget target, PollPolicy policy) {
+            this.target = target;
+            this.policy = policy;
+        }
+
+        public void run() {
+            if (!pollEngine.submit(target.getKey(), this, pollListener)) {
+                pollScheduler.schedule(target.getKey(), policy.currentDelay(),
+                        this);
+            }
+        }
+
+        public PollResult call() {
+            awaitRestored();
+            ClusterSnapshot snapshot = target.getSnapshot();
+            if (target.isStreaming() && snapshot != null) {
+                return refreshBuckets(target, snapshot);
+            }
+            return doGetState(target);
+        }
+
+        void reschedule(State state) {
+            pollScheduler.schedule(target.getKey(), policy.nextDelay(state),
+                    this);
+        }
+    }
+
+    /**
+     * The listener receiving the result of the poll on the callback executor
+     */
+    private final PollEngine.Listener pollListener = new PollEngine.Listener() {
+        public void onPollComplete(String key, PollResult result, long latency) {
+            LOG.fine("Poll of " + key + " took " + latency + "ms ("
+                    + pollEngine + ")");
+            updateState(key, result, latency);
+            Poller poller = pollers.get(key);
+            if (poller != null) {
+                poller.reschedule(result.getState());
+            }
+            if (batch.remove(key) && batch.isEmpty()) {
+                completeBatch();
+            }
+        }
+    };
+
+    /**
+     * The listener receiving the evaluation of the snapshots pushed to the
+     * StreamingWatchers on the callback executor
+     */
+    private final PollEngine.Listener pushListener = new PollEngine.Listener() {
+        public void onPollComplete(String key, PollResult result, long latency) {
+            updateState(key, result, 0);
+        }
+    };
+
+    /**
+     * The listener receiving the states pushed to the StreamingWatchers. The
+     * snapshots are evaluated by the PollEngine (after the poll of the
+     * cluster running, if any), so the rules, the reason and the diff of a
+     * cluster are never computed by two threads at the same time, and the
+     * results are delivered in order.
+     */
+    private final StreamingWatcher.Listener streamListener = new StreamingWatcher.Listener() {
+        public void onSnapshot(final ClusterTarget target,
+                final ClusterSnapshot snapshot) {
+            pollEngine.submitAfter(target.getKey(), new Callable<PollResult>() {
+                public PollResult call() {
+                    awaitRestored();
+                    return new PollResult(evaluate(target, snapshot, target
+                            .getHealthReader().getLastBucketStats()), snapshot,
+                            target.diff(snapshot));
+                }
+            }, pushListener);
+        }
+
+        public void onDisconnected(ClusterTarget target) {
+            LOG.fine("Lost streaming connection to " + target
+                    + ", falling back to polling");
+            Poller poller = pollers.get(target.getKey());
+            if (poller != null) {
+                pollScheduler.schedule(target.getKey(), 0, poller);
+            }
+        }
+    };
+
+    /**
+     * Deliver the alerts collected by the alert pipeline (runs on the
+     * callback executor)
+     */
+    private final Runnable flushAlerts = new Runnable() {
+        public void run() {
+            long delay = alertPipeline.flush();
+            if (delay >= 0) {
+                scheduleFlush(delay);
+            }
+        }
+    };
+
+    /**
+     * Create a new HealthMonitor
+     * 
+     * @param registry
+     *            the clusters to monitor
+     * @param rules
+     *            the rules used to compute the state of a cluster
+     * @param callbackExecutor
+     *            where to update the state and call the listener (it must
+     *            run the tasks one at the time, in order)
+     * @param listener
+     *            the listener to notify
+     */
+    public HealthMonitor(ClusterRegistry registry, RuleEngine rules,
+            Executor callbackExecutor, final Listener listener) {
+        this.registry = registry;
+        this.rules = rules;
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+        pollEngine = new PollEngine(4, Math.max(16, registry.size()),
+                callbackExecutor);
+        pollScheduler = new PollScheduler(250, 512);
+        hedgeExecutor = new ThreadPoolExecutor(0, 4, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new DaemonThreadFactory(
+                        "couchbase-hedge"));
+        hedgeTimer = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("couchbase-hedge-timer"));
+        ScheduledThreadPoolExecutor w = new ScheduledThreadPoolExecutor(1,
+                new DaemonThreadFactory("couchbase-writer"));
+        // shutdown() saves the state itself, so drop the scheduled save
+        w.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        writer = w;
+        alertPipeline = new AlertPipeline(ALERT_WINDOW, ALERT_BURST,
+                ALERT_REFILL, Clock.SYSTEM, new AlertPipeline.Sink() {
+                    public void deliver(List<AlertPipeline.Alert> batch) {
+                        LOG.info("Delivering " + batch.size() + " alerts ("
+                                + alertPipeline + ")");
+                        listener.onAlerts(batch, state);
+                        publish(new EventBus.AlertsDelivered(batch, state));
+                    }
+                });
+    }
+
+    /**
+     * Record the history of the clusters (must be called before start()).
+     * The file is opened on the writer thread when we start.
+     * 
+     * @param file
+     *            the file to record the history in
+     */
+    public void setHistory(File file) {
+        historyFile = file;
+    }
+
+    /**
+     * Persist the seeds of the clusters (must be called before start())
+     * 
+     * @param store
+     *            where to persist the seeds
+     */
+    public void setStore(Store store) {
+        this.store = store;
+    }
+
+    /**
+     * Save the last known state of the clusters, and restore it when we
+     * start so that we've got something to show (and compare the first
+     * poll with) before the first poll completes (must be called before
+     * start())
+     * 
+     * @param file
+     *            the file to store the state in
+     */
+    public void setLastKnown(File file) {
+        lastKnown = file;
+    }
+
+    /**
+     * Export the snapshot of every poll of the clusters (must be called
+     * before start())
+     * 
+     * @param log
+     *            where to write the snapshots
+     */
+    public void setExport(SnapshotLog log) {
+        export = log;
+    }
+
+    /**
+     * Publish the state changes, the node changes, the failed polls and the
+     * snapshots of the clusters to an EventBus (must be called before
+     * start())
+     * 
+     * @param bus
+     *            where to publish the events
+     */
+    public void setEventBus(EventBus bus) {
+        events = bus;
+    }
+
+    /**
+     * Collect the stats from every node in the clusters on every poll (must
+     * be called before start())
+     * 
+     * @param maxInFlight
+     *            the maximum number of requests in flight per cluster
+     * @param deadline
+     *            the number of milliseconds to wait for the nodes
+     */
+    public void setNodeStats(int maxInFlight, long deadline) {
+        nodeStatsExecutor = Executors
+                .newCachedThreadPool(new DaemonThreadFactory(
+                        "couchbase-nodes"));
+        nodeStatsInFlight = maxInFlight;
+        nodeStatsDeadline = deadline;
+    }
+
+    /**
+     * Start monitoring the clusters
+     * 
+     * @param pollInterval
+     *            the number of milliseconds between each poll of a healthy
+     *            cluster
+     * @param streaming
+     *            set to hold streaming connections to the clusters (and
+     *            only poll them while the connection is down)
+     */
+    public void start(long pollInterval, boolean streaming) {
+        LOG.fine("Using Couchbase Servers: " + registry.toSpec());
+        // The polls scheduled below wait for this
+        writer.execute(new Runnable() {
+            public void run() {
+                try {
+                    openHistory();
+                    restoreLastKnown();
+                } finally {
+                    restored.countDown();
+                }
+            }
+        });
+        List<ClusterTarget> targets = registry.getTargets();
+        for (int ii = 0; ii < targets.size(); ++ii) {
+            ClusterTarget target = targets.get(ii);
+            target.setEvaluation(rules.newEvaluation());
+            restoreSeeds(target);
+            target.getHealthReader().setHedging(hedgeTimer, hedgeExecutor,
+                    HEDGE_DELAY);
+            if (nodeStatsExecutor != null) {
+                target.getHealthReader().setNodeStats(nodeStatsExecutor,
+                        nodeStatsInFlight, nodeStatsDeadline);
+            }
+            Poller poller = new Poller(target, new AdaptivePollPolicy(
+                    pollInterval));
+            pollers.put(target.getKey(), poller);
+            pollScheduler.schedule(target.getKey(),
+                    pollScheduler.spread(pollInterval, ii, targets.size()),
+                    poller);
+            if (streaming) {
+                StreamingWatcher watcher = new StreamingWatcher(target,
+                        streamListener);
+                watchers.add(watcher);
+                watcher.start();
+            }
+        }
+        pollScheduler.start();
+    }
+
+    /**
+     * Poll all of the clusters now (except the ones we've got a streaming
+     * connection to), for instance when the device is woken up by an alarm.
+     * The regular schedule of each cluster continues from the result.
+     * 
+     * @param done
+     *            run on the callback executor once the results of all of the
+     *            polls are in (may be null)
+     */
+    public void pollAll(final Runnable done) {
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                if (done != null) {
+                    batchDone.add(done);
+                }
+                for (Poller poller : pollers.values()) {
+                    String key = poller.target.getKey();
+                    if (!poller.target.isStreaming()
+                            && pollEngine.submit(key, poller, pollListener)) {
+                        batch.add(key);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    completeBatch();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run the callbacks waiting for the current pollAll() batch
+     */
+    private void completeBatch() {
+        List<Runnable> callbacks = new ArrayList<Runnable>(batchDone);
+        batchDone.clear();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Stop polling and streaming the clusters
+     */
+    public void stop() {
+        for (StreamingWatcher watcher : watchers) {
+            watcher.stop();
+        }
+        pollScheduler.stop();
+    }
+
+    /**
+     * Stop monitoring the clusters and release all of the resources
+     */
+    public void shutdown() {
+        stop();
+        pollEngine.shutdown();
+        hedgeTimer.shutdownNow();
+        hedgeExecutor.shutdownNow();
+        if (nodeStatsExecutor != null) {
+            nodeStatsExecutor.shutdownNow();
+        }
+        // Close the files on the writer thread (after the restore, if it is
+        // still running)
+        Future<?> closed = null;
+        try {
+            closed = writer.submit(new Runnable() {
+                public void run() {
+                    HistoryStore h = history;
+                    history = null;
+                    if (h != null) {
+                        h.close();
+                    }
+                    saveLastKnown();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // We're already shut down
+        }
+        writer.shutdown();
+        if (closed != null) {
+            try {
+                closed.get(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                LOG.warning("Still saving the last known state after "
+                        + SHUTDOWN_TIMEOUT + "ms");
+            } catch (ExecutionException e) {
+                LOG.warning("Failed to save the last known state: "
+                        + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (export != null) {
+            try {
+                export.close();
+            } catch (IOException e) {
+                LOG.warning("Failed to close the export: " + e);
+            }
+        }
+    }
+
+    public ClusterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return the aggregated state of all of the clusters
+     */
+    public State getState() {
+        return state;
+    }
+
+    public PollEngine getPollEngine() {
+        return pollEngine;
+    }
+
+    public AlertPipeline getAlertPipeline() {
+        return alertPipeline;
+    }
+
+    /**
+     * @return the history of all of the clusters (or null if it isn't
+     *         recorded, or isn't opened yet)
+     */
+    public HistoryStore getHistory() {
+        return history;
+    }
+
+    /**
+     * Update the state of a cluster (called on the callback executor)
+     * 
+     * @param key
+     *            the key identifying the cluster
+     * @param result
+     *            the result of the last poll of the cluster
+     * @param latency
+     *            the number of milliseconds the poll took (0 for states
+     *            pushed from the server)
+     */
+    private void updateState(String key, PollResult result, long latency) {
+        ClusterTarget target = registry.get(key);
+        if (target == null) {
+            return;
+        }
+        if (history != null) {
+            history.append(System.currentTimeMillis(),
+                    HistoryStore.clusterId(key), result.getState(),
+                    result.getSnapshot(), latency);
+        }
+        boolean initial = isInitial(result);
+        for (NodeChange change : result.getChanges()) {
+            LOG.info(key + ": " + change);
+            publish(new EventBus.NodeChanged(key, change));
+            String node = key + "/" + change.getHostname();
+            NodeHealth health = change.getAfter();
+            if (change.getType() == NodeChange.Type.REMOVED) {
+                alertPipeline.reset(node);
+            } else if ((change.getType() == NodeChange.Type.ADDED && !health
+                    .isHealthy()) || change.hasChanged(NodeChange.STATUS)) {
+                submitAlert(node, health.getState(), health.getHostname()
+                        + " is " + health.getStatus());
+            } else if (change.getType() == NodeChange.Type.ADDED && !initial) {
+                submitAlert(node, health.getMembershipState(),
+                        health.getHostname() + " joined the cluster ("
+                                + describeMembership(health) + ")");
+            } else if (change.hasChanged(NodeChange.MEMBERSHIP)) {
+                submitAlert(node, health.getMembershipState(),
+                        health.getHostname() + " is "
+                                + describeMembership(health));
+            }
+        }
+        State prev = target.setState(result.getState());
+        if (result.getSnapshot() != null
+                && (prev == State.UNINITIALISED || hasMembershipChange(result))) {
+            saveSeeds(target);
+        }
+        if (prev != result.getState() || !result.getChanges().isEmpty()) {
+            scheduleSave();
+        }
+        if (export != null && result.getSnapshot() != null) {
+            try {
+                export.append(key, result.getSnapshot(), result.getState());
+            } catch (IOException e) {
+                LOG.warning("Failed to export the snapshot, stopping the"
+                        + " export: " + e);
+                export = null;
+            }
+        }
+        if (prev != result.getState()
+                && !(prev == State.UNINITIALISED && result.getState() == State.GOOD)) {
+            String message = target + " is " + result.getState();
+            String reason = target.getReason();
+            if (reason != null && result.getState() != State.NETWORK_ERROR) {
+                message += ": " + reason;
+            }
+            submitAlert(key, result.getState(), message);
+        }
+        if (prev != result.getState()) {
+            publish(new EventBus.StateChanged(key, prev, result.getState(),
+                    target.getReason()));
+        }
+        if (result.getSnapshot() == null) {
+            publish(new EventBus.PollFailed(key, result.getState(), result
+                    .getError()));
+        } else {
+            publish(new EventBus.MetricsSample(key, result.getSnapshot(),
+                    result.getState(), target.getReason()));
+        }
+        refreshState();
+    }
+
+    /**
+     * Publish an event to the EventBus (if any)
+     */
+    private void publish(EventBus.Event event) {
+        if (events != null) {
+            events.publish(event);
+        }
+    }
+
+    /**
+     * @return true if the changes are the first snapshot of the cluster
+     *         (all of the nodes are reported as added)
+     */
+    private static boolean isInitial(PollResult result) {
+        List<NodeChange> changes = result.getChanges();
+        if (result.getSnapshot() == null
+                || changes.size() != result.getSnapshot().size()) {
+            return false;
+        }
+        for (NodeChange change : changes) {
+            if (change.getType() != NodeChange.Type.ADDED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a description of the membership of a node for the alerts
+     */
+    private static String describeMembership(NodeHealth health) {
+        String membership = health.getClusterMembership();
+        if ("inactiveFailed".equals(membership)) {
+            return "failed over";
+        } else if ("inactiveAdded".equals(membership)) {
+            return "waiting for a rebalance";
+        }
+        return membership;
+    }
+
+    /**
+     * @return true if a node was added to or removed from the cluster
+     */
+    private static boolean hasMembershipChange(PollResult result) {
+        for (NodeChange change : result.getChanges()) {
+            if (change.getType() != NodeChange.Type.CHANGED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Persist the seeds of the cluster so that we may fail over to another
+     * node (without having to bootstrap again) the next time we start
+     * 
+     * @param target
+     *            the cluster
+     */
+    private void saveSeeds(ClusterTarget target) {
+        if (store == null) {
+            return;
+        }
+        PoolHealthReader reader = target.getHealthReader();
+        StringBuilder sb = new StringBuilder();
+        for (String seed : reader.getSeeds()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(seed);
+        }
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("seeds." + target.getKey(), sb.toString());
+        values.put("pooluri." + target.getKey(), reader.getPoolUri());
+        values.put("streaminguri." + target.getKey(), reader.getStreamingUri());
+        store.putAll(values);
+    }
+
+    /**
+     * Restore the seeds saved by saveSeeds()
+     * 
+     * @param target
+     *            the cluster
+     */
+    private void restoreSeeds(ClusterTarget target) {
+        if (store == null) {
+            return;
+        }
+        String seeds = store.get("seeds." + target.getKey());
+        if (seeds == null || seeds.length() == 0) {
+            return;
+        }
+        List<String> list = new ArrayList<String>();
+        for (String seed : seeds.split(",")) {
+            list.add(seed);
+        }
+        target.getHealthReader().restore(list,
+                store.get("pooluri." + target.getKey()),
+                store.get("streaminguri." + target.getKey()));
+    }
+
+    /**
+     * Open the history (called on the writer thread)
+     */
+    private void openHistory() {
+        if (historyFile == null) {
+            return;
+        }
+        try {
+            history = new HistoryStore(historyFile);
+        } catch (IOException e) {
+            LOG.warning("Failed to open the history: " + e);
+        }
+    }
+
+    /**
+     * Wait until the history is opened and the last known state is
+     * restored (called before every poll, so that the first poll is
+     * recorded and compared with the last known state)
+     */
+    private void awaitRestored() {
+        try {
+            restored.await();
+        } catch (InterruptedException e) {
+            // We're shutting down
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Restore the last known state of the clusters saved by saveLastKnown(),
+     * and publish it once the callback executor runs (called on the writer
+     * thread)
+     */
+    private void restoreLastKnown() {
+        if (lastKnown == null || !lastKnown.exists()) {
+            return;
+        }
+        try {
+            int restored = SnapshotLog.read(lastKnown,
+                    new SnapshotLog.Visitor() {
+                        public boolean visit(String key,
+                                ClusterSnapshot snapshot, State state) {
+                            ClusterTarget target = registry.get(key);
+                            if (target != null) {
+                                target.restore(snapshot, state);
+                            }
+                            return true;
+                        }
+                    });
+            LOG.fine("Restored the last known state of " + restored
+                    + " clusters");
+        } catch (IOException e) {
+            LOG.warning("Failed to restore the last known state: " + e);
+            return;
+        }
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                refreshState();
+                for (ClusterTarget target : registry.getTargets()) {
+                    if (target.getSnapshot() != null) {
+                        publish(new EventBus.MetricsSample(target.getKey(),
+                                target.getSnapshot(), target.getState(), null));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Save the last known state of the clusters on the writer thread within
+     * SAVE_DELAY (the changes until then are saved by the same write)
+     */
+    private void scheduleSave() {
+        if (lastKnown == null || !saveScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.schedule(new Runnable() {
+                public void run() {
+                    saveScheduled.set(false);
+                    saveLastKnown();
+                }
+            }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // We're shutting down (and save it there)
+            saveScheduled.set(false);
+        }
+    }
+
+    /**
+     * Save the last known state of all of the clusters
+     */
+    private synchronized void saveLastKnown() {
+        if (lastKnown == null) {
+            return;
+        }
+        try {
+            SnapshotLog.save(lastKnown, registry.getTargets());
+        } catch (IOException e) {
+            LOG.warning("Failed to save the last known state: " + e);
+        }
+    }
+
+    /**
+     * Connect to the couchbase cluster and read the state f the server..
+     * 
+     * @param target
+     *            the cluster
+     * @return the "aggregated" state of the cluster and the nodes that
+     *         changed since the last poll.
+     */
+    private PollResult doGetState(ClusterTarget target) {
+        ClusterSnapshot snapshot;
+        try {
+            snapshot = target.getHealthReader().getSnapshot();
+        } catch (IOException e) {
+            LOG.fine("Failed to poll " + target + ": " + e);
+            return PollResult.failed(State.NETWORK_ERROR, e.toString());
+        }
+
+        List<BucketStats> buckets = null;
+        try {
+            buckets = target.getHealthReader().getBucketStats();
+        } catch (IOException e) {
+            // Evaluate the rules without the bucket stats
+            LOG.warning("Failed to get the bucket stats of " + target + ": "
+                    + e);
+        }
+
+        try {
+            List<NodeStats> nodes = target.getHealthReader().getNodeStats(
+                    snapshot);
+            if (nodes != null) {
+                Diagnostics.setNodeStats(target.getKey(), nodes);
+            }
+        } catch (IOException e) {
+            LOG.warning("Failed to get the node stats of " + target + ": "
+                    + e);
+        }
+
+        return new PollResult(evaluate(target, snapshot, buckets), snapshot,
+                target.diff(snapshot));
+    }
+
+    /**
+     * Refresh the bucket stats of a streaming cluster, and evaluate them with
+     * the last snapshot pushed by the server
+     * 
+     * @param target
+     *            the cluster
+     * @param snapshot
+     *            the last snapshot of the cluster
+     * @return the state of the cluster
+     */
+    private PollResult refreshBuckets(ClusterTarget target,
+            ClusterSnapshot snapshot) {
+        List<BucketStats> buckets = null;
+        try {
+            buckets = target.getHealthReader().getBucketStats();
+        } catch (IOException e) {
+            LOG.warning("Failed to get the bucket stats of " + target + ": "
+                    + e);
+        }
+        return new PollResult(evaluate(target, snapshot, buckets), snapshot,
+                target.diff(snapshot));
+    }
+
+    /**
+     * Run the health rules for a cluster (called from the PollEngine, which
+     * never runs two of them for the same cluster at the same time)
+     * 
+     * @param target
+     *            the cluster
+     * @param snapshot
+     *            a snapshot of the nodes in the cluster
+     * @param buckets
+     *            the stats of the buckets in the cluster (may be null)
+     * @return the state of the cluster
+     */
+    private State evaluate(ClusterTarget target, ClusterSnapshot snapshot,
+            List<BucketStats> buckets) {
+        RuleEngine.Evaluation evaluation = target.getEvaluation();
+        State state = rules.evaluate(snapshot, buckets, evaluation);
+        String reason = rules.describe(evaluation);
+        if (reason == null && snapshot.getRebalance() != null) {
+            reason = snapshot.getRebalance().toString();
+        }
+        target.setReason(reason);
+        return state;
+    }
+
+    /**
+     * Refresh the aggregated state of all of the clusters and publish it in
+     * the StateCache, and tell the listener if it changed
+     */
+    private void refreshState() {
+        long start = System.nanoTime();
+        State next = registry.getGlobalState();
+        StateCache.publish(new StateCache.Entry(next, registry.getTargets()));
+        if (next != state) {
+            publish(new EventBus.StateChanged(null, state, next, null));
+            state = next;
+            listener.onStateChanged(next);
+        }
+        Diagnostics.getRefreshLatency().record(System.nanoTime() - start);
+    }
+
+    /**
+     * Submit an alert to the alert pipeline (called on the callback
+     * executor)
+     * 
+     * @param key
+     *            the cluster or node the alert is about
+     * @param state
+     *            the new state of the cluster or node
+     * @param message
+     *            the message to show the user
+     */
+    private void submitAlert(String key, State state, String message) {
+        if (alertPipeline.submit(key, state, message)) {
+            scheduleFlush(alertPipeline.getWindow());
+        }
+    }
+
+    /**
+     * Flush the alert pipeline on the callback executor after the delay
+     */
+    private void scheduleFlush(long delay) {
+        pollScheduler.schedule(ALERT_KEY, delay, new Runnable() {
+            public void run() {
+                callbackExecutor.execute(flushAlerts);
+            }
+        });
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only store of the history of the clusters, backed by a memory
+ * mapped file.
+ * 
+ * The file contains two rings of fixed size records: one with a record for
+ * every poll, and one with a record per cluster for every rollup interval
+ * (the worst state, the minimum number of healthy nodes and the average
+ * latency during the interval). When a ring is full the oldest records are
+ * overwritten, so the size of the file never changes. The timestamps in a
+ * ring never decrease, so a range query is a binary search.
+ * 
+ * The status of each node is stored as a bit in a mask (set if the node is
+ * unhealthy) in the order the nodes are listed by the cluster, so only the
+ * first 64 nodes are tracked individually.
+ * 
+ * @author Trond Norbye
+ */
+public class HistoryStore {
+    /**
+     * Callback used to deliver the records of a query. The same Sample
+     * object is reused for all of the records, so it must not be kept.
+     */
+    public interface Visitor {
+        /**
+         * Called for each record matching the query (in time order)
+         * 
+         * @param sample
+         *            the record
+         * @return false to stop the query
+         */
+        boolean visit(Sample sample);
+    }
+
+    /**
+     * A single record in the store
+     */
+    public static class Sample {
+        /**
+         * The time of the poll (or the start of the rollup interval)
+         */
+        public long timestamp;
+
+        /**
+         * The cluster the record belongs to (see clusterId())
+         */
+        public int cluster;
+
+        /**
+         * The (worst) state of the cluster
+         */
+        public State state;
+
+        /**
+         * The (minimum) number of healthy nodes
+         */
+        public int healthy;
+
+        /**
+         * The number of nodes in the cluster
+         */
+        public int total;
+
+        /**
+         * A bit for each of the first 64 nodes, set if the node was unhealthy
+         */
+        public long unhealthyMask;
+
+        /**
+         * The (average) latency of the poll in ms
+         */
+        public int latency;
+
+        /**
+         * The number of polls in the record (1 unless it's a rollup)
+         */
+        public int count;
+
+        @Override
+        public String toString() {
+            return timestamp + " " + cluster + " " + state + " " + healthy
+                    + "/" + total + " " + latency + "ms";
+        }
+    }
+
+    /**
+     * The current version of the file format. A file with a different
+     * version (or different sizes) is discarded. Version 2 stores the
+     * ordinals of the states with REBALANCING.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The default number of records for every poll (2MB)
+     */
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /**
+     * The default number of rollup records (512kB)
+     */
+    public static final int DEFAULT_ROLLUP_CAPACITY = 16 * 1024;
+
+    /**
+     * The default length of a rollup interval (1 hour)
+     */
+    public static final long DEFAULT_ROLLUP_INTERVAL = 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x43424853; // "CBHS"
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 32;
+
+    // Offsets in the header
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_RECORD_SIZE = 8;
+    private static final int H_CAPACITY = 12;
+    private static final int H_ROLLUP_CAPACITY = 16;
+    private static final int H_ROLLUP_INTERVAL = 20;
+    private static final int H_COUNT = 28;
+    private static final int H_ROLLUP_COUNT = 36;
+
+    // Offsets in a record
+    private static final int R_TIMESTAMP = 0;
+    private static final int R_MASK = 8;
+    private static final int R_CLUSTER = 16;
+    private static final int R_LATENCY = 20;
+    private static final int R_STATE = 24;
+    private static final int R_HEALTHY = 25;
+    private static final int R_TOTAL = 27;
+    private static final int R_COUNT = 29;
+
+    /**
+     * The rollup being built for a cluster
+     */
+    private static class Rollup {
+        long window = -1;
+        State state;
+        int healthy;
+        int total;
+        long mask;
+        long latency;
+        int count;
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int rollupCapacity;
+    private final long rollupInterval;
+    private final int rollupBase;
+    private final Map<Integer, Rollup> rollups = new HashMap<Integer, Rollup>();
+    private final State[] states = State.values();
+    private long count;
+    private long rollupCount;
+    private long lastTimestamp;
+    private long lastRollupTimestamp;
+
+    /**
+     * Open (or create) a store with the default sizes
+     * 
+     * @param path
+     *            the file to store the history in
+     * @throws IOException
+     *             if we fail to open or map the file
+     */
+    public HistoryStore(File path) throws IOException {
+        this(path, DEFAULT_CAPACITY, DEFAULT_ROLLUP_CAPACITY,
+                DEFAULT_ROLLUP_INTERVAL);
+    }
+
+    /**
+     * Open (or create) a store
+     * 
+     * @param path
+     *            the file to store the history in
+     * @param capacity
+     *            the number of records for every poll
+     * @param rollupCapacity
+     *            the number of rollup records
+     * @param rollupInterval
+     *            the number of milliseconds in a rollup interval
+     * @throws IOException
+     *             if we fail to open or map the file
+     */
+    public HistoryStore(File path, int capacity, int rollupCapacity,
+            long rollupInterval) throws IOException {
+        this.capacity = capacity;
+        this.rollupCapacity = rollupCapacity;
+        this.rollupInterval = rollupInterval;
+        rollupBase = HEADER_SIZE + capacity * RECORD_SIZE;
+        int size = rollupBase + rollupCapacity * RECORD_SIZE;
+
+        file = new RandomAccessFile(path, "rw");
+        boolean valid = file.length() == size;
+        if (!valid) {
+            file.setLength(0);
+            file.setLength(size);
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                size);
+
+        if (valid && buffer.getInt(H_MAGIC) == MAGIC
+                && buffer.getInt(H_VERSION) == VERSION
+                && buffer.getInt(H_RECORD_SIZE) == RECORD_SIZE
+                && buffer.getInt(H_CAPACITY) == capacity
+                && buffer.getInt(H_ROLLUP_CAPACITY) == rollupCapacity
+                && buffer.getLong(H_ROLLUP_INTERVAL) == rollupInterval) {
+            count = buffer.getLong(H_COUNT);
+            rollupCount = buffer.getLong(H_ROLLUP_COUNT);
+            if (count > 0) {
+                lastTimestamp = buffer.getLong(offset(count - 1, false));
+            }
+            if (rollupCount > 0) {
+                lastRollupTimestamp = buffer.getLong(offset(rollupCount - 1,
+                        true));
+            }
+        } else {
+            buffer.putInt(H_MAGIC, MAGIC);
+            buffer.putInt(H_VERSION, VERSION);
+            buffer.putInt(H_RECORD_SIZE, RECORD_SIZE);
+            buffer.putInt(H_CAPACITY, capacity);
+            buffer.putInt(H_ROLLUP_CAPACITY, rollupCapacity);
+            buffer.putLong(H_ROLLUP_INTERVAL, rollupInterval);
+            buffer.putLong(H_COUNT, 0);
+            buffer.putLong(H_ROLLUP_COUNT, 0);
+        }
+    }
+
+    /**
+     * Get the identifier used for a cluster in the store
+     * 
+     * @param key
+     *            the key of the cluster (host:port)
+     * @return the identifier
+     */
+    public static int clusterId(String key) {
+        return key.hashCode();
+    }
+
+    /**
+     * Append the result of a poll to the store
+     * 
+     * @param timestamp
+     *            the time of the poll
+     * @param cluster
+     *            the cluster (see clusterId())
+     * @param state
+     *            the state of the cluster
+     * @param snapshot
+     *            the nodes in the cluster (may be null)
+     * @param latency
+     *            the number of milliseconds the poll took
+     */
+    public synchronized void append(long timestamp, int cluster, State state,
+            ClusterSnapshot snapshot, long latency) {
+        int healthy = 0;
+        int total = 0;
+        long mask = 0;
+        if (snapshot != null) {
+            for (NodeHealth node : snapshot.getNodes()) {
+                if (node.isHealthy()) {
+                    ++healthy;
+                } else if (total < 64) {
+                    mask |= 1L << total;
+                }
+                ++total;
+            }
+        }
+
+        // The timestamps in the ring must never decrease
+        timestamp = Math.max(timestamp, lastTimestamp);
+        int lat = (int) Math.min(latency, Integer.MAX_VALUE);
+        write(offset(count, false), timestamp, cluster, state, healthy,
+                total, mask, lat, 1);
+        lastTimestamp = timestamp;
+        ++count;
+        buffer.putLong(H_COUNT, count);
+
+        rollup(timestamp, cluster, state, healthy, total, mask, lat);
+    }
+
+    /**
+     * Query the records in a time range
+     * 
+     * @param from
+     *            the start of the range (inclusive)
+     * @param to
+     *            the end of the range (exclusive)
+     * @param rollup
+     *            set to query the rollup records instead of the records for
+     *            every poll
+     * @param visitor
+     *            the callback receiving the records
+     * @return the number of records visited
+     */
+    public synchronized int query(long from, long to, boolean rollup,
+            Visitor visitor) {
+        long end = rollup ? rollupCount : count;
+        long start = Math.max(0, end - (rollup ? rollupCapacity : capacity));
+
+        // Binary search for the first record >= from
+        long lo = start;
+        long hi = end;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (buffer.getLong(offset(mid, rollup)) < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        Sample sample = new Sample();
+        int visited = 0;
+        for (long ii = lo; ii < end; ++ii) {
+            read(offset(ii, rollup), sample);
+            if (sample.timestamp >= to) {
+                break;
+            }
+            ++visited;
+            if (!visitor.visit(sample)) {
+                break;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * @return the number of records for every poll currently in the store
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    /**
+     * @return the number of rollup records currently in the store
+     */
+    public synchronized int rollupSize() {
+        return (int) Math.min(rollupCount, rollupCapacity);
+    }
+
+    /**
+     * Write the pending changes to disk and close the file. The rollups
+     * being built are lost.
+     */
+    public synchronized void close() {
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            /* ignore */
+        }
+    }
+
+    private void rollup(long timestamp, int cluster, State state,
+            int healthy, int total, long mask, int latency) {
+        Integer key = Integer.valueOf(cluster);
+        Rollup r = rollups.get(key);
+        if (r == null) {
+            r = new Rollup();
+            rollups.put(key, r);
+        }
+
+        long window = timestamp / rollupInterval;
+        if (r.window != window) {
+            if (r.count > 0) {
+                long ts = Math.max(r.window * rollupInterval,
+                        lastRollupTimestamp);
+                write(offset(rollupCount, true), ts, cluster, r.state,
+                        r.healthy, r.total, r.mask, (int) (r.latency / r.count),
+                        r.count);
+                lastRollupTimestamp = ts;
+                ++rollupCount;
+                buffer.putLong(H_ROLLUP_COUNT, rollupCount);
+            }
+            r.window = window;
+            r.state = state;
+            r.healthy = healthy;
+            r.total = total;
+            r.mask = 0;
+            r.latency = 0;
+            r.count = 0;
+        }
+
+        if (state.ordinal() < r.state.ordinal()) {
+            r.state = state;
+        }
+        r.healthy = Math.min(r.healthy, healthy);
+        r.total = Math.max(r.total, total);
+        r.mask |= mask;
+        r.latency += latency;
+        ++r.count;
+    }
+
+    private int offset(long index, boolean rollup) {
+        if (rollup) {
+            return rollupBase + (int) (index % rollupCapacity) * RECORD_SIZE;
+        }
+        return HEADER_SIZE + (int) (index % capacity) * RECORD_SIZE;
+    }
+
+    private void write(int offset, long timestamp, int cluster, State state,
+            int healthy, int total, long mask, int latency, int count) {
+        buffer.putLong(offset + R_TIMESTAMP, timestamp);
+        buffer.putLong(offset + R_MASK, mask);
+        buffer.putInt(offset + R_CLUSTER, cluster);
+        buffer.putInt(offset + R_LATENCY, latency);
+        buffer.put(offset + R_STATE, (byte) state.ordinal());
+        buffer.putShort(offset + R_HEALTHY, (short) healthy);
+        buffer.putShort(offset + R_TOTAL, (short) total);
+        buffer.putShort(offset + R_COUNT, (short) Math.min(count, 0xffff));
+    }
+
+    private void read(int offset, Sample sample) {
+        sample.timestamp = buffer.getLong(offset + R_TIMESTAMP);
+        sample.unhealthyMask = buffer.getLong(offset + R_MASK);
+        sample.cluster = buffer.getInt(offset + R_CLUSTER);
+        sample.latency = buffer.getInt(offset + R_LATENCY);
+        int state = buffer.get(offset + R_STATE);
+        sample.state = state < states.length ? states[state]
+                : State.UNINITIALISED;
+        sample.healthy = buffer.getShort(offset + R_HEALTHY) & 0xffff;
+        sample.total = buffer.getShort(offset + R_TOTAL) & 0xffff;
+        sample.count = buffer.getShort(offset + R_COUNT) & 0xffff;
+    }
+}
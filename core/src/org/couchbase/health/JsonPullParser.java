@@ -0,0 +1,770 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A small pull parser for JSON documents. It reads the UTF-8 encoded
+ * document directly off the stream (so no Reader decodes the entire
+ * document into characters), and values we're not interested in are
+ * skipped without being converted to Strings. The names of the fields may
+ * be matched against a precompiled set of Names, and numbers are parsed
+ * from the bytes, so parsing a document where we're only interested in
+ * numbers doesn't create any Strings at all. The API mimics
+ * android.util.JsonReader (which isn't available until API level 11).
+ *
+ * Multiple top level values may follow each other in the stream (which is
+ * what the streaming REST endpoints return).
+ *
+ * The parsers (and their buffers) may be reused with obtain() and
+ * recycle() so that polling doesn't allocate new buffers every time.
+ *
+ * @author Trond Norbye
+ */
+public class JsonPullParser {
+    /**
+     * The different kind of tokens in a JSON document
+     */
+    public enum Token {
+        BEGIN_ARRAY, END_ARRAY, BEGIN_OBJECT, END_OBJECT, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    /**
+     * A set of names (or values) we're looking for, encoded so that they
+     * may be compared with the bytes in the stream
+     */
+    public static class Names {
+        private final String[] names;
+        private final byte[][] encoded;
+
+        public Names(String... names) {
+            this.names = names;
+            encoded = new byte[names.length][];
+            for (int ii = 0; ii < names.length; ++ii) {
+                try {
+                    encoded[ii] = names[ii].getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e.toString());
+                }
+            }
+        }
+
+        /**
+         * @return the index of the name in the set (or -1 if it isn't in
+         *         the set)
+         */
+        int indexOf(byte[] bytes, int length) {
+            return indexOf(bytes, 0, length);
+        }
+
+        /**
+         * @return the index of the name stored at the offset in the array
+         *         (or -1 if it isn't in the set)
+         */
+        int indexOf(byte[] bytes, int offset, int length) {
+            for (int ii = 0; ii < encoded.length; ++ii) {
+                byte[] name = encoded[ii];
+                if (name.length == length) {
+                    int jj = 0;
+                    while (jj < length && name[jj] == bytes[offset + jj]) {
+                        ++jj;
+                    }
+                    if (jj == length) {
+                        return ii;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        public String get(int index) {
+            return names[index];
+        }
+    }
+
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_ARRAY = 2;
+    private static final int NONEMPTY_ARRAY = 3;
+    private static final int EMPTY_OBJECT = 4;
+    private static final int DANGLING_NAME = 5;
+    private static final int NONEMPTY_OBJECT = 6;
+
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+            1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+            1e17, 1e18 };
+
+    /**
+     * The maximum number of parsers we keep for reuse
+     */
+    private static final int POOL_SIZE = 8;
+    private static final JsonPullParser[] pool = new JsonPullParser[POOL_SIZE];
+    private static int pooled;
+
+    private InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int pos;
+    private int limit;
+
+    /**
+     * The scopes we're currently in
+     */
+    private int[] stack = new int[32];
+    private int stackSize;
+
+    /**
+     * The next token (null if we haven't peeked yet). Strings, names and
+     * literals are not read until they're consumed (or skipped).
+     */
+    private Token peeked;
+
+    /**
+     * The (unescaped) bytes of the last string, name or literal we read
+     */
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+
+    /**
+     * Create a new parser reading from the given stream
+     *
+     * @param in
+     *            where to read the (UTF-8 encoded) document from
+     */
+    public JsonPullParser(InputStream in) {
+        reset(in);
+    }
+
+    /**
+     * Get a parser from the pool of parsers (or create a new one if the pool
+     * is empty). Call recycle() to return it to the pool once the document
+     * is parsed.
+     *
+     * @param in
+     *            where to read the (UTF-8 encoded) document from
+     * @return the parser
+     */
+    public static JsonPullParser obtain(InputStream in) {
+        JsonPullParser parser = null;
+        synchronized (pool) {
+            if (pooled > 0) {
+                parser = pool[--pooled];
+                pool[pooled] = null;
+            }
+        }
+        if (parser == null) {
+            return new JsonPullParser(in);
+        }
+        parser.reset(in);
+        return parser;
+    }
+
+    /**
+     * Return the parser to the pool. The parser must not be used after it
+     * is recycled (the stream isn't closed).
+     */
+    public void recycle() {
+        in = null;
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = this;
+            }
+        }
+    }
+
+    private void reset(InputStream in) {
+        this.in = in;
+        pos = limit = 0;
+        peeked = null;
+        stackSize = 0;
+        stack[stackSize++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Get the type of the next token without consuming it
+     *
+     * @return the next token
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = doPeek();
+        }
+        return peeked;
+    }
+
+    /**
+     * @return true if the current array or object has more elements
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public boolean hasNext() throws IOException {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY
+                && t != Token.END_DOCUMENT;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        --stackSize;
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        --stackSize;
+    }
+
+    /**
+     * Consume the next name in the current object
+     *
+     * @return the name
+     * @throws IOException
+     *             if we fail to read the stream or the next token isn't a
+     *             name
+     */
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        readString(true);
+        return decodeScratch();
+    }
+
+    /**
+     * Consume the next name in the current object, and look it up in the
+     * set of names (without creating a String)
+     *
+     * @param names
+     *            the names we're interested in
+     * @return the index of the name in the set, or -1 if it isn't in the set
+     * @throws IOException
+     *             if we fail to read the stream or the next token isn't a
+     *             name
+     */
+    public int nextName(Names names) throws IOException {
+        expect(Token.NAME);
+        readString(true);
+        return names.indexOf(scratch, scratchLength);
+    }
+
+    /**
+     * Consume the next value as a string. Numbers and booleans are returned
+     * in their textual representation.
+     *
+     * @return the value
+     * @throws IOException
+     *             if we fail to read the stream or the next token isn't a
+     *             scalar value
+     */
+    public String nextString() throws IOException {
+        readScalar();
+        return decodeScratch();
+    }
+
+    /**
+     * Consume the next value as a string, and return the instance from the
+     * set of values if the value is one of them (so that the values we
+     * expect to see over and over again doesn't create new Strings).
+     *
+     * @param values
+     *            the values we expect
+     * @return the value
+     * @throws IOException
+     *             if we fail to read the stream or the next token isn't a
+     *             scalar value
+     */
+    public String nextString(Names values) throws IOException {
+        readScalar();
+        int idx = values.indexOf(scratch, scratchLength);
+        return idx == -1 ? decodeScratch() : values.get(idx);
+    }
+
+    /**
+     * Consume the next value as a long. Numbers (and strings containing a
+     * plain integer) are parsed without creating a String.
+     *
+     * @return the value
+     * @throws IOException
+     *             if we fail to read the stream or the next token isn't a
+     *             number
+     */
+    public long nextLong() throws IOException {
+        readScalar();
+        long value = 0;
+        int ii = scratchLength > 0 && scratch[0] == '-' ? 1 : 0;
+        if (ii < scratchLength && scratchLength - ii <= 18) {
+            while (ii < scratchLength && scratch[ii] >= '0'
+                    && scratch[ii] <= '9') {
+                value = value * 10 + (scratch[ii++] - '0');
+            }
+            if (ii == scratchLength) {
+                return scratch[0] == '-' ? -value : value;
+            }
+        }
+
+        String text = decodeScratch();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(text);
+            } catch (NumberFormatException ex) {
+                throw syntaxError("Expected a number but was " + text);
+            }
+        }
+    }
+
+    /**
+     * Consume the next value as a double. Plain decimal numbers are parsed
+     * directly from the buffer without creating a String (the sample arrays
+     * in the stats documents contains thousands of them).
+     *
+     * @return the value
+     * @throws IOException
+     *             if we fail to read the stream or the next token isn't a
+     *             number
+     */
+    public double nextDouble() throws IOException {
+        if (peek() == Token.NUMBER) {
+            peeked = null;
+            return readNumber();
+        }
+        String value = nextString();
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was " + value);
+        }
+    }
+
+    public boolean nextBoolean() throws IOException {
+        if (peek() != Token.BOOLEAN) {
+            throw syntaxError("Expected a boolean but was " + peeked);
+        }
+        readScalar();
+        return scratchLength == 4;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral(false);
+    }
+
+    /**
+     * Skip the next value (including all of its nested values) without
+     * converting anything to Strings.
+     *
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            Token t = peek();
+            switch (t) {
+            case BEGIN_ARRAY:
+                beginArray();
+                ++depth;
+                break;
+            case BEGIN_OBJECT:
+                beginObject();
+                ++depth;
+                break;
+            case END_ARRAY:
+                endArray();
+                --depth;
+                break;
+            case END_OBJECT:
+                endObject();
+                --depth;
+                break;
+            case NAME:
+            case STRING:
+                peeked = null;
+                readString(false);
+                break;
+            case END_DOCUMENT:
+                throw syntaxError("Unexpected end of document");
+            default:
+                peeked = null;
+                readLiteral(false);
+            }
+        } while (depth != 0);
+    }
+
+    /**
+     * Close the underlying stream
+     *
+     * @throws IOException
+     *             if an error occurs
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void expect(Token token) throws IOException {
+        Token t = peek();
+        if (t != token) {
+            throw syntaxError("Expected " + token + " but was " + t);
+        }
+        peeked = null;
+    }
+
+    private void push(int scope) {
+        if (stackSize == stack.length) {
+            int[] grown = new int[stackSize * 2];
+            System.arraycopy(stack, 0, grown, 0, stackSize);
+            stack = grown;
+        }
+        stack[stackSize++] = scope;
+    }
+
+    private Token doPeek() throws IOException {
+        int scope = stack[stackSize - 1];
+        int c;
+        switch (scope) {
+        case EMPTY_ARRAY:
+            stack[stackSize - 1] = NONEMPTY_ARRAY;
+            c = nextNonWhitespace(true);
+            if (c == ']') {
+                return Token.END_ARRAY;
+            }
+            --pos;
+            break;
+        case NONEMPTY_ARRAY:
+            c = nextNonWhitespace(true);
+            if (c == ']') {
+                return Token.END_ARRAY;
+            } else if (c != ',') {
+                throw syntaxError("Unterminated array");
+            }
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            stack[stackSize - 1] = DANGLING_NAME;
+            c = nextNonWhitespace(true);
+            if (c == '}') {
+                return Token.END_OBJECT;
+            }
+            if (scope == NONEMPTY_OBJECT) {
+                if (c != ',') {
+                    throw syntaxError("Unterminated object");
+                }
+                c = nextNonWhitespace(true);
+            }
+            if (c != '"') {
+                throw syntaxError("Expected name");
+            }
+            return Token.NAME;
+        case DANGLING_NAME:
+            stack[stackSize - 1] = NONEMPTY_OBJECT;
+            if (nextNonWhitespace(true) != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            break;
+        default:
+            stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+            if (nextNonWhitespace(false) == -1) {
+                return Token.END_DOCUMENT;
+            }
+            --pos;
+        }
+
+        c = nextNonWhitespace(true);
+        switch (c) {
+        case '{':
+            return Token.BEGIN_OBJECT;
+        case '[':
+            return Token.BEGIN_ARRAY;
+        case '"':
+            return Token.STRING;
+        case 't':
+        case 'f':
+            --pos;
+            return Token.BOOLEAN;
+        case 'n':
+            --pos;
+            return Token.NULL;
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                --pos;
+                return Token.NUMBER;
+            }
+            throw syntaxError("Unexpected character: " + (char) c);
+        }
+    }
+
+    private boolean fill() throws IOException {
+        pos = 0;
+        limit = in.read(buffer, 0, buffer.length);
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private int nextNonWhitespace(boolean throwOnEof) throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                if (throwOnEof) {
+                    throw syntaxError("Unexpected end of stream");
+                }
+                return -1;
+            }
+            int c = buffer[pos++];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Read the next scalar value (a string, number or boolean) into the
+     * scratch buffer
+     */
+    private void readScalar() throws IOException {
+        Token t = peek();
+        if (t == Token.STRING) {
+            peeked = null;
+            readString(true);
+        } else if (t == Token.NUMBER || t == Token.BOOLEAN) {
+            peeked = null;
+            readLiteral(true);
+        } else {
+            throw syntaxError("Expected a string but was " + t);
+        }
+    }
+
+    /**
+     * Make room for more bytes in the scratch buffer
+     */
+    private void ensureScratch(int size) {
+        if (size > scratch.length) {
+            byte[] grown = new byte[Math.max(size, scratch.length * 2)];
+            System.arraycopy(scratch, 0, grown, 0, scratchLength);
+            scratch = grown;
+        }
+    }
+
+    private void appendScratch(int start, int length) {
+        ensureScratch(scratchLength + length);
+        System.arraycopy(buffer, start, scratch, scratchLength, length);
+        scratchLength += length;
+    }
+
+    /**
+     * @return the content of the scratch buffer as a String
+     */
+    private String decodeScratch() throws UnsupportedEncodingException {
+        return new String(scratch, 0, scratchLength, "UTF-8");
+    }
+
+    /**
+     * Read the rest of a string (the opening quote is already consumed) into
+     * the scratch buffer (as UTF-8 with the escapes resolved)
+     *
+     * @param keep
+     *            if false the string is just skipped
+     */
+    private void readString(boolean keep) throws IOException {
+        scratchLength = 0;
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                byte c = buffer[pos++];
+                if (c == '"') {
+                    if (keep) {
+                        appendScratch(start, pos - start - 1);
+                    }
+                    return;
+                } else if (c == '\\') {
+                    if (keep) {
+                        appendScratch(start, pos - start - 1);
+                    }
+                    readEscape(keep);
+                    start = pos;
+                }
+            }
+            if (keep) {
+                appendScratch(start, pos - start);
+            }
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+        }
+    }
+
+    /**
+     * Read an escape sequence (the backslash is already consumed) and
+     * append the UTF-8 encoding of the character to the scratch buffer
+     */
+    private void readEscape(boolean keep) throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        int c = buffer[pos++];
+        switch (c) {
+        case 'b':
+            c = '\b';
+            break;
+        case 'f':
+            c = '\f';
+            break;
+        case 'n':
+            c = '\n';
+            break;
+        case 'r':
+            c = '\r';
+            break;
+        case 't':
+            c = '\t';
+            break;
+        case 'u':
+            c = 0;
+            for (int ii = 0; ii < 4; ++ii) {
+                if (pos == limit && !fill()) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+                int digit = Character.digit(buffer[pos++], 16);
+                if (digit == -1) {
+                    throw syntaxError("Invalid escape sequence");
+                }
+                c = (c << 4) | digit;
+            }
+            break;
+        default:
+            break;
+        }
+        if (!keep) {
+            return;
+        }
+
+        // Encode the character as UTF-8 (surrogate pairs are encoded one
+        // half at the time, which String(byte[], "UTF-8") replaces)
+        ensureScratch(scratchLength + 3);
+        if (c < 0x80) {
+            scratch[scratchLength++] = (byte) c;
+        } else if (c < 0x800) {
+            scratch[scratchLength++] = (byte) (0xc0 | (c >> 6));
+            scratch[scratchLength++] = (byte) (0x80 | (c & 0x3f));
+        } else {
+            scratch[scratchLength++] = (byte) (0xe0 | (c >> 12));
+            scratch[scratchLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            scratch[scratchLength++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    /**
+     * Read a literal value (number, true, false or null) into the scratch
+     * buffer
+     *
+     * @param keep
+     *            if false the literal is just skipped
+     */
+    private void readLiteral(boolean keep) throws IOException {
+        scratchLength = 0;
+        while (true) {
+            int start = pos;
+            while (pos < limit) {
+                byte c = buffer[pos];
+                if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' '
+                        || c == '\n' || c == '\r' || c == '\t') {
+                    if (keep) {
+                        appendScratch(start, pos - start);
+                    }
+                    return;
+                }
+                ++pos;
+            }
+            if (keep) {
+                appendScratch(start, pos - start);
+            }
+            if (!fill()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read a number. The bytes are appended to the scratch buffer so that
+     * we can fall back to Double.parseDouble for exponents and numbers with
+     * too many digits.
+     */
+    private double readNumber() throws IOException {
+        scratchLength = 0;
+        boolean negative = false;
+        boolean fallback = false;
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+
+        while (pos < limit || fill()) {
+            byte c = buffer[pos];
+            if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    fallback = true;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (decimals >= 0) {
+                    ++decimals;
+                }
+            } else if (c == '-' && scratchLength == 0) {
+                negative = true;
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (c == ',' || c == '}' || c == ']' || c == ' '
+                    || c == '\n' || c == '\r' || c == '\t') {
+                break;
+            } else {
+                fallback = true;
+            }
+            ensureScratch(scratchLength + 1);
+            scratch[scratchLength++] = c;
+            ++pos;
+        }
+
+        if (fallback || digits == 0) {
+            String text = decodeScratch();
+            try {
+                return Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                throw syntaxError("Expected a number but was " + text);
+            }
+        }
+
+        double value = mantissa;
+        if (decimals > 0) {
+            value /= POWERS_OF_TEN[decimals];
+        }
+        return negative ? -value : value;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message);
+    }
+}
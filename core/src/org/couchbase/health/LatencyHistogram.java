@@ -0,0 +1,172 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies (in the style of HdrHistogram).
+ * 
+ * The values are recorded in microseconds into log-linear buckets: every
+ * power of two is split into 8 buckets, so a value is reported with an
+ * error of at most 12.5%. The histogram covers values up to 2^32
+ * microseconds (a little over an hour) in 240 counters, and recording a
+ * value is a couple of atomic increments (no locks, no allocation) so it
+ * may be used from the hot path of any thread.
+ * 
+ * @author Trond Norbye
+ */
+public class LatencyHistogram {
+    /**
+     * The number of bits used for the buckets within a power of two
+     */
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * The largest value (in microseconds) we'll record (larger values are
+     * recorded as this value)
+     */
+    private static final long MAX_VALUE = (1L << 32) - 1;
+
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency
+     * 
+     * @param nanos
+     *            the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0) {
+            micros = 0;
+        } else if (micros > MAX_VALUE) {
+            micros = MAX_VALUE;
+        }
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the largest recorded value in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values in microseconds (0 if none
+     *         are recorded)
+     */
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * Get the value at the given percentile. The value is the upper bound
+     * of the bucket containing the percentile (but never more than the
+     * largest recorded value).
+     * 
+     * @param percentile
+     *            the percentile (0.0 - 1.0)
+     * @return the value in microseconds (0 if no values are recorded)
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int ii = 0; ii < BUCKETS; ++ii) {
+            total += counts.get(ii);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int ii = 0; ii < BUCKETS; ++ii) {
+            seen += counts.get(ii);
+            if (seen >= rank) {
+                return Math.min(upperBound(ii), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget all of the recorded values
+     */
+    public void reset() {
+        for (int ii = 0; ii < BUCKETS; ++ii) {
+            counts.set(ii, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count " + getCount() + ", mean " + getMean() + "us, p50 "
+                + getPercentile(0.5) + "us, p99 " + getPercentile(0.99)
+                + "us, max " + getMax() + "us";
+    }
+
+    /**
+     * Get the index of the bucket for a value. The values below SUB_COUNT
+     * have a bucket each, and every following power of two is split into
+     * SUB_COUNT buckets.
+     */
+    private static int index(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS)
+                + (int) ((micros >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * @return the largest value stored in the bucket
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long lower = (long) (SUB_COUNT + (index & (SUB_COUNT - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+/**
+ * Describes how a node changed between two snapshots of a cluster.
+ * 
+ * @author Trond Norbye
+ */
+public class NodeChange {
+    /**
+     * The different kind of changes
+     */
+    public enum Type {
+        ADDED, REMOVED, CHANGED
+    }
+
+    /**
+     * The status of the node changed
+     */
+    public static final int STATUS = 0x01;
+
+    /**
+     * The cluster membership of the node changed
+     */
+    public static final int MEMBERSHIP = 0x02;
+
+    /**
+     * The node was restarted (the uptime went backwards)
+     */
+    public static final int RESTARTED = 0x04;
+
+    /**
+     * The memory usage, the cpu or the number of operations changed
+     */
+    public static final int METRICS = 0x08;
+
+    /**
+     * All of the fields
+     */
+    public static final int ALL = STATUS | MEMBERSHIP | RESTARTED | METRICS;
+
+    private final Type type;
+    private final int fields;
+    private final NodeHealth before;
+    private final NodeHealth after;
+
+    /**
+     * Create a new NodeChange
+     * 
+     * @param type
+     *            the type of change
+     * @param fields
+     *            the fields that changed (only used for CHANGED)
+     * @param before
+     *            the node in the previous snapshot (null for ADDED)
+     * @param after
+     *            the node in the current snapshot (null for REMOVED)
+     */
+    public NodeChange(Type type, int fields, NodeHealth before, NodeHealth after) {
+        this.type = type;
+        this.fields = fields;
+        this.before = before;
+        this.after = after;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return a bitmask of the fields that changed
+     */
+    public int getFields() {
+        return fields;
+    }
+
+    /**
+     * @param field
+     *            the field to check (STATUS, MEMBERSHIP etc)
+     * @return true if the field changed
+     */
+    public boolean hasChanged(int field) {
+        return (fields & field) != 0;
+    }
+
+    public NodeHealth getBefore() {
+        return before;
+    }
+
+    public NodeHealth getAfter() {
+        return after;
+    }
+
+    /**
+     * @return the hostname of the node that changed
+     */
+    public String getHostname() {
+        return after != null ? after.getHostname() : before.getHostname();
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+        case ADDED:
+            return "added " + after;
+        case REMOVED:
+            return "removed " + before;
+        default:
+            return "changed " + before + " -> " + after;
+        }
+    }
+}
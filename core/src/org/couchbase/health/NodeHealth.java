@@ -0,0 +1,162 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+/**
+ * A snapshot of the health of a single node in the cluster, as reported in
+ * the nodes list of the pool document.
+ * 
+ * @author Trond Norbye
+ */
+public class NodeHealth {
+    private final String hostname;
+    private final String status;
+    private final String clusterMembership;
+    private final long uptime;
+    private final long memoryTotal;
+    private final long memoryFree;
+    private final double ops;
+    private final double cpu;
+
+    /**
+     * Create a new instance of NodeHealth
+     * 
+     * @param hostname
+     *            the hostname (and port) identifying the node
+     * @param status
+     *            the status reported for the node ("healthy", "unhealthy",
+     *            "warmup" etc)
+     * @param clusterMembership
+     *            the membership of the node ("active", "inactiveAdded",
+     *            "inactiveFailed")
+     * @param uptime
+     *            the number of seconds the node has been running
+     * @param memoryTotal
+     *            the amount of memory (in bytes) on the node
+     * @param memoryFree
+     *            the amount of free memory (in bytes) on the node
+     * @param ops
+     *            the number of operations per second on the node
+     */
+    public NodeHealth(String hostname, String status, String clusterMembership,
+            long uptime, long memoryTotal, long memoryFree, double ops) {
+        this(hostname, status, clusterMembership, uptime, memoryTotal,
+                memoryFree, ops, Double.NaN);
+    }
+
+    /**
+     * Create a new instance of NodeHealth
+     * 
+     * @param hostname
+     *            the hostname (and port) identifying the node
+     * @param status
+     *            the status reported for the node ("healthy", "unhealthy",
+     *            "warmup" etc)
+     * @param clusterMembership
+     *            the membership of the node ("active", "inactiveAdded",
+     *            "inactiveFailed")
+     * @param uptime
+     *            the number of seconds the node has been running
+     * @param memoryTotal
+     *            the amount of memory (in bytes) on the node
+     * @param memoryFree
+     *            the amount of free memory (in bytes) on the node
+     * @param ops
+     *            the number of operations per second on the node
+     * @param cpu
+     *            the cpu utilization (in percent) of the node (NaN if
+     *            unknown)
+     */
+    public NodeHealth(String hostname, String status, String clusterMembership,
+            long uptime, long memoryTotal, long memoryFree, double ops,
+            double cpu) {
+        this.hostname = hostname;
+        this.status = status;
+        this.clusterMembership = clusterMembership;
+        this.uptime = uptime;
+        this.memoryTotal = memoryTotal;
+        this.memoryFree = memoryFree;
+        this.ops = ops;
+        this.cpu = cpu;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getClusterMembership() {
+        return clusterMembership;
+    }
+
+    public long getUptime() {
+        return uptime;
+    }
+
+    public long getMemoryTotal() {
+        return memoryTotal;
+    }
+
+    public long getMemoryFree() {
+        return memoryFree;
+    }
+
+    public double getOps() {
+        return ops;
+    }
+
+    /**
+     * @return the cpu utilization (in percent) of the node (NaN if unknown)
+     */
+    public double getCpu() {
+        return cpu;
+    }
+
+    /**
+     * @return true if the node reports itself as healthy
+     */
+    public boolean isHealthy() {
+        return "healthy".equalsIgnoreCase(status);
+    }
+
+    /**
+     * @return GOOD if the node is healthy, BAD otherwise
+     */
+    public State getState() {
+        return isHealthy() ? State.GOOD : State.BAD;
+    }
+
+    /**
+     * @return DEGRADED if the node is failed over, REBALANCING if it is
+     *         waiting to be rebalanced into the cluster, GOOD otherwise
+     */
+    public State getMembershipState() {
+        if ("inactiveFailed".equals(clusterMembership)) {
+            return State.DEGRADED;
+        } else if ("inactiveAdded".equals(clusterMembership)) {
+            return State.REBALANCING;
+        }
+        return State.GOOD;
+    }
+
+    @Override
+    public String toString() {
+        return hostname + " (" + status + ", " + clusterMembership + ")";
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+/**
+ * The stats of a single node, as returned from /nodes/self on the node
+ * itself (so it is available even if the node isn't the one we poll the
+ * pool from).
+ * 
+ * @author Trond Norbye
+ */
+public class NodeStats {
+    /**
+     * How the stats were collected
+     */
+    public enum Status {
+        /** The node answered within the deadline */
+        OK,
+        /**
+         * The node didn't answer within the deadline (the stats are the last
+         * ones we got, if any)
+         */
+        STRAGGLER,
+        /** The request failed */
+        FAILED
+    }
+
+    private final String hostname;
+    private final Status status;
+    private final long timestamp;
+    private final long latency;
+    private final String error;
+    private final double cpu;
+    private final long swapUsed;
+    private final long memoryTotal;
+    private final long memoryFree;
+    private final long memUsed;
+    private final long items;
+    private final double ops;
+    private final long uptime;
+
+    /**
+     * Create a new instance of NodeStats
+     * 
+     * @param hostname
+     *            the hostname (and port) identifying the node
+     * @param status
+     *            how the stats were collected
+     * @param timestamp
+     *            the time (System.currentTimeMillis()) we got the answer
+     *            (or the error) from the node
+     * @param latency
+     *            the number of milliseconds the request took (or has been
+     *            running for a straggler)
+     * @param error
+     *            the reason the request failed (null unless FAILED)
+     * @param cpu
+     *            the CPU utilization in percent
+     * @param swapUsed
+     *            the number of bytes of swap used
+     * @param memoryTotal
+     *            the amount of memory (in bytes) on the node
+     * @param memoryFree
+     *            the amount of free memory (in bytes) on the node
+     * @param memUsed
+     *            the number of bytes used by the data on the node
+     * @param items
+     *            the number of items on the node
+     * @param ops
+     *            the number of operations per second on the node
+     * @param uptime
+     *            the number of seconds the node has been running
+     */
+    public NodeStats(String hostname, Status status, long timestamp,
+            long latency, String error, double cpu, long swapUsed,
+            long memoryTotal, long memoryFree, long memUsed, long items,
+            double ops, long uptime) {
+        this.hostname = hostname;
+        this.status = status;
+        this.timestamp = timestamp;
+        this.latency = latency;
+        this.error = error;
+        this.cpu = cpu;
+        this.swapUsed = swapUsed;
+        this.memoryTotal = memoryTotal;
+        this.memoryFree = memoryFree;
+        this.memUsed = memUsed;
+        this.items = items;
+        this.ops = ops;
+        this.uptime = uptime;
+    }
+
+    /**
+     * Create the stats of a node we failed to get the stats from
+     * 
+     * @param hostname
+     *            the hostname (and port) identifying the node
+     * @param status
+     *            STRAGGLER or FAILED
+     * @param timestamp
+     *            the time of the error (0 for a straggler)
+     * @param latency
+     *            the number of milliseconds we waited
+     * @param error
+     *            the reason (may be null)
+     * @param last
+     *            the last stats we got from the node (may be null)
+     * @return the stats
+     */
+    static NodeStats missing(String hostname, Status status,
+            long timestamp, long latency, String error, NodeStats last) {
+        if (last == null) {
+            return new NodeStats(hostname, status, timestamp, latency, error,
+                    Double.NaN, 0, 0, 0, 0, 0, Double.NaN, 0);
+        }
+        if (timestamp == 0) {
+            timestamp = last.timestamp;
+        }
+        return new NodeStats(hostname, status, timestamp, latency,
+                error, last.cpu, last.swapUsed, last.memoryTotal,
+                last.memoryFree, last.memUsed, last.items, last.ops,
+                last.uptime);
+    }
+
+    /**
+     * @return a copy of the stats with the latency of the request
+     */
+    NodeStats withLatency(long latency) {
+        return new NodeStats(hostname, status, timestamp, latency, error,
+                cpu, swapUsed, memoryTotal, memoryFree, memUsed, items, ops,
+                uptime);
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the time we last heard from the node (0 if we never did)
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public double getCpu() {
+        return cpu;
+    }
+
+    public long getSwapUsed() {
+        return swapUsed;
+    }
+
+    public long getMemoryTotal() {
+        return memoryTotal;
+    }
+
+    public long getMemoryFree() {
+        return memoryFree;
+    }
+
+    public long getMemUsed() {
+        return memUsed;
+    }
+
+    public long getItems() {
+        return items;
+    }
+
+    public double getOps() {
+        return ops;
+    }
+
+    public long getUptime() {
+        return uptime;
+    }
+
+    @Override
+    public String toString() {
+        return hostname + " (" + status + ", " + latency + "ms"
+                + (error == null ? "" : ", " + error) + ")";
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Collects the stats of every node in a cluster by sending a request to
+ * /nodes/self on all of the nodes in parallel.
+ * 
+ * The number of requests in flight is bounded by a semaphore, and the
+ * collection never waits longer than the deadline: the nodes that haven't
+ * answered by then are reported as stragglers (with the last stats we got
+ * from them), so the time it takes is the time of the slowest node that
+ * answers, not the sum of all of them. A straggler's request keeps running
+ * until its read timeout (holding its permit), and we don't send another
+ * request to the node until it completes.
+ * 
+ * @author Trond Norbye
+ */
+public class NodeStatsCollector {
+    private static final Logger LOG = Logger.getLogger("org.couchbase.health");
+
+    /**
+     * The default number of requests in flight per cluster
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    /**
+     * The default number of milliseconds we'll wait for the nodes
+     */
+    public static final long DEFAULT_DEADLINE = 3000;
+
+    private final Executor executor;
+    private final Semaphore permits;
+    private final long deadline;
+    private final WebSpider spider;
+
+    /**
+     * The last stats received from each node (the requests completing after
+     * the deadline update them as well)
+     */
+    private final ConcurrentMap<String, NodeStats> latest = new ConcurrentHashMap<String, NodeStats>();
+
+    /**
+     * The nodes we're still waiting for an answer from
+     */
+    private final Set<String> inFlight = Collections
+            .synchronizedSet(new HashSet<String>());
+
+    /**
+     * Where to record the timings (null if we shouldn't record them)
+     */
+    private volatile PollMetrics metrics;
+
+    /**
+     * Create a new NodeStatsCollector
+     * 
+     * @param executor
+     *            where to run the requests (it must be able to run
+     *            maxInFlight requests at the same time)
+     * @param maxInFlight
+     *            the maximum number of requests in flight
+     * @param deadline
+     *            the number of milliseconds to wait for the nodes
+     */
+    public NodeStatsCollector(Executor executor, int maxInFlight,
+            long deadline) {
+        this.executor = executor;
+        this.deadline = deadline;
+        permits = new Semaphore(maxInFlight);
+        // Give up on a straggler after a while so it doesn't hold its
+        // permit forever
+        int timeout = (int) Math.min(Integer.MAX_VALUE, deadline * 4);
+        spider = new WebSpider((int) Math.min(deadline,
+                WebSpider.DEFAULT_CONNECT_TIMEOUT), timeout);
+    }
+
+    /**
+     * Record the timings and the errors of the requests we send
+     * 
+     * @param metrics
+     *            where to record them (null to stop recording)
+     */
+    public void setMetrics(PollMetrics metrics) {
+        this.metrics = metrics;
+        spider.setMetrics(metrics);
+    }
+
+    /**
+     * Collect the stats of all of the nodes in the snapshot
+     * 
+     * @param snapshot
+     *            the nodes in the cluster
+     * @return the stats of each node (in the order of the snapshot)
+     * @throws IOException
+     *             if we're interrupted while waiting for the nodes
+     */
+    public List<NodeStats> collect(ClusterSnapshot snapshot)
+            throws IOException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(deadline);
+        int count = snapshot.size();
+        long[] started = new long[count];
+        CountDownLatch done = new CountDownLatch(count);
+
+        try {
+            for (int ii = 0; ii < count; ++ii) {
+                String hostname = snapshot.getNode(ii).getHostname();
+                started[ii] = System.nanoTime();
+                if (!inFlight.add(hostname)) {
+                    // Still waiting for the last request to the node
+                    done.countDown();
+                } else if (!permits.tryAcquire(Math.max(0, end - started[ii]),
+                        TimeUnit.NANOSECONDS)) {
+                    inFlight.remove(hostname);
+                    done.countDown();
+                } else {
+                    submit(hostname, done);
+                }
+            }
+            done.await(Math.max(0, end - System.nanoTime()),
+                    TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+
+        // Merge the answers (ignoring the answers from before we started)
+        long now = System.nanoTime();
+        long since = System.currentTimeMillis()
+                - TimeUnit.NANOSECONDS.toMillis(now - start);
+        List<NodeStats> ret = new ArrayList<NodeStats>(count);
+        Set<String> hostnames = new HashSet<String>();
+        int stragglers = 0;
+        for (int ii = 0; ii < count; ++ii) {
+            String hostname = snapshot.getNode(ii).getHostname();
+            hostnames.add(hostname);
+            NodeStats stats = latest.get(hostname);
+            if (stats == null || stats.getTimestamp() < since) {
+                long waited = TimeUnit.NANOSECONDS.toMillis(now - started[ii]);
+                stats = NodeStats.missing(hostname, NodeStats.Status.STRAGGLER,
+                        0, waited, null, stats);
+                ++stragglers;
+            }
+            ret.add(stats);
+        }
+        latest.keySet().retainAll(hostnames);
+
+        PollMetrics m = metrics;
+        if (m != null) {
+            m.record(PollMetrics.Phase.NODES, start);
+            m.add(PollMetrics.Counter.STRAGGLERS, stragglers);
+        }
+        if (stragglers > 0) {
+            LOG.fine(stragglers + " of " + count
+                    + " nodes didn't answer within " + deadline + "ms");
+        }
+        return ret;
+    }
+
+    /**
+     * Send the request to a node (we've got a permit for it)
+     */
+    private void submit(final String hostname, final CountDownLatch done) {
+        final long start = System.nanoTime();
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    NodeStats stats = spider.download(new URL("http://"
+                            + hostname + "/nodes/self"),
+                            new WebSpider.BodyHandler<NodeStats>() {
+                                public NodeStats handle(InputStream body)
+                                        throws IOException {
+                                    JsonPullParser parser = JsonPullParser
+                                            .obtain(body);
+                                    try {
+                                        return PoolDocumentParser
+                                                .parseNodeStats(parser,
+                                                        hostname);
+                                    } finally {
+                                        parser.recycle();
+                                    }
+                                }
+                            });
+                    latest.put(hostname, stats.withLatency(elapsed(start)));
+                } catch (IOException e) {
+                    latest.put(hostname, NodeStats.missing(hostname,
+                            NodeStats.Status.FAILED,
+                            System.currentTimeMillis(), elapsed(start),
+                            e.toString(), latest.get(hostname)));
+                } finally {
+                    inFlight.remove(hostname);
+                    permits.release();
+                    done.countDown();
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(hostname);
+            permits.release();
+            done.countDown();
+        }
+    }
+
+    private static long elapsed(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
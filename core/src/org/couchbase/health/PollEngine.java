@@ -0,0 +1,319 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PollEngine owns all of the network IO used to poll the clusters. Polls
+ * run on a small bounded pool of worker threads, and only the computed result
+ * is handed back to the caller through the callback executor (which is the
+ * main thread when used from the service).
+ *
+ * A cluster is never polled twice at the same time. If a poll is requested
+ * while the previous poll of the same cluster is still running, the request
+ * is skipped and counted.
+ *
+ * @author Trond Norbye
+ */
+public class PollEngine {
+    /**
+     * Callback interface used to deliver the result of a poll
+     */
+    public interface Listener {
+        /**
+         * Called on the callback executor when a poll completes
+         *
+         * @param key
+         *            the key identifying the cluster that was polled
+         * @param result
+         *            the result of the poll
+         * @param latency
+         *            the time (in ms) the poll took
+         */
+        void onPollComplete(String key, PollResult result, long latency);
+    }
+
+    /**
+     * The executor running the blocking network IO
+     */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * The executor we're using to deliver the results
+     */
+    private final Executor callbackExecutor;
+
+    /**
+     * The keys of the clusters we're currently polling
+     */
+    private final ConcurrentMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * A poll to run as soon as the current poll of the cluster completes
+     */
+    private static class Pending {
+        final Callable<PollResult> poll;
+        final Listener listener;
+
+        Pending(Callable<PollResult> poll, Listener listener) {
+            this.poll = poll;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * The polls waiting for the current poll of their cluster (at most one
+     * per cluster, guarded by itself)
+     */
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private volatile long lastLatency;
+
+    /**
+     * Create a new instance of the PollEngine
+     *
+     * @param threads
+     *            the number of worker threads to use for network IO
+     * @param queueSize
+     *            the maximum number of polls waiting for a worker thread
+     * @param callbackExecutor
+     *            the executor used to deliver the results
+     */
+    public PollEngine(int threads, int queueSize, Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        workers = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueSize), new DaemonThreadFactory("couchbase-poll"));
+    }
+
+    /**
+     * Schedule a poll of a cluster.
+     *
+     * @param key
+     *            the key identifying the cluster
+     * @param poll
+     *            the code performing the (blocking) poll
+     * @param listener
+     *            where to deliver the result
+     * @return true if the poll was scheduled, false if the previous poll of
+     *         the cluster is still running (or the engine is saturated)
+     */
+    public boolean submit(final String key, final Callable<PollResult> poll,
+            final Listener listener) {
+        if (inFlight.putIfAbsent(key, Boolean.TRUE) != null) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        return dispatch(key, poll, listener);
+    }
+
+    /**
+     * Schedule a poll of a cluster, or run it as soon as the current poll of
+     * the cluster completes (replacing any poll already waiting for it). The
+     * results of a cluster are delivered in the order they are computed.
+     *
+     * @param key
+     *            the key identifying the cluster
+     * @param poll
+     *            the code performing the (blocking) poll
+     * @param listener
+     *            where to deliver the result
+     * @return false if the engine is saturated
+     */
+    public boolean submitAfter(String key, Callable<PollResult> poll,
+            Listener listener) {
+        synchronized (pending) {
+            if (inFlight.putIfAbsent(key, Boolean.TRUE) != null) {
+                pending.put(key, new Pending(poll, listener));
+                return true;
+            }
+        }
+        return dispatch(key, poll, listener);
+    }
+
+    /**
+     * Hand a poll of a cluster (flagged as in flight) to the workers
+     */
+    private boolean dispatch(final String key, final Callable<PollResult> poll,
+            final Listener listener) {
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    execute(key, poll, listener);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (pending) {
+                pending.remove(key);
+                inFlight.remove(key);
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The poll of a cluster is done: start the poll waiting for it, or
+     * clear the in flight flag
+     */
+    private void release(String key) {
+        Pending next;
+        synchronized (pending) {
+            next = pending.remove(key);
+            if (next == null) {
+                inFlight.remove(key);
+            }
+        }
+        if (next != null) {
+            dispatch(key, next.poll, next.listener);
+        }
+    }
+
+    private void execute(final String key, Callable<PollResult> poll,
+            final Listener listener) {
+        inFlightCount.incrementAndGet();
+        long start = System.nanoTime();
+        PollResult result;
+        try {
+            result = poll.call();
+        } catch (Exception e) {
+            result = PollResult.failed(State.NETWORK_ERROR, e.toString());
+        } finally {
+            inFlightCount.decrementAndGet();
+        }
+
+        final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                - start);
+        recordLatency(latency);
+
+        if (workers.isShutdown()) {
+            // Nobody is interested in the result anymore
+            release(key);
+            return;
+        }
+
+        final PollResult pollResult = result;
+        try {
+            callbackExecutor.execute(new Runnable() {
+                public void run() {
+                    listener.onPollComplete(key, pollResult, latency);
+                }
+            });
+        } finally {
+            // Only now, so that the results of a cluster are delivered in
+            // the order they were computed
+            release(key);
+        }
+    }
+
+    private void recordLatency(long latency) {
+        completed.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        lastLatency = latency;
+        long max;
+        while ((max = maxLatency.get()) < latency) {
+            if (maxLatency.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stop the engine. Polls currently running are interrupted, and their
+     * results are discarded.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return the number of polls currently running
+     */
+    public int getInFlight() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * @return the number of polls that have completed
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of polls skipped because the previous poll of the
+     *         same cluster was still running
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of polls rejected because the engine was saturated
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the latency (in ms) of the last poll
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * @return the highest latency (in ms) seen so far
+     */
+    public long getMaxLatency() {
+        return maxLatency.get();
+    }
+
+    /**
+     * @return the average latency (in ms) of all completed polls
+     */
+    public long getAverageLatency() {
+        long count = completed.get();
+        return count == 0 ? 0 : totalLatency.get() / count;
+    }
+
+    @Override
+    public String toString() {
+        return "in-flight: " + getInFlight() + " completed: " + getCompleted()
+                + " skipped: " + getSkipped() + " rejected: " + getRejected()
+                + " latency (last/avg/max ms): " + getLastLatency() + "/"
+                + getAverageLatency() + "/" + getMaxLatency();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and error counters for the polls of a single cluster, recorded
+ * by the WebSpider and the PoolHealthReader so that we can tell whether a
+ * slow poll is spending its time in DNS, connecting, waiting for the
+ * server, receiving/parsing the body or failing over.
+ * 
+ * All of the memory is allocated up front, and recording is lock free.
+ * 
+ * @author Trond Norbye
+ */
+public class PollMetrics {
+    /**
+     * The phases we time
+     */
+    public enum Phase {
+        /** Resolving the hostname */
+        DNS,
+        /** Connecting (close to 0 if a pooled connection is reused) */
+        CONNECT,
+        /** Sending the request until the response headers are received */
+        FIRST_BYTE,
+        /** Receiving and parsing the body */
+        BODY,
+        /** Locating the pool (PoolHealthReader.bootstrap) */
+        BOOTSTRAP,
+        /** Getting a snapshot of the nodes (including fail over) */
+        SNAPSHOT,
+        /** Collecting the stats of all of the buckets */
+        BUCKETS,
+        /** Collecting the stats from every node in parallel */
+        NODES
+    }
+
+    /**
+     * The kinds of errors we count
+     */
+    public enum Error {
+        DNS, CONNECT, TIMEOUT, HTTP, PARSE, OTHER
+    }
+
+    /**
+     * The events we count
+     */
+    public enum Counter {
+        /** Requests sent */
+        REQUESTS,
+        /** Conditional requests answered with 304 */
+        NOT_MODIFIED,
+        /** Times we moved to another seed */
+        FAILOVERS,
+        /** Requests sent to another seed because the first one was slow */
+        HEDGED,
+        /** Hedged requests skipped because the hedge threads were busy */
+        HEDGE_SKIPPED,
+        /** Bytes received in the bodies (before they are decompressed) */
+        BYTES,
+        /** Nodes that didn't answer within the deadline of the fan-out */
+        STRAGGLERS
+    }
+
+    private final String key;
+    private final LatencyHistogram[] phases;
+    private final AtomicLongArray errors = new AtomicLongArray(
+            Error.values().length);
+    private final AtomicLongArray counters = new AtomicLongArray(
+            Counter.values().length);
+
+    /**
+     * The last error (and when it happened) so that the user can see what
+     * actually failed
+     */
+    private volatile String lastError;
+    private volatile long lastErrorTime;
+
+    /**
+     * Create the metrics for a cluster
+     * 
+     * @param key
+     *            the key identifying the cluster
+     */
+    public PollMetrics(String key) {
+        this.key = key;
+        phases = new LatencyHistogram[Phase.values().length];
+        for (int ii = 0; ii < phases.length; ++ii) {
+            phases[ii] = new LatencyHistogram();
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Record the time spent in a phase
+     * 
+     * @param phase
+     *            the phase
+     * @param start
+     *            the time (System.nanoTime()) the phase started
+     * @return the time the phase ended (so that it may be used as the start
+     *         of the next phase)
+     */
+    public long record(Phase phase, long start) {
+        long now = System.nanoTime();
+        phases[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    public void count(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(Counter counter, long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * Count an error
+     * 
+     * @param error
+     *            the kind of error
+     * @param cause
+     *            the exception
+     */
+    public void error(Error error, IOException cause) {
+        errors.incrementAndGet(error.ordinal());
+        lastError = cause.toString();
+        lastErrorTime = System.currentTimeMillis();
+    }
+
+    public long getErrors(Error error) {
+        return errors.get(error.ordinal());
+    }
+
+    /**
+     * Classify an exception thrown while we talked to the server
+     * 
+     * @param e
+     *            the exception
+     * @param body
+     *            set if we were processing the body of the response
+     * @return the kind of error
+     */
+    public static Error classify(IOException e, boolean body) {
+        if (e instanceof UnknownHostException) {
+            return Error.DNS;
+        } else if (e instanceof SocketTimeoutException) {
+            return Error.TIMEOUT;
+        } else if (e instanceof ConnectException
+                || e instanceof NoRouteToHostException) {
+            return Error.CONNECT;
+        } else if (e instanceof FileNotFoundException) {
+            return Error.HTTP;
+        } else if (body && !(e instanceof SocketException)) {
+            return Error.PARSE;
+        }
+        return Error.OTHER;
+    }
+
+    /**
+     * Forget everything recorded
+     */
+    public void reset() {
+        for (LatencyHistogram histogram : phases) {
+            histogram.reset();
+        }
+        for (int ii = 0; ii < errors.length(); ++ii) {
+            errors.set(ii, 0);
+        }
+        for (int ii = 0; ii < counters.length(); ++ii) {
+            counters.set(ii, 0);
+        }
+        lastError = null;
+        lastErrorTime = 0;
+    }
+
+    /**
+     * Write a human readable report of the metrics
+     * 
+     * @param sb
+     *            where to write the report
+     */
+    public void dump(StringBuilder sb) {
+        sb.append(key).append('\n');
+        sb.append("  ");
+        for (Counter counter : Counter.values()) {
+            if (counter.ordinal() > 0) {
+                sb.append(", ");
+            }
+            sb.append(counter.name().toLowerCase(Locale.US)).append(' ')
+                    .append(getCount(counter));
+        }
+        sb.append('\n');
+        sb.append("  errors:");
+        for (Error error : Error.values()) {
+            sb.append(' ').append(error.name().toLowerCase(Locale.US))
+                    .append(' ').append(getErrors(error));
+        }
+        sb.append('\n');
+        String last = lastError;
+        if (last != null) {
+            sb.append("  last error: ").append(new Date(lastErrorTime))
+                    .append(' ').append(last).append('\n');
+        }
+        dumpHeader(sb);
+        for (Phase phase : Phase.values()) {
+            dump(sb, phase.name().toLowerCase(Locale.US), getHistogram(phase));
+        }
+    }
+
+    /**
+     * Write the header of the table written by dump()
+     */
+    static void dumpHeader(StringBuilder sb) {
+        sb.append(String.format(Locale.US, "  %-10s %7s %9s %9s %9s %9s\n",
+                "(ms)", "count", "p50", "p90", "p99", "max"));
+    }
+
+    /**
+     * Write a line with the percentiles of a histogram (in milliseconds)
+     */
+    static void dump(StringBuilder sb, String name, LatencyHistogram histogram) {
+        sb.append(String.format(Locale.US,
+                "  %-10s %7d %9.1f %9.1f %9.1f %9.1f\n", name, histogram
+                        .getCount(), histogram.getPercentile(0.5) / 1000.0,
+                histogram.getPercentile(0.9) / 1000.0, histogram
+                        .getPercentile(0.99) / 1000.0,
+                histogram.getMax() / 1000.0));
+    }
+}
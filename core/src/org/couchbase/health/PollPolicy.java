@@ -0,0 +1,42 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+/**
+ * A PollPolicy decides when a cluster should be polled the next time. Each
+ * cluster has its own instance of the policy (it may keep state between the
+ * polls).
+ * 
+ * @author Trond Norbye
+ */
+public interface PollPolicy {
+    /**
+     * Get the delay until the next poll
+     * 
+     * @param state
+     *            the state returned by the poll that just completed
+     * @return the number of milliseconds until the next poll
+     */
+    long nextDelay(State state);
+
+    /**
+     * Get the delay to use when a poll couldn't be started (the previous poll
+     * is still running or we're streaming the updates)
+     * 
+     * @return the number of milliseconds until the next poll
+     */
+    long currentDelay();
+}
@@ -0,0 +1,88 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a single poll of a cluster.
+ * 
+ * @author Trond Norbye
+ */
+public class PollResult {
+    private final State state;
+    private final ClusterSnapshot snapshot;
+    private final List<NodeChange> changes;
+    private final String error;
+
+    /**
+     * Create a new PollResult
+     * 
+     * @param state
+     *            the aggregated state of the cluster
+     * @param snapshot
+     *            the snapshot of the nodes in the cluster (null if the poll
+     *            failed)
+     * @param changes
+     *            the nodes that changed since the previous poll
+     */
+    public PollResult(State state, ClusterSnapshot snapshot,
+            List<NodeChange> changes) {
+        this(state, snapshot, changes, null);
+    }
+
+    private PollResult(State state, ClusterSnapshot snapshot,
+            List<NodeChange> changes, String error) {
+        this.state = state;
+        this.snapshot = snapshot;
+        this.changes = changes;
+        this.error = error;
+    }
+
+    /**
+     * Create a PollResult for a failed poll
+     * 
+     * @param state
+     *            the state to report for the cluster
+     * @param error
+     *            what went wrong
+     * @return the result
+     */
+    public static PollResult failed(State state, String error) {
+        List<NodeChange> none = Collections.emptyList();
+        return new PollResult(state, null, none, error);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public ClusterSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public List<NodeChange> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return what went wrong if the poll failed (null otherwise)
+     */
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel used to schedule the polls of all of the clusters
+ * from a single thread.
+ *
+ * Scheduling and cancelling a poll is O(1), and the thread only wakes up once
+ * per tick regardless of the number of clusters we're monitoring. The tasks
+ * run on the thread driving the wheel, so they must not block (they should
+ * just hand the work over to the PollEngine).
+ *
+ * @author Trond Norbye
+ */
+public class PollScheduler {
+    /**
+     * A single scheduled task. The timeouts in a slot is kept in a doubly
+     * linked list so that we may remove them in constant time.
+     */
+    private static class Timeout {
+        final String key;
+        final Runnable task;
+        long deadline;
+        int slot;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(String key, Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+    }
+
+    /**
+     * The number of milliseconds between each tick of the wheel
+     */
+    private final long tickMillis;
+
+    /**
+     * The slots in the wheel (the size is a power of two)
+     */
+    private final Timeout[] wheel;
+
+    /**
+     * Mask used to map a tick to a slot in the wheel
+     */
+    private final int mask;
+
+    /**
+     * All of the scheduled tasks, so that we can replace or cancel them
+     */
+    private final Map<String, Timeout> timeouts = new HashMap<String, Timeout>();
+
+    /**
+     * The number of ticks processed
+     */
+    private long tick;
+
+    /**
+     * The thread driving the wheel (null while we're stopped). A thread
+     * exits as soon as it isn't the current one, so a stop() followed by a
+     * start() never leaves two threads driving the wheel (and stop() doesn't
+     * have to wait for the thread, which may be the caller).
+     */
+    private volatile Thread thread;
+
+    /**
+     * Create a new PollScheduler
+     *
+     * @param tickMillis
+     *            the resolution of the timer (in ms)
+     * @param wheelSize
+     *            the number of slots in the wheel (rounded up to the next
+     *            power of two)
+     */
+    public PollScheduler(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        wheel = new Timeout[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Start the thread driving the wheel
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            public void run() {
+                runWheel();
+            }
+        }, "couchbase-poll-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the thread driving the wheel and drop all scheduled tasks
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            for (int ii = 0; ii < wheel.length; ++ii) {
+                wheel[ii] = null;
+            }
+            timeouts.clear();
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    /**
+     * Schedule a task to run once after the given delay. Any task already
+     * scheduled with the same key is replaced.
+     *
+     * @param key
+     *            the key identifying the task (the cluster to poll)
+     * @param delay
+     *            the number of milliseconds until the task should run
+     * @param task
+     *            the task to run
+     */
+    public synchronized void schedule(String key, long delay, Runnable task) {
+        cancel(key);
+        long ticks = Math.max(1, (delay + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(key, task);
+        timeout.deadline = tick + ticks;
+        timeout.slot = (int) (timeout.deadline & mask);
+        timeout.next = wheel[timeout.slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        wheel[timeout.slot] = timeout;
+        timeouts.put(key, timeout);
+    }
+
+    /**
+     * Cancel a scheduled task
+     *
+     * @param key
+     *            the key identifying the task
+     * @return true if the task was scheduled
+     */
+    public synchronized boolean cancel(String key) {
+        Timeout timeout = timeouts.remove(key);
+        if (timeout == null) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * @return the number of scheduled tasks
+     */
+    public synchronized int size() {
+        return timeouts.size();
+    }
+
+    /**
+     * Get the initial delay for a target so that the first poll of all of the
+     * targets is spread evenly over the interval.
+     *
+     * @param interval
+     *            the poll interval (in ms)
+     * @param index
+     *            the index of the target
+     * @param count
+     *            the total number of targets
+     * @return the delay (in ms) before the first poll of the target
+     */
+    public long spread(long interval, int index, int count) {
+        if (count <= 1) {
+            return 0;
+        }
+        return interval * index / count;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else if (wheel[timeout.slot] == timeout) {
+            wheel[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+    }
+
+    private void runWheel() {
+        final Thread self = Thread.currentThread();
+        final long start = System.nanoTime();
+        long processed = 0;
+        List<Runnable> expired = new ArrayList<Runnable>();
+
+        while (thread == self) {
+            long deadline = start + (processed + 1) * tickMillis * 1000000L;
+            long sleep = (deadline - System.nanoTime()) / 1000000L;
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            ++processed;
+
+            synchronized (this) {
+                if (thread != self) {
+                    break;
+                }
+                ++tick;
+                Timeout timeout = wheel[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline <= tick) {
+                        unlink(timeout);
+                        timeouts.remove(timeout.key);
+                        expired.add(timeout.task);
+                    }
+                    timeout = next;
+                }
+            }
+
+            for (Runnable task : expired) {
+                if (thread != self) {
+                    // Stopped by one of the tasks
+                    break;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streaming parser for the documents returned from the REST interface. Only
+ * the fields we need are extracted, everything else is skipped while reading
+ * the stream. The names of the fields are matched against precompiled
+ * sets of names, so we don't create Strings for the fields we skip.
+ *
+ * @author Trond Norbye
+ */
+public class PoolDocumentParser {
+    private static final JsonPullParser.Names POOLS = new JsonPullParser.Names(
+            "pools");
+    private static final JsonPullParser.Names POOL_FIELDS = new JsonPullParser.Names(
+            "name", "uri", "streamingUri");
+    private static final JsonPullParser.Names POOL = new JsonPullParser.Names(
+            "nodes", "rebalanceStatus");
+    private static final JsonPullParser.Names TASK_FIELDS = new JsonPullParser.Names(
+            "type", "status", "progress");
+    private static final JsonPullParser.Names REBALANCE_FIELDS = new JsonPullParser.Names(
+            "status", "progress");
+    private static final JsonPullParser.Names BUCKET_FIELDS = new JsonPullParser.Names(
+            "name", "stats");
+    private static final JsonPullParser.Names URI = new JsonPullParser.Names(
+            "uri");
+    private static final JsonPullParser.Names OP = new JsonPullParser.Names(
+            "op");
+    private static final JsonPullParser.Names SAMPLES = new JsonPullParser.Names(
+            "samples");
+    private static final JsonPullParser.Names METRICS = new JsonPullParser.Names(
+            BucketStats.METRICS);
+    private static final JsonPullParser.Names NODE_FIELDS = new JsonPullParser.Names(
+            "hostname", "status", "clusterMembership", "uptime",
+            "memoryTotal", "memoryFree", "interestingStats", "systemStats");
+    private static final JsonPullParser.Names OPS = new JsonPullParser.Names(
+            "ops");
+    private static final JsonPullParser.Names SELF_FIELDS = new JsonPullParser.Names(
+            "systemStats", "interestingStats", "memoryTotal", "memoryFree",
+            "uptime");
+    private static final JsonPullParser.Names SYSTEM_STATS = new JsonPullParser.Names(
+            "cpu_utilization_rate", "swap_used");
+    private static final JsonPullParser.Names INTERESTING_STATS = new JsonPullParser.Names(
+            "curr_items", "mem_used", "ops");
+
+    /**
+     * The values of the status fields of the rebalance
+     */
+    private static final JsonPullParser.Names REBALANCE_VALUES = new JsonPullParser.Names(
+            "none", "running", "rebalance", "notRunning");
+
+    /**
+     * The values of the status and clusterMembership fields (so that we
+     * don't create new Strings for them in every poll)
+     */
+    static final JsonPullParser.Names NODE_VALUES = new JsonPullParser.Names(
+            "healthy", "unhealthy", "warmup", "active", "inactiveAdded",
+            "inactiveFailed");
+
+    /**
+     * Locate the URIs for the named pool in the document returned from /pools
+     *
+     * @param parser
+     *            the parser positioned at the start of the document
+     * @param poolName
+     *            the name of the pool to look for
+     * @return an array containing the URI of the pool and the URI of the
+     *         streaming version of the pool (which may be null), or null if
+     *         the pool wasn't found
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public static String[] parsePoolUris(JsonPullParser parser,
+            String poolName) throws IOException {
+        String[] ret = null;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            if (parser.nextName(POOLS) == -1) {
+                parser.skipValue();
+                continue;
+            }
+            parser.beginArray();
+            while (parser.hasNext()) {
+                String name = null;
+                String uri = null;
+                String streamingUri = null;
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    switch (parser.nextName(POOL_FIELDS)) {
+                    case 0:
+                        name = parser.nextString();
+                        break;
+                    case 1:
+                        uri = parser.nextString();
+                        break;
+                    case 2:
+                        streamingUri = parser.nextString();
+                        break;
+                    default:
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+                if (ret == null && uri != null
+                        && poolName.equalsIgnoreCase(name)) {
+                    ret = new String[] { uri, streamingUri };
+                }
+            }
+            parser.endArray();
+        }
+        parser.endObject();
+        return ret;
+    }
+
+    /**
+     * Get a snapshot of all of the nodes listed in a pool document
+     * (/pools/default)
+     *
+     * @param parser
+     *            the parser positioned at the start of the document
+     * @return a snapshot of the nodes in the cluster
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public static ClusterSnapshot parseSnapshot(JsonPullParser parser)
+            throws IOException {
+        LinkedHashMap<String, NodeHealth> nodes = null;
+        boolean rebalancing = false;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            switch (parser.nextName(POOL)) {
+            case 0:
+                nodes = new LinkedHashMap<String, NodeHealth>();
+                parser.beginArray();
+                while (parser.hasNext()) {
+                    NodeHealth node = parseNode(parser);
+                    nodes.put(node.getHostname(), node);
+                }
+                parser.endArray();
+                break;
+            case 1:
+                rebalancing = parser.nextString(REBALANCE_VALUES).equals(
+                        "running");
+                break;
+            default:
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+
+        if (nodes == null) {
+            throw new IOException("Missing \"nodes\" in pool document");
+        }
+        return new ClusterSnapshot(System.currentTimeMillis(), nodes,
+                rebalancing);
+    }
+
+    /**
+     * Get the progress of the rebalance from the list of tasks returned from
+     * /pools/default/tasks (Couchbase Server 2.0 and later)
+     * 
+     * @param parser
+     *            the parser positioned at the start of the document
+     * @return the percentage of the rebalance done, or NaN if no rebalance
+     *         is running
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public static double parseTasks(JsonPullParser parser) throws IOException {
+        double ret = Double.NaN;
+        parser.beginArray();
+        while (parser.hasNext()) {
+            String type = null;
+            String status = null;
+            double progress = Double.NaN;
+            parser.beginObject();
+            while (parser.hasNext()) {
+                switch (parser.nextName(TASK_FIELDS)) {
+                case 0:
+                    type = parser.nextString(REBALANCE_VALUES);
+                    break;
+                case 1:
+                    status = parser.nextString(REBALANCE_VALUES);
+                    break;
+                case 2:
+                    progress = parser.nextDouble();
+                    break;
+                default:
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+            if ("rebalance".equals(type) && "running".equals(status)) {
+                ret = Double.isNaN(progress) ? 0 : progress;
+            }
+        }
+        parser.endArray();
+        return ret;
+    }
+
+    /**
+     * Get the progress of the rebalance from the document returned from
+     * /pools/default/rebalanceProgress (Couchbase Server 1.8), which lists
+     * the progress (0 - 1) of each node
+     * 
+     * @param parser
+     *            the parser positioned at the start of the document
+     * @return the average percentage done by the nodes, or NaN if no
+     *         rebalance is running
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public static double parseRebalanceProgress(JsonPullParser parser)
+            throws IOException {
+        boolean running = false;
+        double total = 0;
+        int count = 0;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            if (parser.nextName(REBALANCE_FIELDS) == 0) {
+                running = parser.nextString(REBALANCE_VALUES).equals(
+                        "running");
+            } else if (parser.peek() == JsonPullParser.Token.BEGIN_OBJECT) {
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    if (parser.nextName(REBALANCE_FIELDS) == 1) {
+                        total += parser.nextDouble();
+                        ++count;
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+            } else {
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        if (!running) {
+            return Double.NaN;
+        }
+        return count == 0 ? 0 : total * 100 / count;
+    }
+
+    /**
+     * Get the buckets listed in the document returned from
+     * /pools/default/buckets
+     * 
+     * @param parser
+     *            the parser positioned at the start of the document
+     * @return a map from the name of each bucket to the URI of its stats
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public static Map<String, String> parseBucketList(JsonPullParser parser)
+            throws IOException {
+        Map<String, String> ret = new LinkedHashMap<String, String>();
+        parser.beginArray();
+        while (parser.hasNext()) {
+            String name = null;
+            String statsUri = null;
+            parser.beginObject();
+            while (parser.hasNext()) {
+                switch (parser.nextName(BUCKET_FIELDS)) {
+                case 0:
+                    name = parser.nextString();
+                    break;
+                case 1:
+                    parser.beginObject();
+                    while (parser.hasNext()) {
+                        if (parser.nextName(URI) == 0) {
+                            statsUri = parser.nextString();
+                        } else {
+                            parser.skipValue();
+                        }
+                    }
+                    parser.endObject();
+                    break;
+                default:
+                    parser.skipValue();
+                }
+            }
+            parser.endObject();
+            if (name != null && statsUri != null) {
+                ret.put(name, statsUri);
+            }
+        }
+        parser.endArray();
+        return ret;
+    }
+
+    /**
+     * Read the samples of the interesting statistics from the document
+     * returned from /pools/default/buckets/{name}/stats into the (reused)
+     * arrays of a BucketStats
+     * 
+     * @param parser
+     *            the parser positioned at the start of the document
+     * @param stats
+     *            where to store the samples
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public static void parseBucketStats(JsonPullParser parser,
+            BucketStats stats) throws IOException {
+        stats.reset(System.currentTimeMillis());
+        parser.beginObject();
+        while (parser.hasNext()) {
+            if (parser.nextName(OP) == -1) {
+                parser.skipValue();
+                continue;
+            }
+            parser.beginObject();
+            while (parser.hasNext()) {
+                if (parser.nextName(SAMPLES) == -1) {
+                    parser.skipValue();
+                    continue;
+                }
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    int metric = parser.nextName(METRICS);
+                    if (metric == -1
+                            || parser.peek() != JsonPullParser.Token.BEGIN_ARRAY) {
+                        parser.skipValue();
+                        continue;
+                    }
+                    parser.beginArray();
+                    while (parser.hasNext()) {
+                        if (parser.peek() == JsonPullParser.Token.NULL) {
+                            parser.nextNull();
+                        } else {
+                            stats.add(metric, parser.nextDouble());
+                        }
+                    }
+                    parser.endArray();
+                }
+                parser.endObject();
+            }
+            parser.endObject();
+        }
+        parser.endObject();
+    }
+
+    /**
+     * Get the stats of a node from the document returned from /nodes/self
+     * 
+     * @param parser
+     *            the parser positioned at the start of the document
+     * @param hostname
+     *            the node we asked
+     * @return the stats of the node (without the latency)
+     * @throws IOException
+     *             if we fail to read the stream or the document is malformed
+     */
+    public static NodeStats parseNodeStats(JsonPullParser parser,
+            String hostname) throws IOException {
+        double cpu = Double.NaN;
+        long swapUsed = 0;
+        long memoryTotal = 0;
+        long memoryFree = 0;
+        long memUsed = 0;
+        long items = 0;
+        double ops = Double.NaN;
+        long uptime = 0;
+
+        parser.beginObject();
+        while (parser.hasNext()) {
+            switch (parser.nextName(SELF_FIELDS)) {
+            case 0:
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    switch (parser.nextName(SYSTEM_STATS)) {
+                    case 0:
+                        cpu = parser.nextDouble();
+                        break;
+                    case 1:
+                        swapUsed = parser.nextLong();
+                        break;
+                    default:
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+                break;
+            case 1:
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    switch (parser.nextName(INTERESTING_STATS)) {
+                    case 0:
+                        items = parser.nextLong();
+                        break;
+                    case 1:
+                        memUsed = parser.nextLong();
+                        break;
+                    case 2:
+                        ops = parser.nextDouble();
+                        break;
+                    default:
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+                break;
+            case 2:
+                memoryTotal = parser.nextLong();
+                break;
+            case 3:
+                memoryFree = parser.nextLong();
+                break;
+            case 4:
+                uptime = parser.nextLong();
+                break;
+            default:
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+        return new NodeStats(hostname, NodeStats.Status.OK,
+                System.currentTimeMillis(), 0, null, cpu, swapUsed,
+                memoryTotal, memoryFree, memUsed, items, ops, uptime);
+    }
+
+    /**
+     * Parse a single entry in the nodes list
+     */
+    private static NodeHealth parseNode(JsonPullParser parser)
+            throws IOException {
+        String hostname = null;
+        String status = null;
+        String membership = null;
+        long uptime = 0;
+        long memoryTotal = 0;
+        long memoryFree = 0;
+        double ops = 0;
+        double cpu = Double.NaN;
+
+        parser.beginObject();
+        while (parser.hasNext()) {
+            switch (parser.nextName(NODE_FIELDS)) {
+            case 0:
+                hostname = parser.nextString();
+                break;
+            case 1:
+                status = parser.nextString(NODE_VALUES);
+                break;
+            case 2:
+                membership = parser.nextString(NODE_VALUES);
+                break;
+            case 3:
+                uptime = parser.nextLong();
+                break;
+            case 4:
+                memoryTotal = parser.nextLong();
+                break;
+            case 5:
+                memoryFree = parser.nextLong();
+                break;
+            case 6:
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    if (parser.nextName(OPS) == 0) {
+                        ops = parser.nextDouble();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+                break;
+            case 7:
+                parser.beginObject();
+                while (parser.hasNext()) {
+                    if (parser.nextName(SYSTEM_STATS) == 0) {
+                        cpu = parser.nextDouble();
+                    } else {
+                        parser.skipValue();
+                    }
+                }
+                parser.endObject();
+                break;
+            default:
+                parser.skipValue();
+            }
+        }
+        parser.endObject();
+
+        if (hostname == null) {
+            throw new IOException("Missing \"hostname\" for node");
+        }
+        return new NodeHealth(hostname, status, membership, uptime,
+                memoryTotal, memoryFree, ops, cpu);
+    }
+}
@@ -0,0 +1,1044 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A small utility class used to retrieve the state of a Couchbase Cluster.
+ * 
+ * The reader keeps a list of seeds (all of the nodes it learned about from
+ * the last snapshot of the cluster) and fails over to the next seed if the
+ * node it talks to dies. If hedging is enabled, a request to the next
+ * seed is started in parallel if the current seed is slow to respond, and
+ * the first answer wins (the other request is aborted). The first request
+ * runs on the calling thread; only the hedge runs on the hedge executor,
+ * and a cluster has at most one hedge running, so a dead cluster can't
+ * keep the hedge threads from the other clusters.
+ * 
+ * While the pool document says that a rebalance is running, the progress
+ * of the rebalance is downloaded as well (from /pools/default/tasks, or
+ * /pools/default/rebalanceProgress on servers without the tasks), and
+ * tracked across the polls.
+ * 
+ * @author Trond Norbye
+ */
+public class PoolHealthReader {
+    /**
+     * Callback interface used to deliver the states pushed from the server
+     * in streaming mode
+     */
+    public interface StreamListener {
+        /**
+         * Called (on the thread running stream()) every time the server
+         * pushes a new configuration
+         * 
+         * @param snapshot
+         *            a snapshot of the nodes in the cluster
+         */
+        void onSnapshot(ClusterSnapshot snapshot);
+    }
+
+    /**
+     * A request we may send to any of the seeds
+     */
+    private interface Request<T> {
+        T execute(String seed, WebSpider.Abort abort) throws IOException;
+    }
+
+    /**
+     * An attempt to send a request to a seed
+     */
+    private static class Attempt {
+        final String seed;
+        final WebSpider.Abort abort = new WebSpider.Abort();
+
+        Attempt(String seed) {
+            this.seed = seed;
+        }
+    }
+
+    /**
+     * The state of a hedged request: the seeds left to try, the attempts
+     * claimed (running or about to run) and the first answer
+     */
+    private static class Race<T> {
+        private final LinkedList<String> seeds;
+        private final List<Attempt> running = new ArrayList<Attempt>();
+        private boolean done;
+        private String winner;
+        private T result;
+        private IOException error;
+
+        Race(List<String> seeds) {
+            this.seeds = new LinkedList<String>(seeds);
+        }
+
+        /**
+         * Claim the next seed to try. The attempt counts as running from
+         * now on (so that await() waits for it even if it hasn't started
+         * yet).
+         * 
+         * @return the attempt (null if we're done or there are no more
+         *         seeds)
+         */
+        synchronized Attempt claim() {
+            if (done || seeds.isEmpty()) {
+                return null;
+            }
+            Attempt attempt = new Attempt(seeds.poll());
+            running.add(attempt);
+            return attempt;
+        }
+
+        /**
+         * Give back an attempt we didn't start after all (await() returns
+         * so that the caller tries the seed)
+         */
+        synchronized void giveBack(Attempt attempt) {
+            running.remove(attempt);
+            seeds.addFirst(attempt.seed);
+            notifyAll();
+        }
+
+        void succeed(Attempt attempt, T value) {
+            List<Attempt> losers;
+            synchronized (this) {
+                running.remove(attempt);
+                if (done) {
+                    return;
+                }
+                done = true;
+                winner = attempt.seed;
+                result = value;
+                losers = new ArrayList<Attempt>(running);
+                notifyAll();
+            }
+            for (Attempt loser : losers) {
+                loser.abort.abort();
+            }
+        }
+
+        synchronized void fail(Attempt attempt, IOException e) {
+            running.remove(attempt);
+            if (!attempt.abort.isAborted()) {
+                error = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Wait for an answer, for a seed to be given back, or for all of
+         * the attempts to fail
+         * 
+         * @return true if we've got an answer, false if there are seeds
+         *         left to try
+         * @throws IOException
+         *             the last error if all of the attempts failed
+         */
+        synchronized boolean await() throws IOException, InterruptedException {
+            while (!done && !running.isEmpty() && seeds.isEmpty()) {
+                wait();
+            }
+            if (done) {
+                return true;
+            } else if (!seeds.isEmpty()) {
+                return false;
+            }
+            throw error == null ? new IOException("No seeds answered")
+                    : error;
+        }
+
+        synchronized T getResult() {
+            return result;
+        }
+
+        synchronized String getWinner() {
+            return winner;
+        }
+
+        /**
+         * Abort the attempts still running
+         */
+        void abort() {
+            List<Attempt> list;
+            synchronized (this) {
+                done = true;
+                list = new ArrayList<Attempt>(running);
+                notifyAll();
+            }
+            for (Attempt attempt : list) {
+                attempt.abort.abort();
+            }
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger("org.couchbase.health");
+
+    /**
+     * The number of milliseconds we'll wait for the server to push a new
+     * configuration before we reconnect the stream
+     */
+    public static final int STREAM_READ_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * A small web spider we may use to download files from the internet
+     */
+    private WebSpider spider;
+
+    /**
+     * The URL to read the bootstrap information from
+     */
+    private final URL bootstrapUrl;
+
+    /**
+     * The seed we were configured with (host:port)
+     */
+    private final String bootstrapSeed;
+
+    /**
+     * The nodes we may talk to (host:port). The first entry is the one that
+     * answered the last request.
+     */
+    private List<String> seeds;
+
+    /**
+     * The path of the pool information (found within the document returned
+     * from the bootstrap URL)
+     */
+    private volatile String poolUri;
+
+    /**
+     * The path where the server pushes the pool information every time it
+     * changes (found within the document returned from the bootstrap URL)
+     */
+    private volatile String streamingUri;
+
+    /**
+     * The connection currently used in streaming mode
+     */
+    private volatile HttpURLConnection stream;
+
+    /**
+     * The number of milliseconds we'll wait for the server to push a new
+     * configuration before we give up the stream
+     */
+    private volatile int streamReadTimeout = STREAM_READ_TIMEOUT;
+
+    /**
+     * The name of the pool we're going to monitor
+     */
+    private String poolName;
+
+    /**
+     * A snapshot and the URL it was downloaded from
+     */
+    private static class Downloaded {
+        final String url;
+        final ClusterSnapshot snapshot;
+
+        Downloaded(String url, ClusterSnapshot snapshot) {
+            this.url = url;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * The snapshot returned from the last poll, returned again if the seed
+     * it came from tells us that the pool hasn't changed. The ETags are per
+     * URL, so we only send a conditional request to the same URL (another
+     * seed may have an ETag for an older version of the pool).
+     */
+    private volatile Downloaded lastSnapshot;
+
+    /**
+     * The executor used to run hedged requests (null to only fail over
+     * sequentially). It should reject the requests it can't start right
+     * away (we skip the hedge instead of queueing it).
+     */
+    private volatile Executor hedgeExecutor;
+
+    /**
+     * The timer starting the hedged requests
+     */
+    private volatile ScheduledExecutorService hedgeTimer;
+
+    /**
+     * Set while a hedged request of this cluster is running
+     */
+    private final AtomicBoolean hedging = new AtomicBoolean();
+
+    /**
+     * The number of milliseconds to wait for a seed before we send the
+     * request to the next seed in parallel
+     */
+    private volatile long hedgeDelay;
+
+    /**
+     * Where to record the timings and the errors (null if we shouldn't
+     * record them)
+     */
+    private volatile PollMetrics metrics;
+
+    /**
+     * Lock held while we're collecting the bucket stats
+     */
+    private final Object bucketLock = new Object();
+
+    /**
+     * The URIs of the stats for each bucket (from the last bucket list)
+     */
+    private Map<String, String> bucketUris;
+
+    /**
+     * The URL bucketUris was downloaded from (we only send a conditional
+     * request for the list to the same URL)
+     */
+    private String bucketListUrl;
+
+    /**
+     * The stats for each bucket (reused every time we collect the stats)
+     */
+    private final Map<String, BucketStats> bucketStats = new LinkedHashMap<String, BucketStats>();
+
+    /**
+     * The values in bucketStats (only rebuilt when the list of buckets
+     * change)
+     */
+    private volatile List<BucketStats> bucketStatsList = Collections
+            .emptyList();
+
+    /**
+     * Set if the last call to getBucketStats() succeeded
+     */
+    private volatile boolean bucketStatsValid;
+
+    /**
+     * Collects the stats from every node (null unless enabled)
+     */
+    private volatile NodeStatsCollector nodeStatsCollector;
+
+    /**
+     * Tracks the progress of the rebalance across the polls
+     */
+    private final RebalanceTracker rebalanceTracker = new RebalanceTracker();
+
+    /**
+     * Set once we learn that the server doesn't have the tasks endpoint
+     */
+    private volatile boolean legacyRebalanceProgress;
+
+    /**
+     * Handler parsing the progress of the rebalance from the tasks
+     */
+    private final WebSpider.BodyHandler<Double> tasksHandler = new WebSpider.BodyHandler<Double>() {
+        public Double handle(InputStream body) throws IOException {
+            JsonPullParser parser = JsonPullParser.obtain(body);
+            try {
+                return PoolDocumentParser.parseTasks(parser);
+            } finally {
+                parser.recycle();
+            }
+        }
+    };
+
+    /**
+     * Handler parsing the progress of the rebalance from the (1.8) progress
+     * document
+     */
+    private final WebSpider.BodyHandler<Double> rebalanceProgressHandler = new WebSpider.BodyHandler<Double>() {
+        public Double handle(InputStream body) throws IOException {
+            JsonPullParser parser = JsonPullParser.obtain(body);
+            try {
+                return PoolDocumentParser.parseRebalanceProgress(parser);
+            } finally {
+                parser.recycle();
+            }
+        }
+    };
+
+    /**
+     * Handler parsing the nodes directly off the stream
+     */
+    private final WebSpider.BodyHandler<ClusterSnapshot> snapshotHandler = new WebSpider.BodyHandler<ClusterSnapshot>() {
+        public ClusterSnapshot handle(InputStream body) throws IOException {
+            JsonPullParser parser = JsonPullParser.obtain(body);
+            try {
+                return PoolDocumentParser.parseSnapshot(parser);
+            } finally {
+                parser.recycle();
+            }
+        }
+    };
+
+    /**
+     * Handler locating the URI of our pool in the bootstrap document
+     */
+    private final WebSpider.BodyHandler<String[]> poolUriHandler = new WebSpider.BodyHandler<String[]>() {
+        public String[] handle(InputStream body) throws IOException {
+            JsonPullParser parser = JsonPullParser.obtain(body);
+            try {
+                return PoolDocumentParser.parsePoolUris(parser, poolName);
+            } finally {
+                parser.recycle();
+            }
+        }
+    };
+
+    /**
+     * Handler parsing the list of buckets
+     */
+    private final WebSpider.BodyHandler<Map<String, String>> bucketListHandler = new WebSpider.BodyHandler<Map<String, String>>() {
+        public Map<String, String> handle(InputStream body)
+                throws IOException {
+            JsonPullParser parser = JsonPullParser.obtain(body);
+            try {
+                return PoolDocumentParser.parseBucketList(parser);
+            } finally {
+                parser.recycle();
+            }
+        }
+    };
+
+    /**
+     * Create a new instance of the PoolHealthReader
+     * 
+     * @param host
+     * @param port
+     * @param poolName
+     */
+    public PoolHealthReader(String host, int port, String poolName) {
+        this.poolName = poolName;
+        spider = new WebSpider();
+        URL u = null;
+        try {
+            u = new URL("http", host, port, "/pools");
+        } catch (MalformedURLException e) {
+            LOG.log(Level.SEVERE, "Malformed bootstrap URL", e);
+        }
+        bootstrapUrl = u;
+        bootstrapSeed = host + ":" + port;
+        seeds = Collections.singletonList(bootstrapSeed);
+    }
+
+    public URL getBootstrapUrl() {
+        return bootstrapUrl;
+    }
+
+    /**
+     * Enable hedged requests
+     * 
+     * @param timer
+     *            the timer used to start the hedged requests
+     * @param executor
+     *            the executor to run the hedged requests in (it should
+     *            reject a request it can't start right away)
+     * @param delay
+     *            the number of milliseconds to wait for a seed before we try
+     *            the next seed in parallel
+     */
+    public void setHedging(ScheduledExecutorService timer, Executor executor,
+            long delay) {
+        hedgeDelay = delay;
+        hedgeTimer = timer;
+        hedgeExecutor = executor;
+    }
+
+    /**
+     * Set the number of milliseconds we'll wait for the server to push a new
+     * configuration before stream() fails with a SocketTimeoutException
+     * 
+     * @param timeout
+     *            the read timeout (STREAM_READ_TIMEOUT by default)
+     */
+    public void setStreamReadTimeout(int timeout) {
+        streamReadTimeout = timeout;
+    }
+
+    /**
+     * Record the timings and the errors of the requests we send
+     * 
+     * @param metrics
+     *            where to record them (null to stop recording)
+     */
+    public void setMetrics(PollMetrics metrics) {
+        this.metrics = metrics;
+        spider.setMetrics(metrics);
+        NodeStatsCollector collector = nodeStatsCollector;
+        if (collector != null) {
+            collector.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * Enable the collection of the stats from every node (see
+     * getNodeStats())
+     * 
+     * @param executor
+     *            where to run the requests to the nodes
+     * @param maxInFlight
+     *            the maximum number of requests in flight
+     * @param deadline
+     *            the number of milliseconds to wait for the nodes
+     */
+    public void setNodeStats(Executor executor, int maxInFlight, long deadline) {
+        NodeStatsCollector collector = new NodeStatsCollector(executor,
+                maxInFlight, deadline);
+        collector.setMetrics(metrics);
+        nodeStatsCollector = collector;
+    }
+
+    /**
+     * Get the stats of every node in the snapshot by asking all of them in
+     * parallel. The nodes not answering within the deadline are reported as
+     * stragglers.
+     * 
+     * @param snapshot
+     *            the nodes to ask
+     * @return the stats of each node, or null if the collection isn't
+     *         enabled
+     * @throws IOException
+     *             if we're interrupted while waiting for the nodes
+     */
+    public List<NodeStats> getNodeStats(ClusterSnapshot snapshot)
+            throws IOException {
+        NodeStatsCollector collector = nodeStatsCollector;
+        if (collector == null) {
+            return null;
+        }
+        return collector.collect(snapshot);
+    }
+
+    /**
+     * @return the nodes we may talk to (host:port), in the order we'll try
+     *         them
+     */
+    public synchronized List<String> getSeeds() {
+        return seeds;
+    }
+
+    /**
+     * @return the path of the pool (null until we've bootstrapped)
+     */
+    public String getPoolUri() {
+        return poolUri;
+    }
+
+    /**
+     * @return the path of the streaming pool (null until we've bootstrapped)
+     */
+    public String getStreamingUri() {
+        return streamingUri;
+    }
+
+    /**
+     * Restore the information we learned about the cluster the last time we
+     * ran so that we don't have to bootstrap again (and so that we may fail
+     * over if the bootstrap node is down)
+     * 
+     * @param seeds
+     *            the nodes we may talk to (host:port)
+     * @param poolUri
+     *            the path of the pool (may be null)
+     * @param streamingUri
+     *            the path of the streaming pool (may be null)
+     */
+    public synchronized void restore(List<String> seeds, String poolUri,
+            String streamingUri) {
+        List<String> list = new ArrayList<String>(seeds);
+        if (!list.contains(bootstrapSeed)) {
+            list.add(bootstrapSeed);
+        }
+        this.seeds = Collections.unmodifiableList(list);
+        if (poolUri != null && streamingUri != null) {
+            this.streamingUri = streamingUri;
+            this.poolUri = poolUri;
+        }
+    }
+
+    /**
+     * Get a snapshot of the health of all of the nodes in the cluster
+     * 
+     * @return a snapshot of all of the nodes in the cluster
+     * @throws IOException
+     *             if we fail to send/receive data on the network
+     */
+    public ClusterSnapshot getSnapshot() throws IOException {
+
+        if (poolUri == null) {
+            bootstrap();
+        }
+
+        long start = System.nanoTime();
+        final Downloaded previous = lastSnapshot;
+        Downloaded downloaded = send(true, new Request<Downloaded>() {
+            public Downloaded execute(String seed, WebSpider.Abort abort)
+                    throws IOException {
+                URL url = toUrl(seed, poolUri);
+                String key = url.toExternalForm();
+                boolean conditional = previous != null
+                        && previous.url.equals(key);
+                ClusterSnapshot ret = spider.download(url, conditional,
+                        snapshotHandler, abort);
+                if (ret == null) {
+                    // Not modified since the last poll (the snapshot is
+                    // immutable)
+                    return previous;
+                }
+                return new Downloaded(key, ret);
+            }
+        });
+        lastSnapshot = downloaded;
+        ClusterSnapshot snapshot = downloaded.snapshot;
+        learnSeeds(snapshot);
+        snapshot = trackRebalance(snapshot);
+        record(PollMetrics.Phase.SNAPSHOT, start);
+        return snapshot;
+    }
+
+    /**
+     * Add the progress of the rebalance to the snapshot if a rebalance is
+     * running
+     * 
+     * @param snapshot
+     *            the snapshot from the pool document
+     * @return the snapshot with the progress of the rebalance
+     */
+    private ClusterSnapshot trackRebalance(ClusterSnapshot snapshot) {
+        if (!snapshot.isRebalancing()) {
+            rebalanceTracker.reset();
+            return snapshot;
+        }
+        double progress;
+        try {
+            progress = getRebalanceProgress();
+        } catch (IOException e) {
+            LOG.fine("Failed to get the progress of the rebalance: " + e);
+            progress = Double.NaN;
+        }
+        return new ClusterSnapshot(snapshot, rebalanceTracker.update(
+                System.currentTimeMillis(), progress));
+    }
+
+    /**
+     * Download the progress of the rebalance from the seed answering the
+     * last request (the progress is optional, so we don't fail over)
+     * 
+     * @return the percentage done (NaN if no rebalance is running)
+     * @throws IOException
+     *             if we fail to send/receive data on the network
+     */
+    private double getRebalanceProgress() throws IOException {
+        String seed = getSeeds().get(0);
+        if (!legacyRebalanceProgress) {
+            try {
+                return spider.download(toUrl(seed, getPoolPath("/tasks")),
+                        tasksHandler);
+            } catch (FileNotFoundException e) {
+                LOG.fine("No tasks endpoint, using the rebalance progress");
+                legacyRebalanceProgress = true;
+            }
+        }
+        return spider.download(toUrl(seed, getPoolPath("/rebalanceProgress")),
+                rebalanceProgressHandler);
+    }
+
+    /**
+     * @return the path of a resource below the pool (the query of the pool
+     *         URI is not included)
+     */
+    private String getPoolPath(String resource) {
+        String uri = poolUri;
+        int idx = uri.indexOf('?');
+        return (idx == -1 ? uri : uri.substring(0, idx)) + resource;
+    }
+
+    /**
+     * Collect the stats for all of the buckets in the pool. The list of
+     * buckets is only downloaded again if it changed, and the returned
+     * objects are reused (and updated) by the next call.
+     * 
+     * @return the stats for each bucket
+     * @throws IOException
+     *             if we fail to send/receive data on the network
+     */
+    public List<BucketStats> getBucketStats() throws IOException {
+        bucketStatsValid = false;
+        if (poolUri == null) {
+            bootstrap();
+        }
+
+        synchronized (bucketLock) {
+            long start = System.nanoTime();
+            final String listUri = getPoolPath("/buckets");
+            Map<String, String> list = send(false,
+                    new Request<Map<String, String>>() {
+                        public Map<String, String> execute(String seed,
+                                WebSpider.Abort abort) throws IOException {
+                            URL url = toUrl(seed, listUri);
+                            String key = url.toExternalForm();
+                            boolean conditional = bucketUris != null
+                                    && key.equals(bucketListUrl);
+                            Map<String, String> ret = spider.download(url,
+                                    conditional, bucketListHandler, abort);
+                            if (ret != null) {
+                                bucketListUrl = key;
+                            }
+                            return ret;
+                        }
+                    });
+            if (list != null) {
+                bucketUris = list;
+                bucketStats.keySet().retainAll(list.keySet());
+                for (String name : list.keySet()) {
+                    if (!bucketStats.containsKey(name)) {
+                        bucketStats.put(name, new BucketStats(name));
+                    }
+                }
+                bucketStatsList = Collections
+                        .unmodifiableList(new ArrayList<BucketStats>(
+                                bucketStats.values()));
+            }
+
+            for (Map.Entry<String, String> entry : bucketUris.entrySet()) {
+                collect(entry.getValue(), bucketStats.get(entry.getKey()));
+            }
+            record(PollMetrics.Phase.BUCKETS, start);
+            bucketStatsValid = true;
+            return bucketStatsList;
+        }
+    }
+
+    /**
+     * @return the bucket stats from the last call to getBucketStats() (null
+     *         if it failed, or it hasn't been called)
+     */
+    public List<BucketStats> getLastBucketStats() {
+        return bucketStatsValid ? bucketStatsList : null;
+    }
+
+    /**
+     * Download the stats of a single bucket
+     */
+    private void collect(final String uri, final BucketStats stats)
+            throws IOException {
+        final WebSpider.BodyHandler<Void> handler = new WebSpider.BodyHandler<Void>() {
+            public Void handle(InputStream body) throws IOException {
+                JsonPullParser parser = JsonPullParser.obtain(body);
+                try {
+                    PoolDocumentParser.parseBucketStats(parser, stats);
+                } finally {
+                    parser.recycle();
+                }
+                return null;
+            }
+        };
+        send(false, new Request<Void>() {
+            public Void execute(String seed, WebSpider.Abort abort)
+                    throws IOException {
+                return spider.download(toUrl(seed, uri), false, handler,
+                        abort);
+            }
+        });
+    }
+
+    /**
+     * Hold a connection to the streaming version of the pool and report a
+     * snapshot of the nodes every time the server pushes a new configuration.
+     * This method blocks until the connection is closed by the server, an
+     * error occurs or stopStreaming() is called.
+     * 
+     * @param listener
+     *            where to report the states
+     * @throws IOException
+     *             if we fail to send/receive data on the network (a
+     *             SocketTimeoutException means that the server didn't push
+     *             anything within the stream read timeout)
+     */
+    public void stream(StreamListener listener) throws IOException {
+        if (poolUri == null) {
+            bootstrap();
+        }
+
+        HttpURLConnection connection = null;
+        IOException error = null;
+        for (String seed : getSeeds()) {
+            try {
+                connection = spider.openStream(toUrl(seed, streamingUri),
+                        streamReadTimeout);
+                break;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (connection == null) {
+            throw error;
+        }
+
+        stream = connection;
+        try {
+            InputStream in = connection.getInputStream();
+            PollMetrics m = metrics;
+            if (m != null) {
+                in = new CountingInputStream(in, m);
+            }
+            JsonPullParser parser = new JsonPullParser(in);
+            // The server pushes a new document every time the pool change
+            while (parser.peek() != JsonPullParser.Token.END_DOCUMENT) {
+                ClusterSnapshot snapshot = PoolDocumentParser
+                        .parseSnapshot(parser);
+                learnSeeds(snapshot);
+                listener.onSnapshot(trackRebalance(snapshot));
+            }
+        } finally {
+            stream = null;
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Abort a call to stream() running in another thread
+     */
+    public void stopStreaming() {
+        HttpURLConnection connection = stream;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Download the bootstrap document and locate the URL where we can find
+     * information about the desired pool.
+     * 
+     * @throws IOException
+     *             if an error occurs while we're trying to send / receive data
+     *             on the network.
+     */
+    private synchronized void bootstrap() throws IOException {
+        if (poolUri != null) {
+            return;
+        }
+        long start = System.nanoTime();
+        String[] uris = send(true, new Request<String[]>() {
+            public String[] execute(String seed, WebSpider.Abort abort)
+                    throws IOException {
+                URL url = toUrl(seed, bootstrapUrl.getFile());
+                LOG.fine("Download bootstrap URL: " + url.toExternalForm());
+                return spider.download(url, false, poolUriHandler, abort);
+            }
+        });
+        if (uris == null) {
+            throw new FileNotFoundException("pool not found");
+        }
+        if (uris[1] == null) {
+            uris[1] = "/poolsStreaming/" + poolName;
+        }
+        streamingUri = uris[1];
+        poolUri = uris[0];
+        record(PollMetrics.Phase.BOOTSTRAP, start);
+    }
+
+    /**
+     * Learn the seeds from the nodes in the snapshot. The seed that answered
+     * the request stays first, and we always keep the bootstrap node.
+     */
+    private synchronized void learnSeeds(ClusterSnapshot snapshot) {
+        if (snapshot.size() == 0) {
+            return;
+        }
+        List<String> list = new ArrayList<String>(snapshot.size() + 2);
+        list.add(seeds.get(0));
+        for (NodeHealth node : snapshot.getNodes()) {
+            String hostname = node.getHostname();
+            if (!list.contains(hostname)) {
+                list.add(hostname);
+            }
+        }
+        if (!list.contains(bootstrapSeed)) {
+            list.add(bootstrapSeed);
+        }
+        if (!list.equals(seeds)) {
+            seeds = Collections.unmodifiableList(list);
+        }
+    }
+
+    /**
+     * Move the seed to the front of the list
+     */
+    private synchronized void promote(String seed) {
+        if (seeds.get(0).equals(seed)) {
+            return;
+        }
+        List<String> list = new ArrayList<String>(seeds);
+        list.remove(seed);
+        list.add(0, seed);
+        seeds = Collections.unmodifiableList(list);
+        LOG.info("Failed over to " + seed);
+        count(PollMetrics.Counter.FAILOVERS);
+    }
+
+    /**
+     * Send the request to the seeds until one of them answers
+     * 
+     * @param hedge
+     *            set if the request may be sent to multiple seeds in parallel
+     * @param request
+     *            the request to send
+     */
+    private <T> T send(boolean hedge, Request<T> request) throws IOException {
+        List<String> list = getSeeds();
+        Executor executor = hedgeExecutor;
+        ScheduledExecutorService timer = hedgeTimer;
+        if (!hedge || executor == null || timer == null || list.size() == 1) {
+            IOException error = null;
+            for (String seed : list) {
+                try {
+                    T ret = request.execute(seed, null);
+                    promote(seed);
+                    return ret;
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            throw error;
+        }
+
+        try {
+            return sendHedged(timer, executor, list, request);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    /**
+     * Send the request to the seeds (one at the time) on the calling
+     * thread. If the first seed doesn't answer within the hedge delay, send
+     * the request to the next seed on the hedge executor as well, and use
+     * the first answer.
+     */
+    private <T> T sendHedged(ScheduledExecutorService timer,
+            final Executor executor, List<String> list,
+            final Request<T> request) throws IOException, InterruptedException {
+        final Race<T> race = new Race<T>(list);
+        Future<?> hedge = timer.schedule(new Runnable() {
+            public void run() {
+                startHedge(executor, race, request);
+            }
+        }, hedgeDelay, TimeUnit.MILLISECONDS);
+
+        try {
+            do {
+                Attempt attempt;
+                while ((attempt = race.claim()) != null) {
+                    attempt(race, attempt, request);
+                }
+            } while (!race.await());
+            promote(race.getWinner());
+            return race.getResult();
+        } finally {
+            hedge.cancel(false);
+            race.abort();
+        }
+    }
+
+    /**
+     * Send the request to the next seed on the hedge executor (unless this
+     * cluster has a hedge running already, or the executor is busy)
+     */
+    private <T> void startHedge(Executor executor, final Race<T> race,
+            final Request<T> request) {
+        if (!hedging.compareAndSet(false, true)) {
+            count(PollMetrics.Counter.HEDGE_SKIPPED);
+            return;
+        }
+        final Attempt attempt = race.claim();
+        if (attempt == null) {
+            hedging.set(false);
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        attempt(race, attempt, request);
+                    } finally {
+                        hedging.set(false);
+                    }
+                }
+            });
+            count(PollMetrics.Counter.HEDGED);
+        } catch (RejectedExecutionException e) {
+            hedging.set(false);
+            race.giveBack(attempt);
+            count(PollMetrics.Counter.HEDGE_SKIPPED);
+        }
+    }
+
+    /**
+     * Send the request to a seed and report the outcome to the race (the
+     * attempt is aborted already if the race is over)
+     */
+    private <T> void attempt(Race<T> race, Attempt attempt,
+            Request<T> request) {
+        try {
+            race.succeed(attempt, request.execute(attempt.seed,
+                    attempt.abort));
+        } catch (IOException e) {
+            race.fail(attempt, e);
+        }
+    }
+
+    private void record(PollMetrics.Phase phase, long start) {
+        PollMetrics m = metrics;
+        if (m != null) {
+            m.record(phase, start);
+        }
+    }
+
+    private void count(PollMetrics.Counter counter) {
+        PollMetrics m = metrics;
+        if (m != null) {
+            m.count(counter);
+        }
+    }
+
+    private URL toUrl(String seed, String uri) throws MalformedURLException {
+        if (uri.startsWith("/")) {
+            return new URL(bootstrapUrl.getProtocol() + "://" + seed + uri);
+        }
+        return new URL(uri);
+    }
+}
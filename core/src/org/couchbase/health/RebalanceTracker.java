@@ -0,0 +1,171 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+/**
+ * Tracks the progress of a rebalance across the polls of a cluster. The
+ * rate is a moving average (weighted by the time between the samples), so
+ * the estimated time left follows a rebalance slowing down (or speeding up)
+ * without jumping around on every poll. All of it is computed
+ * incrementally from the previous sample.
+ * 
+ * @author Trond Norbye
+ */
+public class RebalanceTracker {
+    /**
+     * The progress of a running rebalance
+     */
+    public static class Progress {
+        private final long started;
+        private final double progress;
+        private final double rate;
+        private final long stalled;
+
+        Progress(long started, double progress, double rate, long stalled) {
+            this.started = started;
+            this.progress = progress;
+            this.rate = rate;
+            this.stalled = stalled;
+        }
+
+        /**
+         * @return the time (System.currentTimeMillis()) we first saw the
+         *         rebalance running
+         */
+        public long getStarted() {
+            return started;
+        }
+
+        /**
+         * @return the percentage of the rebalance done (NaN if the server
+         *         doesn't tell)
+         */
+        public double getProgress() {
+            return progress;
+        }
+
+        /**
+         * @return the number of percent done per minute (NaN until we've got
+         *         two samples)
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        /**
+         * @return the estimated number of milliseconds left (-1 if unknown)
+         */
+        public long getEta() {
+            if (Double.isNaN(progress) || Double.isNaN(rate) || rate <= 0) {
+                return -1;
+            }
+            return (long) ((100 - progress) / rate * 60000);
+        }
+
+        /**
+         * @return the number of milliseconds since the progress last moved
+         */
+        public long getStalled() {
+            return stalled;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("rebalancing");
+            if (!Double.isNaN(progress)) {
+                sb.append(' ').append((int) progress).append("% done");
+            }
+            long eta = getEta();
+            if (eta >= 0) {
+                sb.append(", ").append((eta + 59999) / 60000)
+                        .append(" min left");
+            } else if (stalled >= 60000) {
+                sb.append(", no progress for ").append(stalled / 60000)
+                        .append(" min");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The time constant (in milliseconds) of the moving average of the rate
+     */
+    public static final long RATE_WINDOW = 5 * 60 * 1000;
+
+    private long started = -1;
+    private long lastTime;
+    private double lastProgress;
+    private long lastAdvance;
+    private double rate;
+
+    /**
+     * Record a sample of a running rebalance
+     * 
+     * @param now
+     *            the time of the sample
+     * @param progress
+     *            the percentage done (NaN if unknown)
+     * @return the progress of the rebalance
+     */
+    public synchronized Progress update(long now, double progress) {
+        if (started == -1
+                || (!Double.isNaN(progress) && progress < lastProgress)) {
+            // A new rebalance (the progress never goes backwards)
+            if (started == -1) {
+                started = now;
+            }
+            lastTime = lastAdvance = now;
+            lastProgress = progress;
+            rate = Double.NaN;
+            return new Progress(started, progress, rate, 0);
+        }
+
+        long elapsed = now - lastTime;
+        if (elapsed > 0 && !Double.isNaN(progress)
+                && !Double.isNaN(lastProgress)) {
+            double sample = (progress - lastProgress) * 60000 / elapsed;
+            if (Double.isNaN(rate)) {
+                rate = sample;
+            } else {
+                rate += (1 - Math.exp(-(double) elapsed / RATE_WINDOW))
+                        * (sample - rate);
+            }
+            if (progress > lastProgress) {
+                lastAdvance = now;
+            }
+            lastTime = now;
+            lastProgress = progress;
+        } else if (Double.isNaN(lastProgress)) {
+            lastTime = lastAdvance = now;
+            lastProgress = progress;
+        }
+        return new Progress(started, progress, rate, now - lastAdvance);
+    }
+
+    /**
+     * The rebalance is no longer running
+     */
+    public synchronized void reset() {
+        started = -1;
+    }
+
+    /**
+     * @return true if a rebalance is running
+     */
+    public synchronized boolean isRunning() {
+        return started != -1;
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The rule engine computing the state of a cluster from a snapshot of its
+ * nodes and the stats of its buckets.
+ * 
+ * The rules are read from a text file with one rule per line:
+ * 
+ * <pre>
+ * # state    metric           op  threshold  [for polls]
+ * BAD        unhealthy_nodes  &gt;=  50%
+ * DEGRADED   bucket_ops_ratio &lt;   20         for 2
+ * </pre>
+ * 
+ * A threshold with a % sign is compared to the metric as a percentage of
+ * the number of nodes. A rule with "for N" must match N polls in a row
+ * before it fires, and must fail to match N polls in a row before it stops
+ * firing (so that a flapping metric doesn't flap the state). The state of
+ * the cluster is the worst state of the rules firing, or REBALANCING while
+ * a rebalance is running, or GOOD.
+ * 
+ * The rules are compiled into flat arrays, and all of the state needed to
+ * evaluate them lives in an Evaluation object per cluster, so evaluating a
+ * snapshot doesn't allocate any memory. If the rules use the anomaly
+ * metrics the Evaluation holds an AnomalyDetector learning the normal
+ * behaviour of the nodes in the cluster.
+ * 
+ * @author Trond Norbye
+ */
+public class RuleEngine {
+    /**
+     * The metrics the rules may use
+     */
+    public static final String[] METRICS = {
+            // The number of nodes in the cluster
+            "nodes",
+            // The number of nodes not reporting themselves as healthy
+            "unhealthy_nodes",
+            // The number of nodes not being active members of the cluster
+            // (failed over or pending to be added)
+            "inactive_nodes",
+            // The number of nodes warming up
+            "warmup_nodes",
+            // The lowest percentage of free memory on a node
+            "min_memory_free",
+            // The lowest ops/sec (in percent of the average over the sample
+            // window) of the buckets with more than BUSY_OPS ops/sec
+            "bucket_ops_ratio",
+            // The lowest percentage of active items resident in memory
+            "bucket_resident_ratio",
+            // The largest number of items waiting to be written to disk
+            "bucket_disk_write_queue",
+            // 1 while a rebalance is running (0 otherwise)
+            "rebalancing",
+            // The percentage of the running rebalance done
+            "rebalance_progress",
+            // The estimated number of minutes left of the running rebalance
+            "rebalance_eta",
+            // The number of minutes since the running rebalance made
+            // progress
+            "rebalance_stalled",
+            // The number of nodes with a metric (cpu, free memory or ops)
+            // outside of what the node normally reports
+            "anomalous_nodes",
+            // The largest distance (in standard deviations) of a node
+            // metric from what the node normally reports
+            "anomaly_score" };
+
+    /**
+     * The resource (next to this class) holding the default rules, used by
+     * both the application and the HeadlessMonitor
+     */
+    public static final String DEFAULT_RULES = "health_rules.txt";
+
+    /**
+     * The rules to use if the rule file can't be loaded (the node rules of
+     * DEFAULT_RULES)
+     */
+    public static final String FALLBACK_RULES = "BAD unhealthy_nodes >= 50%\n"
+            + "DEGRADED unhealthy_nodes >= 1\n"
+            + "DEGRADED inactive_nodes >= 1\n";
+
+    /**
+     * A bucket must average this many ops/sec before we care about its
+     * ops/sec collapsing
+     */
+    public static final double BUSY_OPS = 100;
+
+    private static final int NODES = 0;
+    private static final int UNHEALTHY_NODES = 1;
+    private static final int INACTIVE_NODES = 2;
+    private static final int WARMUP_NODES = 3;
+    private static final int MIN_MEMORY_FREE = 4;
+    private static final int BUCKET_OPS_RATIO = 5;
+    private static final int BUCKET_RESIDENT_RATIO = 6;
+    private static final int BUCKET_DISK_WRITE_QUEUE = 7;
+    private static final int REBALANCING = 8;
+    private static final int REBALANCE_PROGRESS = 9;
+    private static final int REBALANCE_ETA = 10;
+    private static final int REBALANCE_STALLED = 11;
+    private static final int ANOMALOUS_NODES = 12;
+    private static final int ANOMALY_SCORE = 13;
+
+    private static final String[] OPERATORS = { "<", "<=", ">", ">=", "==",
+            "!=" };
+    private static final int LT = 0;
+    private static final int LE = 1;
+    private static final int GT = 2;
+    private static final int GE = 3;
+    private static final int EQ = 4;
+    private static final int NE = 5;
+
+    /**
+     * The state of the rules for a single cluster. It is only used by one
+     * thread at the time.
+     */
+    public static class Evaluation {
+        private final double[] metrics = new double[METRICS.length];
+        private final int[] streaks;
+        private final boolean[] firing;
+        private final AnomalyDetector detector;
+        private int worst = -1;
+
+        private Evaluation(int rules, AnomalyDetector detector) {
+            streaks = new int[rules];
+            firing = new boolean[rules];
+            this.detector = detector;
+        }
+    }
+
+    // The compiled rules
+    private final State[] states;
+    private final int[] metrics;
+    private final int[] operators;
+    private final double[] thresholds;
+    private final boolean[] percent;
+    private final int[] polls;
+    private final String[] sources;
+
+    private RuleEngine(List<String[]> rules, List<String> lines)
+            throws IOException {
+        int count = rules.size();
+        states = new State[count];
+        metrics = new int[count];
+        operators = new int[count];
+        thresholds = new double[count];
+        percent = new boolean[count];
+        polls = new int[count];
+        sources = lines.toArray(new String[count]);
+
+        for (int ii = 0; ii < count; ++ii) {
+            String[] rule = rules.get(ii);
+            try {
+                states[ii] = State.valueOf(rule[0].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw error(ii, "unknown state " + rule[0]);
+            }
+            metrics[ii] = indexOf(METRICS, rule[1]);
+            if (metrics[ii] == -1) {
+                throw error(ii, "unknown metric " + rule[1]);
+            }
+            operators[ii] = indexOf(OPERATORS, rule[2]);
+            if (operators[ii] == -1) {
+                throw error(ii, "unknown operator " + rule[2]);
+            }
+            String value = rule[3];
+            if (value.endsWith("%")) {
+                percent[ii] = true;
+                value = value.substring(0, value.length() - 1);
+            }
+            polls[ii] = 1;
+            try {
+                thresholds[ii] = Double.parseDouble(value);
+                if (rule.length == 6 && rule[4].equals("for")) {
+                    polls[ii] = Math.max(1, Integer.parseInt(rule[5]));
+                } else if (rule.length != 4) {
+                    throw error(ii, "expected \"for <polls>\"");
+                }
+            } catch (NumberFormatException e) {
+                throw error(ii, "invalid number");
+            }
+        }
+    }
+
+    /**
+     * Compile the default rules (the DEFAULT_RULES resource)
+     * 
+     * @return the rule engine
+     * @throws IOException
+     *             if the resource is missing or contains an invalid rule
+     */
+    public static RuleEngine compileDefaults() throws IOException {
+        InputStream in = RuleEngine.class.getResourceAsStream(DEFAULT_RULES);
+        if (in == null) {
+            throw new FileNotFoundException(DEFAULT_RULES);
+        }
+        try {
+            return compile(new InputStreamReader(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compile the rules from a rule file
+     * 
+     * @param in
+     *            where to read the rules from
+     * @return the rule engine
+     * @throws IOException
+     *             if we fail to read the file or it contains an invalid rule
+     */
+    public static RuleEngine compile(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        List<String[]> rules = new ArrayList<String[]>();
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int idx = line.indexOf('#');
+            if (idx != -1) {
+                line = line.substring(0, idx);
+            }
+            line = line.trim();
+            if (line.length() > 0) {
+                rules.add(line.split("\\s+"));
+                lines.add(line.replaceAll("\\s+", " "));
+            }
+        }
+        return new RuleEngine(rules, lines);
+    }
+
+    /**
+     * @return a new (empty) evaluation state for a cluster
+     */
+    public Evaluation newEvaluation() {
+        boolean anomalies = false;
+        for (int metric : metrics) {
+            anomalies |= metric == ANOMALOUS_NODES || metric == ANOMALY_SCORE;
+        }
+        return new Evaluation(states.length,
+                anomalies ? new AnomalyDetector() : null);
+    }
+
+    /**
+     * @return the number of rules
+     */
+    public int size() {
+        return states.length;
+    }
+
+    /**
+     * Evaluate the rules for a new snapshot of a cluster
+     * 
+     * @param snapshot
+     *            the nodes in the cluster
+     * @param buckets
+     *            the stats of the buckets in the cluster (may be null if
+     *            they're not available)
+     * @param evaluation
+     *            the state of the rules for the cluster
+     * @return the state of the cluster
+     */
+    public State evaluate(ClusterSnapshot snapshot, List<BucketStats> buckets,
+            Evaluation evaluation) {
+        synchronized (evaluation) {
+            computeMetrics(snapshot, buckets, evaluation.metrics);
+            AnomalyDetector detector = evaluation.detector;
+            if (detector == null) {
+                evaluation.metrics[ANOMALOUS_NODES] = Double.NaN;
+                evaluation.metrics[ANOMALY_SCORE] = Double.NaN;
+            } else {
+                detector.update(snapshot, System.currentTimeMillis());
+                evaluation.metrics[ANOMALOUS_NODES] = detector
+                        .getAnomalousNodes();
+                evaluation.metrics[ANOMALY_SCORE] = detector.getMaxScore();
+            }
+            int nodes = snapshot.size();
+            State state = snapshot.isRebalancing() ? State.REBALANCING
+                    : State.GOOD;
+            evaluation.worst = -1;
+
+            for (int ii = 0; ii < states.length; ++ii) {
+                double value = evaluation.metrics[metrics[ii]];
+                if (percent[ii]) {
+                    value = nodes == 0 ? Double.NaN : value * 100 / nodes;
+                }
+                boolean match = compare(value, operators[ii], thresholds[ii]);
+
+                // Count the polls in a row the rule has been (not) matching
+                if (match != evaluation.firing[ii]) {
+                    if (++evaluation.streaks[ii] >= polls[ii]) {
+                        evaluation.firing[ii] = match;
+                        evaluation.streaks[ii] = 0;
+                    }
+                } else {
+                    evaluation.streaks[ii] = 0;
+                }
+
+                if (evaluation.firing[ii]
+                        && states[ii].ordinal() < state.ordinal()) {
+                    state = states[ii];
+                    evaluation.worst = ii;
+                }
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Describe the worst rule firing after the last evaluation
+     * 
+     * @param evaluation
+     *            the state of the rules for the cluster
+     * @return the rule and the value of its metric (or null if none of the
+     *         rules fired)
+     */
+    public String describe(Evaluation evaluation) {
+        synchronized (evaluation) {
+            int rule = evaluation.worst;
+            if (rule == -1) {
+                return null;
+            }
+            double value = evaluation.metrics[metrics[rule]];
+            String ret = sources[rule] + " (" + METRICS[metrics[rule]] + " is "
+                    + (value == Math.rint(value) ? Long.toString((long) value)
+                            : Double.toString(value)) + ")";
+            int metric = metrics[rule];
+            if ((metric == ANOMALOUS_NODES || metric == ANOMALY_SCORE)
+                    && evaluation.detector.describe() != null) {
+                ret += ": " + evaluation.detector.describe();
+            }
+            return ret;
+        }
+    }
+
+    private static void computeMetrics(ClusterSnapshot snapshot,
+            List<BucketStats> buckets, double[] values) {
+        int unhealthy = 0;
+        int inactive = 0;
+        int warmup = 0;
+        double memoryFree = Double.NaN;
+        int nodes = snapshot.size();
+        for (int ii = 0; ii < nodes; ++ii) {
+            NodeHealth node = snapshot.getNode(ii);
+            if (!node.isHealthy()) {
+                ++unhealthy;
+            }
+            if (!"active".equals(node.getClusterMembership())) {
+                ++inactive;
+            }
+            if ("warmup".equals(node.getStatus())) {
+                ++warmup;
+            }
+            if (node.getMemoryTotal() > 0) {
+                memoryFree = min(memoryFree, node.getMemoryFree() * 100.0
+                        / node.getMemoryTotal());
+            }
+        }
+
+        double opsRatio = Double.NaN;
+        double residentRatio = Double.NaN;
+        double diskWriteQueue = Double.NaN;
+        int count = buckets == null ? 0 : buckets.size();
+        for (int ii = 0; ii < count; ++ii) {
+            BucketStats stats = buckets.get(ii);
+            double mean = stats.getMean(BucketStats.OPS);
+            if (mean >= BUSY_OPS) {
+                opsRatio = min(opsRatio, stats.getLast(BucketStats.OPS) * 100
+                        / mean);
+            }
+            residentRatio = min(residentRatio,
+                    stats.getLast(BucketStats.RESIDENT_RATIO));
+            diskWriteQueue = max(diskWriteQueue,
+                    stats.getLast(BucketStats.DISK_WRITE_QUEUE));
+        }
+
+        values[NODES] = nodes;
+        values[UNHEALTHY_NODES] = unhealthy;
+        values[INACTIVE_NODES] = inactive;
+        values[WARMUP_NODES] = warmup;
+        values[MIN_MEMORY_FREE] = memoryFree;
+        values[BUCKET_OPS_RATIO] = opsRatio;
+        values[BUCKET_RESIDENT_RATIO] = residentRatio;
+        values[BUCKET_DISK_WRITE_QUEUE] = diskWriteQueue;
+
+        RebalanceTracker.Progress rebalance = snapshot.getRebalance();
+        values[REBALANCING] = snapshot.isRebalancing() ? 1 : 0;
+        if (rebalance == null) {
+            values[REBALANCE_PROGRESS] = Double.NaN;
+            values[REBALANCE_ETA] = Double.NaN;
+            values[REBALANCE_STALLED] = Double.NaN;
+        } else {
+            long eta = rebalance.getEta();
+            values[REBALANCE_PROGRESS] = rebalance.getProgress();
+            values[REBALANCE_ETA] = eta == -1 ? Double.NaN : eta / 60000.0;
+            values[REBALANCE_STALLED] = rebalance.getStalled() / 60000.0;
+        }
+    }
+
+    /**
+     * Compare a value with a threshold (a missing value, NaN, never matches)
+     */
+    private static boolean compare(double value, int operator,
+            double threshold) {
+        if (Double.isNaN(value)) {
+            return false;
+        }
+        switch (operator) {
+        case LT:
+            return value < threshold;
+        case LE:
+            return value <= threshold;
+        case GT:
+            return value > threshold;
+        case GE:
+            return value >= threshold;
+        case EQ:
+            return value == threshold;
+        default:
+            return value != threshold;
+        }
+    }
+
+    /**
+     * Math.min ignoring missing (NaN) values
+     */
+    private static double min(double a, double b) {
+        if (Double.isNaN(a)) {
+            return b;
+        }
+        return Double.isNaN(b) ? a : Math.min(a, b);
+    }
+
+    /**
+     * Math.max ignoring missing (NaN) values
+     */
+    private static double max(double a, double b) {
+        if (Double.isNaN(a)) {
+            return b;
+        }
+        return Double.isNaN(b) ? a : Math.max(a, b);
+    }
+
+    private static int indexOf(String[] array, String value) {
+        for (int ii = 0; ii < array.length; ++ii) {
+            if (array[ii].equals(value)) {
+                return ii;
+            }
+        }
+        return -1;
+    }
+
+    private IOException error(int rule, String message) {
+        return new IOException("Invalid rule \"" + sources[rule] + "\": "
+                + message);
+    }
+}
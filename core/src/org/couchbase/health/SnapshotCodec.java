@@ -0,0 +1,620 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+
+/**
+ * A compact binary encoding of a cluster snapshot (the nodes, their status
+ * and the key metrics, the rebalance and the state of the cluster), used
+ * to cache, transfer and export the snapshots instead of the JSON
+ * documents we read from the server.
+ * 
+ * An Encoder produces a stream of frames. The first frame (and every
+ * KEYFRAME_INTERVAL frame after it) is a keyframe containing the whole
+ * snapshot; the other frames only contain the fields that changed since
+ * the previous frame, so a Decoder must see every frame after a keyframe.
+ * All of the integers are written as varints (and the differences as
+ * zigzag encoded varints), so a poll where only the ops changed costs a
+ * couple of bytes per node.
+ * 
+ * <pre>
+ * byte    MAGIC
+ * byte    VERSION
+ * byte    flags (KEYFRAME, REBALANCING, PROGRESS)
+ * byte    the ordinal of the state of the cluster
+ * varint  sequence number
+ * varint  timestamp (the difference from the previous frame in a delta)
+ * [PROGRESS: varint started, double progress, double rate, varint stalled]
+ * varint  number of nodes
+ * per node:
+ *   byte    the fields present (HOSTNAME, STATUS, MEMBERSHIP, ...)
+ *   string  hostname
+ *   ref     status, membership (index in the frame's string table, or 0
+ *           followed by the string)
+ *   varint  uptime, memoryTotal, memoryFree (the difference from the
+ *           same node in the previous frame)
+ *   double  ops, cpu
+ * </pre>
+ * 
+ * A node is compared with the node at the same index in the previous
+ * frame. The doubles are written as varints of their bits reversed, so
+ * that "round" values (with a short mantissa) use few bytes.
+ * 
+ * Neither the Encoder nor the Decoder is thread safe.
+ * 
+ * @author Trond Norbye
+ */
+public class SnapshotCodec {
+    /**
+     * The current version of the format. A frame with another version is
+     * rejected. Version 2 added the cpu of the nodes.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * The number of frames between each keyframe
+     */
+    public static final int KEYFRAME_INTERVAL = 16;
+
+    private static final int MAGIC = 0xcb;
+
+    // The flags of a frame
+    private static final int F_KEYFRAME = 1;
+    private static final int F_REBALANCING = 2;
+    private static final int F_PROGRESS = 4;
+
+    // The fields of a node
+    private static final int HOSTNAME = 1;
+    private static final int STATUS = 2;
+    private static final int MEMBERSHIP = 4;
+    private static final int UPTIME = 8;
+    private static final int MEMORY_TOTAL = 16;
+    private static final int MEMORY_FREE = 32;
+    private static final int OPS = 64;
+    private static final int CPU = 128;
+    private static final int ALL_FIELDS = 255;
+
+    /**
+     * The number of strings in the string table of a frame
+     */
+    private static final int TABLE_SIZE = 16;
+
+    private static final State[] STATES = State.values();
+
+    private SnapshotCodec() {
+    }
+
+    /**
+     * Encodes the snapshots of a single cluster into frames. The frame is
+     * built in a buffer owned by the Encoder (and reused for the next
+     * frame).
+     */
+    public static class Encoder {
+        private byte[] buffer = new byte[256];
+        private int length;
+        private final String[] table = new String[TABLE_SIZE];
+        private int tableSize;
+        private ClusterSnapshot previous;
+        private int sequence;
+
+        /**
+         * Encode a snapshot (as a keyframe if it's time for one)
+         * 
+         * @param snapshot
+         *            the snapshot of the cluster
+         * @param state
+         *            the state of the cluster
+         * @return the length of the frame (see getBuffer())
+         */
+        public int encode(ClusterSnapshot snapshot, State state) {
+            return encode(snapshot, state, false);
+        }
+
+        /**
+         * Encode a snapshot
+         * 
+         * @param snapshot
+         *            the snapshot of the cluster
+         * @param state
+         *            the state of the cluster
+         * @param keyframe
+         *            set to force a keyframe
+         * @return the length of the frame (see getBuffer())
+         */
+        public int encode(ClusterSnapshot snapshot, State state,
+                boolean keyframe) {
+            ++sequence;
+            ClusterSnapshot base = previous;
+            if (keyframe || base == null || sequence % KEYFRAME_INTERVAL == 0) {
+                base = null;
+            }
+            RebalanceTracker.Progress progress = snapshot.getRebalance();
+
+            length = 0;
+            tableSize = 0;
+            int flags = base == null ? F_KEYFRAME : 0;
+            if (snapshot.isRebalancing()) {
+                flags |= F_REBALANCING;
+            }
+            if (progress != null) {
+                flags |= F_PROGRESS;
+            }
+            ensure(4);
+            buffer[length++] = (byte) MAGIC;
+            buffer[length++] = (byte) VERSION;
+            buffer[length++] = (byte) flags;
+            buffer[length++] = (byte) state.ordinal();
+            writeVarLong(sequence & 0xffffffffL);
+            if (base == null) {
+                writeVarLong(snapshot.getTimestamp());
+            } else {
+                writeSigned(snapshot.getTimestamp() - base.getTimestamp());
+            }
+            if (progress != null) {
+                writeVarLong(progress.getStarted());
+                writeDouble(progress.getProgress());
+                writeDouble(progress.getRate());
+                writeVarLong(progress.getStalled());
+            }
+
+            int size = snapshot.size();
+            writeVarLong(size);
+            for (int ii = 0; ii < size; ++ii) {
+                NodeHealth node = snapshot.getNode(ii);
+                NodeHealth old = base != null && ii < base.size() ? base
+                        .getNode(ii) : null;
+                int fields = old == null ? ALL_FIELDS : compare(old, node);
+                ensure(1);
+                buffer[length++] = (byte) fields;
+                if ((fields & HOSTNAME) != 0) {
+                    writeString(node.getHostname());
+                }
+                if ((fields & STATUS) != 0) {
+                    writeTableString(node.getStatus());
+                }
+                if ((fields & MEMBERSHIP) != 0) {
+                    writeTableString(node.getClusterMembership());
+                }
+                if ((fields & UPTIME) != 0) {
+                    writeSigned(node.getUptime()
+                            - (old == null ? 0 : old.getUptime()));
+                }
+                if ((fields & MEMORY_TOTAL) != 0) {
+                    writeSigned(node.getMemoryTotal()
+                            - (old == null ? 0 : old.getMemoryTotal()));
+                }
+                if ((fields & MEMORY_FREE) != 0) {
+                    writeSigned(node.getMemoryFree()
+                            - (old == null ? 0 : old.getMemoryFree()));
+                }
+                if ((fields & OPS) != 0) {
+                    writeDouble(node.getOps());
+                }
+                if ((fields & CPU) != 0) {
+                    writeDouble(node.getCpu());
+                }
+            }
+
+            previous = snapshot;
+            for (int ii = 0; ii < tableSize; ++ii) {
+                table[ii] = null;
+            }
+            return length;
+        }
+
+        /**
+         * @return the buffer holding the last frame (valid until the next
+         *         call to encode())
+         */
+        public byte[] getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @return the length of the last frame
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return a copy of the last frame
+         */
+        public byte[] toByteArray() {
+            byte[] ret = new byte[length];
+            System.arraycopy(buffer, 0, ret, 0, length);
+            return ret;
+        }
+
+        /**
+         * Write the last frame to a stream
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, length);
+        }
+
+        /**
+         * Make the next frame a keyframe (for instance when a new receiver
+         * starts listening)
+         */
+        public void reset() {
+            previous = null;
+        }
+
+        private static int compare(NodeHealth old, NodeHealth node) {
+            int ret = 0;
+            if (!node.getHostname().equals(old.getHostname())) {
+                ret |= HOSTNAME;
+            }
+            if (!equals(node.getStatus(), old.getStatus())) {
+                ret |= STATUS;
+            }
+            if (!equals(node.getClusterMembership(),
+                    old.getClusterMembership())) {
+                ret |= MEMBERSHIP;
+            }
+            if (node.getUptime() != old.getUptime()) {
+                ret |= UPTIME;
+            }
+            if (node.getMemoryTotal() != old.getMemoryTotal()) {
+                ret |= MEMORY_TOTAL;
+            }
+            if (node.getMemoryFree() != old.getMemoryFree()) {
+                ret |= MEMORY_FREE;
+            }
+            if (Double.doubleToRawLongBits(node.getOps()) != Double
+                    .doubleToRawLongBits(old.getOps())) {
+                ret |= OPS;
+            }
+            if (Double.doubleToRawLongBits(node.getCpu()) != Double
+                    .doubleToRawLongBits(old.getCpu())) {
+                ret |= CPU;
+            }
+            return ret;
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == b || (a != null && a.equals(b));
+        }
+
+        private void ensure(int size) {
+            if (length + size > buffer.length) {
+                byte[] next = new byte[Math.max(buffer.length * 2, length
+                        + size)];
+                System.arraycopy(buffer, 0, next, 0, length);
+                buffer = next;
+            }
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void writeSigned(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeDouble(double value) {
+            writeVarLong(Long.reverse(Double.doubleToRawLongBits(value)));
+        }
+
+        /**
+         * Write a string (null is written as the empty string). ASCII
+         * strings are written without creating a byte array.
+         */
+        private void writeString(String value) {
+            if (value == null) {
+                value = "";
+            }
+            int len = value.length();
+            boolean ascii = true;
+            for (int ii = 0; ii < len && ascii; ++ii) {
+                ascii = value.charAt(ii) < 0x80;
+            }
+            if (ascii) {
+                writeVarLong(len);
+                ensure(len);
+                for (int ii = 0; ii < len; ++ii) {
+                    buffer[length++] = (byte) value.charAt(ii);
+                }
+            } else {
+                byte[] bytes;
+                try {
+                    bytes = value.getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e.toString());
+                }
+                writeVarLong(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+            }
+        }
+
+        /**
+         * Write a string through the string table of the frame
+         */
+        private void writeTableString(String value) {
+            if (value == null) {
+                value = "";
+            }
+            for (int ii = 0; ii < tableSize; ++ii) {
+                if (table[ii].equals(value)) {
+                    writeVarLong(ii + 1);
+                    return;
+                }
+            }
+            writeVarLong(0);
+            writeString(value);
+            if (tableSize < TABLE_SIZE) {
+                table[tableSize++] = value;
+            }
+        }
+    }
+
+    /**
+     * Decodes the frames produced by an Encoder back into snapshots. The
+     * nodes that didn't change since the previous frame are shared with
+     * the previous snapshot.
+     */
+    public static class Decoder {
+        private final String[] table = new String[TABLE_SIZE];
+        private int tableSize;
+        private byte[] buffer;
+        private int position;
+        private int end;
+        private ClusterSnapshot previous;
+        private int sequence;
+        private State state = State.UNINITIALISED;
+
+        /**
+         * Decode a frame
+         * 
+         * @param frame
+         *            the array holding the frame
+         * @param offset
+         *            the offset of the frame in the array
+         * @param length
+         *            the length of the frame
+         * @return the snapshot
+         * @throws IOException
+         *             if the frame is invalid, or it is a delta against a
+         *             frame we haven't seen (call reset() and wait for the
+         *             next keyframe)
+         */
+        public ClusterSnapshot decode(byte[] frame, int offset, int length)
+                throws IOException {
+            buffer = frame;
+            position = offset;
+            end = offset + length;
+            tableSize = 0;
+            try {
+                return decode();
+            } finally {
+                buffer = null;
+                for (int ii = 0; ii < tableSize; ++ii) {
+                    table[ii] = null;
+                }
+            }
+        }
+
+        /**
+         * Decode a frame
+         * 
+         * @param frame
+         *            the frame
+         * @return the snapshot
+         * @throws IOException
+         *             if the frame is invalid (see decode(byte[], int, int))
+         */
+        public ClusterSnapshot decode(byte[] frame) throws IOException {
+            return decode(frame, 0, frame.length);
+        }
+
+        /**
+         * @return the state of the cluster in the last frame
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return the last snapshot decoded (null if none)
+         */
+        public ClusterSnapshot getSnapshot() {
+            return previous;
+        }
+
+        /**
+         * Forget the previous frame (the next frame must be a keyframe)
+         */
+        public void reset() {
+            previous = null;
+        }
+
+        private ClusterSnapshot decode() throws IOException {
+            if (readByte() != MAGIC) {
+                throw new IOException("Not a snapshot frame");
+            }
+            int version = readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version "
+                        + version);
+            }
+            int flags = readByte();
+            int ordinal = readByte();
+            int seq = (int) readVarLong();
+
+            ClusterSnapshot base = null;
+            if ((flags & F_KEYFRAME) == 0) {
+                if (previous == null || seq != sequence + 1) {
+                    throw new IOException("Missing the frame before "
+                            + (seq & 0xffffffffL));
+                }
+                base = previous;
+            }
+            long timestamp = base == null ? readVarLong() : base
+                    .getTimestamp() + readSigned();
+            RebalanceTracker.Progress progress = null;
+            if ((flags & F_PROGRESS) != 0) {
+                long started = readVarLong();
+                double done = readDouble();
+                double rate = readDouble();
+                long stalled = readVarLong();
+                progress = new RebalanceTracker.Progress(started, done, rate,
+                        stalled);
+            }
+
+            long size = readVarLong();
+            if (size > end - position) {
+                throw new IOException("Invalid number of nodes: " + size);
+            }
+            int count = (int) size;
+            LinkedHashMap<String, NodeHealth> nodes = new LinkedHashMap<String, NodeHealth>(
+                    count * 4 / 3 + 1);
+            for (int ii = 0; ii < count; ++ii) {
+                NodeHealth old = base != null && ii < base.size() ? base
+                        .getNode(ii) : null;
+                int fields = readByte();
+                if (old == null && fields != ALL_FIELDS) {
+                    throw new IOException("Missing fields for node " + ii);
+                }
+                NodeHealth node;
+                if (fields == 0) {
+                    node = old;
+                } else {
+                    String hostname = (fields & HOSTNAME) != 0 ? readString()
+                            : old.getHostname();
+                    String status = (fields & STATUS) != 0 ? readTableString()
+                            : old.getStatus();
+                    String membership = (fields & MEMBERSHIP) != 0 ? readTableString()
+                            : old.getClusterMembership();
+                    long uptime = old == null ? 0 : old.getUptime();
+                    if ((fields & UPTIME) != 0) {
+                        uptime += readSigned();
+                    }
+                    long total = old == null ? 0 : old.getMemoryTotal();
+                    if ((fields & MEMORY_TOTAL) != 0) {
+                        total += readSigned();
+                    }
+                    long free = old == null ? 0 : old.getMemoryFree();
+                    if ((fields & MEMORY_FREE) != 0) {
+                        free += readSigned();
+                    }
+                    double ops = (fields & OPS) != 0 ? readDouble() : old
+                            .getOps();
+                    double cpu = (fields & CPU) != 0 ? readDouble() : old
+                            .getCpu();
+                    node = new NodeHealth(hostname, status, membership,
+                            uptime, total, free, ops, cpu);
+                }
+                nodes.put(node.getHostname(), node);
+            }
+            if (position != end) {
+                throw new IOException("Trailing data in the snapshot frame");
+            }
+
+            ClusterSnapshot ret = new ClusterSnapshot(timestamp, nodes,
+                    (flags & F_REBALANCING) != 0);
+            if (progress != null) {
+                ret = new ClusterSnapshot(ret, progress);
+            }
+            previous = ret;
+            sequence = seq;
+            state = ordinal < STATES.length ? STATES[ordinal]
+                    : State.UNINITIALISED;
+            return ret;
+        }
+
+        private int readByte() throws IOException {
+            if (position >= end) {
+                throw new IOException("Truncated snapshot frame");
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        private long readVarLong() throws IOException {
+            long ret = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                ret |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return ret;
+                }
+            }
+            throw new IOException("Malformed varint in the snapshot frame");
+        }
+
+        private long readSigned() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private double readDouble() throws IOException {
+            return Double.longBitsToDouble(Long.reverse(readVarLong()));
+        }
+
+        private String readString() throws IOException {
+            long len = readVarLong();
+            if (len > end - position) {
+                throw new IOException("Truncated snapshot frame");
+            }
+            String ret = new String(buffer, position, (int) len, "UTF-8");
+            position += (int) len;
+            return ret;
+        }
+
+        /**
+         * Read a string through the string table of the frame. The usual
+         * values of the status and membership are returned as constants.
+         */
+        private String readTableString() throws IOException {
+            long ref = readVarLong();
+            if (ref > 0) {
+                if (ref > tableSize) {
+                    throw new IOException("Invalid string reference " + ref);
+                }
+                return table[(int) ref - 1];
+            }
+            long len = readVarLong();
+            if (len > end - position) {
+                throw new IOException("Truncated snapshot frame");
+            }
+            String ret;
+            int idx = PoolDocumentParser.NODE_VALUES.indexOf(buffer,
+                    position, (int) len);
+            if (idx == -1) {
+                ret = new String(buffer, position, (int) len, "UTF-8");
+            } else {
+                ret = PoolDocumentParser.NODE_VALUES.get(idx);
+            }
+            position += (int) len;
+            if (tableSize < TABLE_SIZE) {
+                table[tableSize++] = ret;
+            }
+            return ret;
+        }
+    }
+}
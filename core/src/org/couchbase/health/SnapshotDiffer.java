@@ -0,0 +1,162 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares consecutive snapshots of a cluster and reports the nodes that
+ * changed, so that the consumers only need to do work proportional to what
+ * changed instead of looking at every node on every poll.
+ * 
+ * @author Trond Norbye
+ */
+public class SnapshotDiffer {
+    /**
+     * The fields we're interested in (changes to other fields are ignored)
+     */
+    private final int interest;
+
+    /**
+     * The snapshot we compare the next snapshot with
+     */
+    private ClusterSnapshot previous;
+
+    /**
+     * Create a new SnapshotDiffer
+     * 
+     * @param interest
+     *            the fields to report changes for (see NodeChange)
+     */
+    public SnapshotDiffer(int interest) {
+        this.interest = interest;
+    }
+
+    /**
+     * Compare the snapshot with the previous snapshot passed to this method.
+     * All of the nodes are reported as ADDED for the first snapshot.
+     * 
+     * @param next
+     *            the new snapshot of the cluster
+     * @return the changes (an empty list if nothing changed)
+     */
+    public synchronized List<NodeChange> diff(ClusterSnapshot next) {
+        List<NodeChange> ret = diff(previous, next, interest);
+        previous = next;
+        return ret;
+    }
+
+    /**
+     * Set the snapshot the next snapshot is compared with (for instance the
+     * last known snapshot restored from disk)
+     * 
+     * @param previous
+     *            the snapshot (null to report all of the nodes as ADDED)
+     */
+    public synchronized void reset(ClusterSnapshot previous) {
+        this.previous = previous;
+    }
+
+    /**
+     * @return the last snapshot passed to diff()
+     */
+    public synchronized ClusterSnapshot getPrevious() {
+        return previous;
+    }
+
+    /**
+     * Compare two snapshots
+     * 
+     * @param before
+     *            the old snapshot (may be null)
+     * @param after
+     *            the new snapshot
+     * @param interest
+     *            the fields to report changes for
+     * @return the changes (an empty list if nothing changed)
+     */
+    public static List<NodeChange> diff(ClusterSnapshot before,
+            ClusterSnapshot after, int interest) {
+        List<NodeChange> ret = null;
+        int added = 0;
+        for (NodeHealth node : after.getNodes()) {
+            NodeHealth old = before == null ? null : before.getNode(node
+                    .getHostname());
+            NodeChange change;
+            if (old == null) {
+                change = new NodeChange(NodeChange.Type.ADDED, 0, null, node);
+                ++added;
+            } else {
+                int fields = compare(old, node) & interest;
+                if (fields == 0) {
+                    continue;
+                }
+                change = new NodeChange(NodeChange.Type.CHANGED, fields, old,
+                        node);
+            }
+            if (ret == null) {
+                ret = new ArrayList<NodeChange>();
+            }
+            ret.add(change);
+        }
+
+        // Some of the old nodes are gone unless every old node is found in
+        // the new snapshot
+        if (before != null && after.size() - added != before.size()) {
+            for (NodeHealth old : before.getNodes()) {
+                if (after.getNode(old.getHostname()) == null) {
+                    if (ret == null) {
+                        ret = new ArrayList<NodeChange>();
+                    }
+                    ret.add(new NodeChange(NodeChange.Type.REMOVED, 0, old,
+                            null));
+                }
+            }
+        }
+
+        if (ret == null) {
+            return Collections.emptyList();
+        }
+        return ret;
+    }
+
+    private static int compare(NodeHealth before, NodeHealth after) {
+        int ret = 0;
+        if (!equals(before.getStatus(), after.getStatus())) {
+            ret |= NodeChange.STATUS;
+        }
+        if (!equals(before.getClusterMembership(),
+                after.getClusterMembership())) {
+            ret |= NodeChange.MEMBERSHIP;
+        }
+        if (after.getUptime() < before.getUptime()) {
+            ret |= NodeChange.RESTARTED;
+        }
+        if (before.getMemoryFree() != after.getMemoryFree()
+                || before.getMemoryTotal() != after.getMemoryTotal()
+                || before.getOps() != after.getOps()
+                || Double.compare(before.getCpu(), after.getCpu()) != 0) {
+            ret |= NodeChange.METRICS;
+        }
+        return ret;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A stream of snapshots of one or more clusters, encoded with the
+ * SnapshotCodec. It is used for the last known state of the clusters we
+ * save on disk (so that we've got something to show before the first poll
+ * completes) and to export the history of the clusters.
+ * 
+ * <pre>
+ * int     MAGIC
+ * byte    SnapshotCodec.VERSION
+ * per record:
+ *   varint  the index of the cluster (0 for a new cluster, followed by
+ *           varint length and the UTF-8 encoded key)
+ *   varint  length of the frame
+ *   bytes   the frame
+ * </pre>
+ * 
+ * Each cluster has its own Encoder, so the frames of a cluster are deltas
+ * against the previous frame of the same cluster.
+ * 
+ * @author Trond Norbye
+ */
+public class SnapshotLog {
+    /**
+     * Callback used to deliver the snapshots read from a log
+     */
+    public interface Visitor {
+        /**
+         * Called for each snapshot in the log (in the order they were
+         * written)
+         * 
+         * @param key
+         *            the key of the cluster
+         * @param snapshot
+         *            the snapshot
+         * @param state
+         *            the state of the cluster
+         * @return false to stop reading
+         */
+        boolean visit(String key, ClusterSnapshot snapshot, State state);
+    }
+
+    private static final int MAGIC = 0x43425350; // "CBSP"
+
+    /**
+     * The largest key or frame we accept (so that a corrupt log can't make
+     * us allocate all of the memory)
+     */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final OutputStream out;
+    private final Map<String, Integer> keys = new HashMap<String, Integer>();
+    private final Map<String, SnapshotCodec.Encoder> encoders = new HashMap<String, SnapshotCodec.Encoder>();
+    private final byte[] header = new byte[10];
+
+    /**
+     * Start a new log
+     * 
+     * @param out
+     *            where to write the log (it should be buffered)
+     * @throws IOException
+     *             if we fail to write the header
+     */
+    public SnapshotLog(OutputStream out) throws IOException {
+        this.out = out;
+        out.write(MAGIC >>> 24);
+        out.write(MAGIC >>> 16);
+        out.write(MAGIC >>> 8);
+        out.write(MAGIC);
+        out.write(SnapshotCodec.VERSION);
+    }
+
+    /**
+     * Append a snapshot to the log
+     * 
+     * @param key
+     *            the key of the cluster
+     * @param snapshot
+     *            the snapshot
+     * @param state
+     *            the state of the cluster
+     * @throws IOException
+     *             if we fail to write the record
+     */
+    public synchronized void append(String key, ClusterSnapshot snapshot,
+            State state) throws IOException {
+        SnapshotCodec.Encoder encoder = encoders.get(key);
+        Integer index = keys.get(key);
+        if (index == null) {
+            writeVarInt(0);
+            byte[] bytes = key.getBytes("UTF-8");
+            writeVarInt(bytes.length);
+            out.write(bytes);
+            index = Integer.valueOf(keys.size() + 1);
+            keys.put(key, index);
+            encoder = new SnapshotCodec.Encoder();
+            encoders.put(key, encoder);
+        } else {
+            writeVarInt(index.intValue());
+        }
+        writeVarInt(encoder.encode(snapshot, state));
+        encoder.writeTo(out);
+    }
+
+    /**
+     * Flush the records written to the underlying stream
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Close the underlying stream
+     */
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        int len = 0;
+        while ((value & ~0x7f) != 0) {
+            header[len++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        header[len++] = (byte) value;
+        out.write(header, 0, len);
+    }
+
+    /**
+     * Read a log
+     * 
+     * @param in
+     *            the stream to read the log from
+     * @param visitor
+     *            the callback receiving the snapshots
+     * @return the number of snapshots visited
+     * @throws IOException
+     *             if we fail to read the log, or the log is corrupt (a
+     *             truncated last record is ignored)
+     */
+    public static int read(InputStream in, Visitor visitor) throws IOException {
+        int magic = 0;
+        for (int ii = 0; ii < 4; ++ii) {
+            magic = (magic << 8) | readByte(in);
+        }
+        if (magic != MAGIC) {
+            throw new IOException("Not a snapshot log");
+        }
+        int version = readByte(in);
+        if (version != SnapshotCodec.VERSION) {
+            throw new IOException("Unsupported snapshot log version "
+                    + version);
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<SnapshotCodec.Decoder> decoders = new ArrayList<SnapshotCodec.Decoder>();
+        byte[] frame = new byte[1024];
+        int visited = 0;
+        while (true) {
+            int index;
+            try {
+                index = readVarInt(in);
+            } catch (EOFException e) {
+                // The end of the log
+                return visited;
+            }
+            try {
+                if (index == 0) {
+                    byte[] bytes = new byte[readLength(in)];
+                    readFully(in, bytes, bytes.length);
+                    names.add(new String(bytes, "UTF-8"));
+                    decoders.add(new SnapshotCodec.Decoder());
+                    index = names.size();
+                } else if (index > names.size()) {
+                    throw new IOException("Invalid cluster index " + index);
+                }
+                int length = readLength(in);
+                if (length > frame.length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                readFully(in, frame, length);
+                SnapshotCodec.Decoder decoder = decoders.get(index - 1);
+                ClusterSnapshot snapshot = decoder.decode(frame, 0, length);
+                ++visited;
+                if (!visitor.visit(names.get(index - 1), snapshot, decoder
+                        .getState())) {
+                    return visited;
+                }
+            } catch (EOFException e) {
+                // The process died while it wrote the last record
+                return visited;
+            }
+        }
+    }
+
+    /**
+     * Read a log from a file
+     * 
+     * @param file
+     *            the file to read
+     * @param visitor
+     *            the callback receiving the snapshots
+     * @return the number of snapshots visited
+     * @throws IOException
+     *             if we fail to read the file
+     */
+    public static int read(File file, Visitor visitor) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return read(in, visitor);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace a file with a log containing a single keyframe for each of
+     * the clusters. The log is written to a temporary file which is renamed
+     * once it is complete, so a crash never leaves a partial file behind.
+     * 
+     * @param file
+     *            the file to write
+     * @param targets
+     *            the clusters (the ones without a snapshot are skipped)
+     * @throws IOException
+     *             if we fail to write the file
+     */
+    public static void save(File file, List<ClusterTarget> targets)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        SnapshotLog log = new SnapshotLog(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            for (ClusterTarget target : targets) {
+                ClusterSnapshot snapshot = target.getSnapshot();
+                if (snapshot != null) {
+                    log.append(target.getKey(), snapshot, target.getState());
+                }
+            }
+        } finally {
+            log.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp + " to " + file);
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int ret = in.read();
+        if (ret == -1) {
+            throw new EOFException();
+        }
+        return ret;
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int ret = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte(in);
+            ret |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (ret < 0) {
+                    break;
+                }
+                return ret;
+            }
+        }
+        throw new IOException("Malformed varint in the snapshot log");
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        int ret = readVarInt(in);
+        if (ret > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid record length " + ret);
+        }
+        return ret;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length)
+            throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int nr = in.read(bytes, offset, length - offset);
+            if (nr == -1) {
+                throw new EOFException();
+            }
+            offset += nr;
+        }
+    }
+}
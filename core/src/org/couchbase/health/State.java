@@ -16,5 +16,5 @@
 package org.couchbase.health;
 
 public enum State {
-    UNINITIALISED, NETWORK_ERROR, BAD, DEGRADED, GOOD
+    UNINITIALISED, NETWORK_ERROR, BAD, DEGRADED, REBALANCING, GOOD
 }
@@ -0,0 +1,139 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The last known state of all of the clusters, published by the
+ * StateMonitorService so that the widget and the activity can show it
+ * without polling the clusters themselves (or waiting for the next poll).
+ * 
+ * The published snapshot is immutable and replaced atomically, so reading
+ * it is O(1) and never blocks.
+ * 
+ * @author Trond Norbye
+ */
+public class StateCache {
+    /**
+     * An immutable snapshot of the state of all of the clusters
+     */
+    public static class Entry {
+        private final State state;
+        private final long timestamp;
+        private final String[] keys;
+        private final State[] states;
+        private final long[] updates;
+
+        /**
+         * Create a snapshot of the current state of the clusters
+         * 
+         * @param state
+         *            the aggregated state of all of the clusters
+         * @param targets
+         *            the clusters
+         */
+        public Entry(State state, List<ClusterTarget> targets) {
+            this.state = state;
+            timestamp = System.currentTimeMillis();
+            int size = targets.size();
+            keys = new String[size];
+            states = new State[size];
+            updates = new long[size];
+            for (int ii = 0; ii < size; ++ii) {
+                ClusterTarget target = targets.get(ii);
+                keys[ii] = target.getKey();
+                states[ii] = target.getState();
+                updates[ii] = target.getLastUpdate();
+            }
+        }
+
+        /**
+         * @return the aggregated state of all of the clusters
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return the time the snapshot was published
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return the number of clusters
+         */
+        public int size() {
+            return keys.length;
+        }
+
+        public String getKey(int index) {
+            return keys[index];
+        }
+
+        public State getState(int index) {
+            return states[index];
+        }
+
+        /**
+         * @param index
+         *            the index of the cluster
+         * @return the time the state of the cluster was last updated
+         */
+        public long getLastUpdate(int index) {
+            return updates[index];
+        }
+
+        /**
+         * @return the number of clusters in the given state
+         */
+        public int count(State state) {
+            int ret = 0;
+            for (State s : states) {
+                if (s == state) {
+                    ++ret;
+                }
+            }
+            return ret;
+        }
+    }
+
+    private static final AtomicReference<Entry> current = new AtomicReference<Entry>();
+
+    private StateCache() {
+    }
+
+    /**
+     * Publish a new snapshot
+     * 
+     * @param entry
+     *            the snapshot
+     */
+    public static void publish(Entry entry) {
+        current.set(entry);
+    }
+
+    /**
+     * @return the last published snapshot (or null if the monitor hasn't
+     *         published anything yet)
+     */
+    public static Entry get() {
+        return current.get();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * The StreamingWatcher holds a long-lived connection to the streaming pool
+ * URI of a cluster, so that we're told about changes as soon as the server
+ * push them instead of having to poll for them.
+ *
+ * The target is flagged as streaming while the connection is up (so that the
+ * poller only refreshes the bucket stats, which aren't pushed). When the
+ * connection is lost we fall back to polling, and try to reconnect the
+ * stream with an exponential backoff.
+ *
+ * Each watcher use its own thread, because the connection blocks the thread
+ * for as long as it is open.
+ *
+ * @author Trond Norbye
+ */
+public class StreamingWatcher implements Runnable {
+    /**
+     * Callback interface used to deliver the events from the watcher
+     */
+    public interface Listener {
+        /**
+         * Called every time the server push a new configuration
+         *
+         * @param target
+         *            the cluster
+         * @param snapshot
+         *            a snapshot of the nodes in the cluster
+         */
+        void onSnapshot(ClusterTarget target, ClusterSnapshot snapshot);
+
+        /**
+         * Called when we lost the connection to the server, and the cluster
+         * must be polled until we're able to reconnect
+         *
+         * @param target
+         *            the cluster
+         */
+        void onDisconnected(ClusterTarget target);
+    }
+
+    /**
+     * The minimum number of milliseconds to wait before we try to reconnect
+     */
+    private static final long MIN_BACKOFF = 1000;
+
+    /**
+     * The maximum number of milliseconds to wait before we try to reconnect
+     */
+    private static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+    private final ClusterTarget target;
+    private final Listener listener;
+    private final Random random = new Random();
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * The number of times in a row we've failed to connect
+     */
+    private int failures;
+
+    /**
+     * Set once the server pushed a configuration on the current connection
+     */
+    private boolean received;
+
+    /**
+     * Create a new StreamingWatcher
+     *
+     * @param target
+     *            the cluster to watch
+     * @param listener
+     *            where to deliver the events (called from the watcher's
+     *            thread)
+     */
+    public StreamingWatcher(ClusterTarget target, Listener listener) {
+        this.target = target;
+        this.listener = listener;
+    }
+
+    /**
+     * Start the thread holding the connection
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "couchbase-stream-" + target);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Close the connection and stop the thread
+     */
+    public synchronized void stop() {
+        running = false;
+        target.getHealthReader().stopStreaming();
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public void run() {
+        PoolHealthReader.StreamListener streamListener = new PoolHealthReader.StreamListener() {
+            public void onSnapshot(ClusterSnapshot snapshot) {
+                failures = 0;
+                received = true;
+                target.setStreaming(true);
+                listener.onSnapshot(target, snapshot);
+            }
+        };
+
+        while (running) {
+            received = false;
+            try {
+                target.getHealthReader().stream(streamListener);
+            } catch (SocketTimeoutException e) {
+                if (received) {
+                    // The server didn't push anything for a while, reconnect
+                    // right away to verify that it is still alive
+                    continue;
+                }
+                // We timed out connecting (or the server never pushed the
+                // configuration): the cluster may be unreachable
+                ++failures;
+            } catch (IOException e) {
+                ++failures;
+            }
+
+            if (!running) {
+                break;
+            }
+
+            if (target.isStreaming()) {
+                target.setStreaming(false);
+                listener.onDisconnected(target);
+            }
+
+            try {
+                Thread.sleep(getBackoff());
+            } catch (InterruptedException e) {
+                // stop() will clear running
+            }
+        }
+        target.setStreaming(false);
+    }
+
+    /**
+     * Get the time to wait before the next reconnect: doubled for every
+     * failure (with a random jitter so that all of the watchers don't
+     * reconnect at the same time after a network outage).
+     */
+    private long getBackoff() {
+        long backoff = MIN_BACKOFF << Math.min(failures, 16);
+        backoff = Math.min(backoff, MAX_BACKOFF);
+        return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+    }
+}
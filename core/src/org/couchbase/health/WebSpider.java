@@ -0,0 +1,591 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Utility to download resources from the network.
+ *
+ * The connections are kept alive between the requests: the body of every
+ * response is read to the end and the stream is closed (but the connection
+ * is never disconnected) so that HttpURLConnection may return the socket to
+ * its connection pool. Responses are requested gzip'ed, and the ETag of each
+ * resource is remembered so that we may ask the server to only send the
+ * resource if it changed.
+ *
+ * The bodies are handed to the handlers as (decompressed) UTF-8 bytes so
+ * that they may be parsed without decoding them into characters first.
+ * Responses in other charsets are re-encoded, and responses larger than
+ * the configured maximum are rejected.
+ *
+ * @author Trond Norbye
+ */
+public class WebSpider {
+    /**
+     * Callback used to consume the body of a response while it is being
+     * received (instead of buffering the entire response in memory)
+     */
+    public interface BodyHandler<T> {
+        /**
+         * Consume the body of the response
+         *
+         * @param body
+         *            the body of the response encoded as UTF-8 (regardless
+         *            of the charset used by the server)
+         * @return the result of processing the body
+         * @throws IOException
+         *             if an error occurs while reading the body
+         */
+        T handle(InputStream body) throws IOException;
+    }
+
+    /**
+     * Lets another thread abort a download (disconnecting the connection
+     * makes a blocking read fail). Used to stop the loser of a hedged
+     * request.
+     */
+    public static class Abort {
+        private HttpURLConnection connection;
+        private boolean aborted;
+
+        /**
+         * Abort the download in progress (and fail the ones started
+         * later)
+         */
+        public void abort() {
+            HttpURLConnection c;
+            synchronized (this) {
+                aborted = true;
+                c = connection;
+                connection = null;
+            }
+            if (c != null) {
+                c.disconnect();
+            }
+        }
+
+        public synchronized boolean isAborted() {
+            return aborted;
+        }
+
+        private synchronized void attach(HttpURLConnection c)
+                throws IOException {
+            if (aborted) {
+                throw new IOException("Aborted");
+            }
+            connection = c;
+        }
+
+        private synchronized void detach() {
+            connection = null;
+        }
+    }
+
+    private static final Logger LOG = Logger
+            .getLogger("org.couchbase.health.spider");
+
+    /**
+     * The default number of milliseconds to wait for a connection
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    /**
+     * The default number of milliseconds to wait for data
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+
+    /**
+     * The maximum number of bytes we'll read from the rest of a body in
+     * order to reuse the connection
+     */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    /**
+     * The default maximum size of a (decompressed) response
+     */
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The buffer we read the remainder of the bodies into. The data is
+     * thrown away, so the threads may share it.
+     */
+    private static final byte[] drain = new byte[4096];
+
+    /**
+     * The number of milliseconds we trust a host name we resolved (like the
+     * address cache of the VM) before we time its lookup again
+     */
+    private static final long RESOLVE_INTERVAL = 30 * 1000;
+
+    /**
+     * The ETag for the resources we've downloaded
+     */
+    private final ConcurrentMap<String, String> etags = new ConcurrentHashMap<String, String>();
+
+    /**
+     * When we last resolved each host name (System.currentTimeMillis())
+     */
+    private final ConcurrentMap<String, Long> resolved =
+            new ConcurrentHashMap<String, Long>();
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private volatile int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+    /**
+     * Where to record the timings and errors of the downloads (null if we
+     * shouldn't record them)
+     */
+    private volatile PollMetrics metrics;
+
+    /**
+     * Create a new WebSpider with the default timeouts
+     */
+    public WebSpider() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Create a new WebSpider
+     *
+     * @param connectTimeout
+     *            the number of milliseconds to wait for a connection
+     * @param readTimeout
+     *            the number of milliseconds to wait for data
+     */
+    public WebSpider(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Record the timings of each phase of the downloads and count the
+     * errors
+     *
+     * @param metrics
+     *            where to record them (null to stop recording)
+     */
+    public void setMetrics(PollMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the maximum number of bytes we'll accept in a (decompressed)
+     * response. Larger responses fail with an IOException.
+     *
+     * @param maxResponseSize
+     *            the maximum number of bytes
+     */
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    /**
+     * Download a given url and return it as a string
+     *
+     * @param url
+     *            the resource to download
+     * @return The data as a string
+     * @throws IOException
+     *             If an error occurs (invalid id, missing resource etc)
+     */
+    public String download(String url) throws IOException {
+        return download(new URL(url));
+    }
+
+    /**
+     * Download a given url and return it as a string
+     *
+     * @param url
+     *            the resource to download
+     * @return The data as a string
+     * @throws IOException
+     *             If an error occurs (invalid id, missing resource etc)
+     */
+    public String download(URL url) throws IOException {
+        return download(url, false, new BodyHandler<String>() {
+            public String handle(InputStream body) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] array = new byte[4096];
+                int nr;
+                while ((nr = body.read(array)) > 0) {
+                    out.write(array, 0, nr);
+                }
+                return out.toString("UTF-8");
+            }
+        });
+    }
+
+    /**
+     * Download a given url and let the handler consume the body directly off
+     * the stream
+     *
+     * @param url
+     *            the resource to download
+     * @param handler
+     *            the handler to consume the body
+     * @return the value returned by the handler
+     * @throws IOException
+     *             If an error occurs (invalid id, missing resource etc)
+     */
+    public <T> T download(URL url, BodyHandler<T> handler) throws IOException {
+        return download(url, false, handler);
+    }
+
+    /**
+     * Download a given url and let the handler consume the body directly off
+     * the stream
+     *
+     * @param url
+     *            the resource to download
+     * @param conditional
+     *            if true, ask the server to only send the resource if it has
+     *            changed since the last time we downloaded it
+     * @param handler
+     *            the handler to consume the body
+     * @return the value returned by the handler, or null if the request was
+     *         conditional and the resource hasn't changed (in which case the
+     *         handler isn't called)
+     * @throws IOException
+     *             If an error occurs (invalid id, missing resource etc)
+     */
+    public <T> T download(URL url, boolean conditional, BodyHandler<T> handler)
+            throws IOException {
+        return download(url, conditional, handler, null);
+    }
+
+    /**
+     * Download a given url and let the handler consume the body directly off
+     * the stream
+     *
+     * @param url
+     *            the resource to download
+     * @param conditional
+     *            if true, ask the server to only send the resource if it has
+     *            changed since the last time we downloaded it
+     * @param handler
+     *            the handler to consume the body
+     * @param abort
+     *            lets another thread abort the download (may be null)
+     * @return the value returned by the handler, or null if the request was
+     *         conditional and the resource hasn't changed (in which case the
+     *         handler isn't called)
+     * @throws IOException
+     *             If an error occurs (invalid id, missing resource etc), or
+     *             the download was aborted
+     */
+    public <T> T download(URL url, boolean conditional,
+            BodyHandler<T> handler, Abort abort) throws IOException {
+        LOG.fine("Download: " + url.toExternalForm());
+        String key = url.toExternalForm();
+        PollMetrics m = metrics;
+        long time = 0;
+        if (m != null) {
+            m.count(PollMetrics.Counter.REQUESTS);
+            time = System.nanoTime();
+            if (needsLookup(url.getHost())) {
+                // Resolve the name ourselves so that we can tell the time
+                // spent in DNS from the time spent connecting
+                // (HttpURLConnection gets the address from the cache)
+                try {
+                    InetAddress.getByName(url.getHost());
+                } catch (IOException e) {
+                    resolved.remove(url.getHost());
+                    m.error(PollMetrics.classify(e, false), e);
+                    throw e;
+                }
+                time = m.record(PollMetrics.Phase.DNS, time);
+            }
+        }
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (conditional) {
+            String etag = etags.get(key);
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+        }
+        if (abort == null) {
+            return execute(connection, key, conditional, handler, m, time,
+                    null);
+        }
+        abort.attach(connection);
+        try {
+            return execute(connection, key, conditional, handler, m, time,
+                    abort);
+        } finally {
+            abort.detach();
+        }
+    }
+
+    /**
+     * Send the request and let the handler consume the body (see
+     * download())
+     */
+    private <T> T execute(HttpURLConnection connection, String key,
+            boolean conditional, BodyHandler<T> handler, PollMetrics m,
+            long time, Abort abort) throws IOException {
+        int code;
+        try {
+            if (m != null) {
+                connection.connect();
+                time = m.record(PollMetrics.Phase.CONNECT, time);
+            }
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            error(m, abort, PollMetrics.classify(e, false), e);
+            throw e;
+        }
+        if (m != null) {
+            time = m.record(PollMetrics.Phase.FIRST_BYTE, time);
+        }
+
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+            try {
+                close(connection.getInputStream());
+            } catch (IOException e) {
+                /* There is no body in a 304 */
+            }
+            if (m != null) {
+                m.count(PollMetrics.Counter.NOT_MODIFIED);
+            }
+            return null;
+        }
+
+        if (code != HttpURLConnection.HTTP_OK) {
+            close(connection.getErrorStream());
+            FileNotFoundException e = new FileNotFoundException(
+                    Integer.toString(code));
+            error(m, abort, PollMetrics.Error.HTTP, e);
+            throw e;
+        }
+
+        int max = maxResponseSize;
+        if (connection.getContentLength() > max) {
+            connection.disconnect();
+            IOException e = new IOException("Response larger than " + max
+                    + " bytes");
+            error(m, abort, PollMetrics.Error.OTHER, e);
+            throw e;
+        }
+
+        InputStream in = null;
+        try {
+            in = connection.getInputStream();
+            if (m != null) {
+                in = new CountingInputStream(in, m);
+            }
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            InputStream body = new BoundedInputStream(in, max);
+            String charset = getCharset(connection);
+            if (!charset.equalsIgnoreCase("UTF-8")
+                    && !charset.equalsIgnoreCase("US-ASCII")) {
+                body = toUtf8(new InputStreamReader(body, charset));
+            }
+            T ret = handler.handle(body);
+            if (m != null) {
+                m.record(PollMetrics.Phase.BODY, time);
+            }
+
+            // Only remember the ETag once we've successfully processed the
+            // body (we'd otherwise miss the update on the next request)
+            String etag = connection.getHeaderField("ETag");
+            if (etag != null) {
+                etags.put(key, etag);
+            } else {
+                etags.remove(key);
+            }
+            return ret;
+        } catch (IOException e) {
+            error(m, abort, PollMetrics.classify(e, true), e);
+            throw e;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Record an error (unless it was caused by aborting the download)
+     */
+    private static void error(PollMetrics m, Abort abort,
+            PollMetrics.Error type, IOException e) {
+        if (m != null && (abort == null || !abort.isAborted())) {
+            m.error(type, e);
+        }
+    }
+
+    /**
+     * Open a connection to a streaming resource. The caller is responsible
+     * for reading the body off the connection, and to disconnect the
+     * connection when it is done (disconnecting the connection from another
+     * thread aborts a blocking read).
+     *
+     * @param url
+     *            the resource to stream
+     * @param readTimeout
+     *            the number of milliseconds to wait for the server to push
+     *            more data
+     * @return the connection
+     * @throws IOException
+     *             If an error occurs (invalid id, missing resource etc)
+     */
+    public HttpURLConnection openStream(URL url, int readTimeout)
+            throws IOException {
+        LOG.fine("Stream: " + url.toExternalForm());
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+
+        int code;
+        try {
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+
+        if (code != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new FileNotFoundException(Integer.toString(code));
+        }
+        return connection;
+    }
+
+    /**
+     * Check if we should time the lookup of a host name. Addresses aren't
+     * looked up at all, and a name resolved within RESOLVE_INTERVAL is
+     * still in the address cache (so resolving it again would only double
+     * the lookups).
+     *
+     * @param host
+     *            the host part of the URL
+     * @return true if the name should be resolved (and timed) before we
+     *         connect
+     */
+    private boolean needsLookup(String host) {
+        if (isAddress(host)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long last = resolved.get(host);
+        if (last != null && now - last.longValue() < RESOLVE_INTERVAL) {
+            return false;
+        }
+        resolved.put(host, Long.valueOf(now));
+        return true;
+    }
+
+    /**
+     * @return true if the host is an IPv4 address or a (bracketed) IPv6
+     *         address rather than a name
+     */
+    private static boolean isAddress(String host) {
+        if (host.length() == 0 || host.indexOf(':') != -1) {
+            return true;
+        }
+        for (int ii = 0; ii < host.length(); ++ii) {
+            char c = host.charAt(ii);
+            if (c != '.' && (c < '0' || c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget the ETag for the resource so that the next conditional request
+     * downloads it again
+     *
+     * @param url
+     *            the resource
+     */
+    public void invalidate(URL url) {
+        etags.remove(url.toExternalForm());
+    }
+
+    /**
+     * Read whatever is left of a body and close the stream so that the
+     * connection may be reused.
+     */
+    private void close(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            int total = 0;
+            int nr;
+            while (total < MAX_DRAIN && (nr = in.read(drain)) > 0) {
+                total += nr;
+            }
+        } catch (IOException e) {
+            /* ignore */
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            /* ignore */
+        }
+    }
+
+    /**
+     * Re-encode a body sent in another charset than UTF-8 (the servers
+     * we're talking to always use UTF-8, so this is the slow path)
+     */
+    private InputStream toUtf8(Reader body) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] array = new char[4096];
+        int nr;
+        while ((nr = body.read(array)) > 0) {
+            sb.append(array, 0, nr);
+        }
+        return new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+    }
+
+    private String getCharset(HttpURLConnection connection) {
+        String type = connection.getContentType();
+        if (type != null) {
+            for (String param : type.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return param.substring(8).replace("\"", "");
+                }
+            }
+        }
+        return "UTF-8";
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Drive the AdaptivePollPolicy with a fake clock.
+ * 
+ * @author Trond Norbye
+ */
+public class AdaptivePollPolicyTest extends TestCase {
+    private static final long INTERVAL = 60000;
+    private static final long FAST = 6000;
+    private static final long MAX_BACKOFF = 240000;
+    private static final long STABLE = 300000;
+
+    /**
+     * A clock we move by hand
+     */
+    private static class FakeClock implements Clock {
+        private long now = 1000000;
+
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        void advance(long ms) {
+            now += ms;
+        }
+    }
+
+    /**
+     * A Random always picking the middle of the jitter (so the delays are
+     * exact)
+     */
+    private static class NoJitter extends Random {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public double nextDouble() {
+            return 0.5;
+        }
+    }
+
+    private FakeClock clock;
+    private AdaptivePollPolicy policy;
+
+    @Override
+    protected void setUp() throws Exception {
+        clock = new FakeClock();
+        policy = new AdaptivePollPolicy(INTERVAL, FAST, MAX_BACKOFF, STABLE,
+                clock, new NoJitter());
+    }
+
+    public void testBackoffStartsAtInterval() {
+        assertEquals(INTERVAL, policy.nextDelay(State.NETWORK_ERROR));
+    }
+
+    public void testBackoffGrowsToCap() {
+        assertEquals(INTERVAL, policy.nextDelay(State.NETWORK_ERROR));
+        assertEquals(2 * INTERVAL, policy.nextDelay(State.NETWORK_ERROR));
+        assertEquals(4 * INTERVAL, policy.nextDelay(State.NETWORK_ERROR));
+        for (int ii = 0; ii < 100; ++ii) {
+            assertEquals(MAX_BACKOFF, policy.nextDelay(State.NETWORK_ERROR));
+        }
+    }
+
+    public void testBackoffResetsWhenWeGetAnAnswer() {
+        policy.nextDelay(State.NETWORK_ERROR);
+        policy.nextDelay(State.NETWORK_ERROR);
+        policy.nextDelay(State.BAD);
+        assertEquals(INTERVAL, policy.nextDelay(State.NETWORK_ERROR));
+    }
+
+    public void testJitterBounds() {
+        AdaptivePollPolicy jittered = new AdaptivePollPolicy(INTERVAL, FAST,
+                MAX_BACKOFF, STABLE, clock, new Random(42));
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int ii = 0; ii < 10000; ++ii) {
+            long delay = jittered.currentDelay();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        assertTrue("min " + min, min >= INTERVAL * 9 / 10);
+        assertTrue("max " + max, max <= INTERVAL * 11 / 10);
+        // and it is actually spread out
+        assertTrue(max - min > INTERVAL / 10);
+    }
+
+    public void testFastIntervalWhenDegraded() {
+        assertEquals(FAST, policy.nextDelay(State.DEGRADED));
+        clock.advance(FAST);
+        assertEquals(FAST, policy.nextDelay(State.DEGRADED));
+        assertEquals(FAST, policy.nextDelay(State.BAD));
+    }
+
+    public void testFastIntervalHasFloor() {
+        AdaptivePollPolicy p = new AdaptivePollPolicy(INTERVAL, 10,
+                MAX_BACKOFF, STABLE, clock, new NoJitter());
+        assertEquals(AdaptivePollPolicy.MIN_INTERVAL, p
+                .nextDelay(State.DEGRADED));
+    }
+
+    public void testRebalancingPollsAtHalfTheInterval() {
+        assertEquals(INTERVAL / 2, policy.nextDelay(State.REBALANCING));
+    }
+
+    public void testSteadyGoodStartsAtInterval() {
+        assertEquals(INTERVAL, policy.nextDelay(State.UNINITIALISED));
+        for (int ii = 0; ii < 10; ++ii) {
+            assertEquals(INTERVAL, policy.nextDelay(State.GOOD));
+            clock.advance(INTERVAL);
+        }
+    }
+
+    public void testRelaxAfterStartingUnreachable() {
+        policy.nextDelay(State.NETWORK_ERROR);
+        assertEquals(INTERVAL / 2, policy.nextDelay(State.GOOD));
+    }
+
+    public void testRelaxOnlyAfterStablePeriod() {
+        policy.nextDelay(State.DEGRADED);
+        long good = 0;
+        long delay = policy.nextDelay(State.GOOD);
+        assertEquals(2 * FAST, delay);
+        while (good + delay < STABLE) {
+            clock.advance(delay);
+            good += delay;
+            long next = policy.nextDelay(State.GOOD);
+            assertTrue("relaxed after " + good + " ms", next < INTERVAL);
+            assertTrue(next >= delay);
+            delay = next;
+        }
+        clock.advance(STABLE - good);
+        assertEquals(INTERVAL, policy.nextDelay(State.GOOD));
+    }
+
+    public void testFlapRestartsStablePeriod() {
+        policy.nextDelay(State.GOOD);
+        clock.advance(STABLE - 1);
+        assertEquals(FAST, policy.nextDelay(State.DEGRADED));
+        clock.advance(FAST);
+        policy.nextDelay(State.GOOD);
+        clock.advance(STABLE - 1);
+        assertTrue(policy.nextDelay(State.GOOD) < INTERVAL);
+        clock.advance(1);
+        assertEquals(INTERVAL, policy.nextDelay(State.GOOD));
+    }
+}
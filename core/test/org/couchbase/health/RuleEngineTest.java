@@ -0,0 +1,144 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Run the default rules (health_rules.txt) against recorded pool documents
+ * and bucket stats parsed by the PoolDocumentParser.
+ *
+ * @author Trond Norbye
+ */
+public class RuleEngineTest extends TestCase {
+    private RuleEngine rules;
+    private RuleEngine.Evaluation evaluation;
+
+    @Override
+    protected void setUp() throws Exception {
+        rules = RuleEngine.compileDefaults();
+        evaluation = rules.newEvaluation();
+    }
+
+    public void testHealthyClusterIsGood() throws IOException {
+        assertEquals(State.GOOD, evaluate("pool-healthy.json", null));
+        assertEquals(null, rules.describe(evaluation));
+    }
+
+    public void testLostQuorumIsBad() throws IOException {
+        assertEquals(State.BAD, evaluate("pool-quorum-lost.json", null));
+        assertDescribes("unhealthy_nodes is 2");
+    }
+
+    public void testInactiveNodeIsDegraded() throws IOException {
+        assertEquals(State.DEGRADED, evaluate("pool-inactive.json", null));
+        assertDescribes("inactive_nodes is 1");
+    }
+
+    public void testRecovery() throws IOException {
+        assertEquals(State.BAD, evaluate("pool-quorum-lost.json", null));
+        assertEquals(State.GOOD, evaluate("pool-healthy.json", null));
+    }
+
+    public void testRuleFiresAfterConsecutiveMatches() throws IOException {
+        // bucket_ops_ratio < 20 for 2
+        assertEquals(State.GOOD, evaluate("pool-healthy.json",
+                "stats-busy.json"));
+        assertEquals(State.GOOD, evaluate("pool-healthy.json",
+                "stats-collapsed.json"));
+        assertEquals(State.DEGRADED, evaluate("pool-healthy.json",
+                "stats-collapsed.json"));
+        assertDescribes("bucket_ops_ratio");
+    }
+
+    public void testRuleClearsAfterConsecutiveMisses() throws IOException {
+        evaluate("pool-healthy.json", "stats-collapsed.json");
+        assertEquals(State.DEGRADED, evaluate("pool-healthy.json",
+                "stats-collapsed.json"));
+        assertEquals(State.DEGRADED, evaluate("pool-healthy.json",
+                "stats-busy.json"));
+        assertEquals(State.GOOD, evaluate("pool-healthy.json",
+                "stats-busy.json"));
+    }
+
+    public void testInterruptedStreakDoesNotFire() throws IOException {
+        String[] stats = { "stats-collapsed.json", "stats-busy.json",
+                "stats-collapsed.json", "stats-busy.json" };
+        for (String name : stats) {
+            assertEquals(State.GOOD, evaluate("pool-healthy.json", name));
+        }
+    }
+
+    public void testMissingBucketStatsNeverMatch() throws IOException {
+        evaluate("pool-healthy.json", "stats-collapsed.json");
+        assertEquals(State.GOOD, evaluate("pool-healthy.json", null));
+        assertEquals(State.GOOD, evaluate("pool-healthy.json",
+                "stats-collapsed.json"));
+    }
+
+    public void testFallbackRules() throws IOException {
+        rules = RuleEngine.compile(new StringReader(RuleEngine.FALLBACK_RULES));
+        evaluation = rules.newEvaluation();
+        assertEquals(State.GOOD, evaluate("pool-healthy.json", null));
+        assertEquals(State.BAD, evaluate("pool-quorum-lost.json", null));
+        assertEquals(State.DEGRADED, evaluate("pool-inactive.json", null));
+    }
+
+    private State evaluate(String pool, String stats) throws IOException {
+        ClusterSnapshot snapshot;
+        InputStream in = open(pool);
+        try {
+            snapshot = PoolDocumentParser.parseSnapshot(new JsonPullParser(in));
+        } finally {
+            in.close();
+        }
+
+        List<BucketStats> buckets = null;
+        if (stats != null) {
+            BucketStats bucket = new BucketStats("default");
+            in = open(stats);
+            try {
+                PoolDocumentParser.parseBucketStats(new JsonPullParser(in),
+                        bucket);
+            } finally {
+                in.close();
+            }
+            buckets = Collections.singletonList(bucket);
+        }
+        return rules.evaluate(snapshot, buckets, evaluation);
+    }
+
+    private void assertDescribes(String text) {
+        String description = rules.describe(evaluation);
+        assertTrue(description, description != null
+                && description.contains(text));
+    }
+
+    private InputStream open(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream(name);
+        if (in == null) {
+            throw new FileNotFoundException(name);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Run the StreamingWatcher against a local server pushing the pool document
+ * with the chunked encoding (like the real server).
+ * 
+ * @author Trond Norbye
+ */
+public class StreamingWatcherTest extends TestCase {
+    /**
+     * The read timeout used on the stream
+     */
+    private static final int TIMEOUT = 500;
+
+    /**
+     * The watcher waits at least half of the minimum backoff (one second)
+     * before it reconnects after a disconnect
+     */
+    private static final long MIN_WAIT = 500;
+
+    /**
+     * What the server does on a connection to the streaming URI
+     */
+    private interface Script {
+        /**
+         * @param index
+         *            the number of streaming connections before this one
+         */
+        void serve(int index, Server server, Socket socket, OutputStream out)
+                throws IOException;
+    }
+
+    /**
+     * A tiny HTTP server serving the bootstrap document and the streaming
+     * pool
+     */
+    private static class Server implements Runnable {
+        private final ServerSocket socket;
+        private final Script script;
+        private final ExecutorService workers = Executors
+                .newCachedThreadPool(new DaemonThreadFactory("stream-test"));
+
+        /**
+         * When each of the streaming connections arrived (System.nanoTime())
+         */
+        private final List<Long> streams = new ArrayList<Long>();
+
+        Server(Script script) throws IOException {
+            this.script = script;
+            socket = new ServerSocket(0, 50, InetAddress
+                    .getByName("127.0.0.1"));
+            workers.execute(this);
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        String getSeed() {
+            return "127.0.0.1:" + getPort();
+        }
+
+        synchronized int getStreams() {
+            return streams.size();
+        }
+
+        synchronized long getStreamTime(int index) {
+            return streams.get(index).longValue();
+        }
+
+        void stop() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* ignore */
+            }
+            workers.shutdownNow();
+        }
+
+        public void run() {
+            while (!socket.isClosed()) {
+                final Socket client;
+                try {
+                    client = socket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            serve(client);
+                        } catch (IOException e) {
+                            /* the client went away */
+                        } finally {
+                            close(client);
+                        }
+                    }
+                });
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+            String request = readLine(in);
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                // skip the headers
+            }
+            if (request == null) {
+                return;
+            }
+
+            if (request.startsWith("GET /pools ")) {
+                byte[] body = ("{\"pools\":[{\"name\":\"default\","
+                        + "\"uri\":\"/pools/default\","
+                        + "\"streamingUri\":\"/poolsStreaming/default\"}]}")
+                        .getBytes("UTF-8");
+                out.write(("HTTP/1.1 200 OK\r\n"
+                        + "Content-Type: application/json\r\n"
+                        + "Content-Length: " + body.length + "\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                out.write(body);
+                out.flush();
+            } else if (request.startsWith("GET /poolsStreaming/default")) {
+                int index;
+                synchronized (this) {
+                    index = streams.size();
+                    streams.add(Long.valueOf(System.nanoTime()));
+                }
+                script.serve(index, this, client, out);
+            } else {
+                out.write(("HTTP/1.1 404 Not Found\r\n"
+                        + "Content-Length: 0\r\n"
+                        + "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+                out.flush();
+            }
+        }
+
+        /**
+         * Send the response headers of the streaming URI
+         */
+        void startStream(OutputStream out) throws IOException {
+            out.write(("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: application/json; charset=utf-8\r\n"
+                    + "Transfer-Encoding: chunked\r\n\r\n")
+                    .getBytes("ISO-8859-1"));
+            out.flush();
+        }
+
+        /**
+         * Push a pool document with a single node (our own address, so that
+         * the watcher doesn't learn any other seeds) as a chunk
+         * 
+         * @param uptime
+         *            the uptime of the node (to tell the pushes apart)
+         */
+        void push(OutputStream out, int uptime) throws IOException {
+            byte[] chunk = ("{\"nodes\":[{\"hostname\":\"" + getSeed()
+                    + "\",\"status\":\"healthy\","
+                    + "\"clusterMembership\":\"active\",\"uptime\":\""
+                    + uptime + "\"}]}\n\n\n\n").getBytes("UTF-8");
+            out.write((Integer.toHexString(chunk.length) + "\r\n")
+                    .getBytes("ISO-8859-1"));
+            out.write(chunk);
+            out.write("\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+        }
+
+        /**
+         * Keep the connection open (without sending anything) until the
+         * client closes it
+         */
+        void hold(Socket client) throws IOException {
+            InputStream in = client.getInputStream();
+            while (in.read() != -1) {
+                // wait
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return c == -1 && sb.length() == 0 ? null : sb.toString();
+        }
+
+        private static void close(Socket client) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                /* ignore */
+            }
+        }
+    }
+
+    /**
+     * The listener was told that we lost the connection
+     */
+    private static class Disconnect {
+        final boolean streaming;
+        final long time = System.nanoTime();
+
+        Disconnect(boolean streaming) {
+            this.streaming = streaming;
+        }
+    }
+
+    private final BlockingQueue<Object> events =
+            new LinkedBlockingQueue<Object>();
+    private Server server;
+    private ClusterTarget target;
+    private StreamingWatcher watcher;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (watcher != null) {
+            watcher.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    public void testPushedConfigurationsReachTheListener() throws Exception {
+        start(new Script() {
+            public void serve(int index, Server server, Socket socket,
+                    OutputStream out) throws IOException {
+                server.startStream(out);
+                for (int ii = 1; ii <= 3; ++ii) {
+                    server.push(out, ii);
+                }
+                server.hold(socket);
+            }
+        });
+
+        for (int ii = 1; ii <= 3; ++ii) {
+            assertEquals(ii, nextSnapshot().getNode(0).getUptime());
+        }
+        assertTrue(target.isStreaming());
+        assertEquals(1, server.getStreams());
+    }
+
+    public void testDroppedConnection() throws Exception {
+        start(new Script() {
+            public void serve(int index, Server server, Socket socket,
+                    OutputStream out) throws IOException {
+                server.startStream(out);
+                server.push(out, index + 1);
+                if (index > 0) {
+                    server.hold(socket);
+                }
+                // else drop the connection in the middle of the stream
+            }
+        });
+
+        assertEquals(1, nextSnapshot().getNode(0).getUptime());
+        Disconnect disconnect = nextDisconnect();
+        assertFalse(disconnect.streaming);
+
+        // We back off before we reconnect
+        assertEquals(2, nextSnapshot().getNode(0).getUptime());
+        assertTrue(target.isStreaming());
+        long waited = TimeUnit.NANOSECONDS.toMillis(server.getStreamTime(1)
+                - disconnect.time);
+        assertTrue("reconnected after " + waited + " ms", waited >= MIN_WAIT);
+    }
+
+    public void testStalledConnection() throws Exception {
+        start(new Script() {
+            public void serve(int index, Server server, Socket socket,
+                    OutputStream out) throws IOException {
+                if (index != 1) {
+                    server.startStream(out);
+                    server.push(out, index + 1);
+                }
+                // else stall before the response
+                server.hold(socket);
+            }
+        });
+
+        // The first stream times out after the push, which only makes us
+        // reconnect. The second one never answers.
+        assertEquals(1, nextSnapshot().getNode(0).getUptime());
+        Disconnect disconnect = nextDisconnect();
+        assertFalse(disconnect.streaming);
+        assertEquals(2, server.getStreams());
+
+        assertEquals(3, nextSnapshot().getNode(0).getUptime());
+        long waited = TimeUnit.NANOSECONDS.toMillis(server.getStreamTime(2)
+                - disconnect.time);
+        assertTrue("reconnected after " + waited + " ms", waited >= MIN_WAIT);
+    }
+
+    private void start(Script script) throws IOException {
+        server = new Server(script);
+        target = new ClusterTarget("127.0.0.1", server.getPort());
+        target.getHealthReader().setStreamReadTimeout(TIMEOUT);
+        watcher = new StreamingWatcher(target, new StreamingWatcher.Listener() {
+            public void onSnapshot(ClusterTarget t, ClusterSnapshot snapshot) {
+                events.add(snapshot);
+            }
+
+            public void onDisconnected(ClusterTarget t) {
+                events.add(new Disconnect(t.isStreaming()));
+            }
+        });
+        watcher.start();
+    }
+
+    private Object nextEvent() throws InterruptedException {
+        Object event = events.poll(10, TimeUnit.SECONDS);
+        if (event == null) {
+            fail("Timed out waiting for the watcher");
+        }
+        return event;
+    }
+
+    private ClusterSnapshot nextSnapshot() throws InterruptedException {
+        Object event = nextEvent();
+        assertTrue("Expected a snapshot, got " + event,
+                event instanceof ClusterSnapshot);
+        return (ClusterSnapshot) event;
+    }
+
+    private Disconnect nextDisconnect() throws InterruptedException {
+        Object event = nextEvent();
+        assertTrue("Expected a disconnect, got " + event,
+                event instanceof Disconnect);
+        return (Disconnect) event;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Wakes the device up to poll the clusters while it is asleep (the
+ * monitor's own threads don't run then), and restarts the monitoring after
+ * a reboot.
+ * 
+ * A single inexact repeating alarm polls all of the clusters, so the
+ * device is only woken once per interval regardless of the number of
+ * clusters, and the system may batch the wakeup with the alarms of other
+ * applications. The time of the next alarm is stored in the preferences
+ * so that the schedule is resumed (instead of restarted) after a reboot
+ * or if the process dies.
+ * 
+ * @author Trond Norbye
+ */
+public class AlarmReceiver extends BroadcastReceiver {
+    /**
+     * The action of the alarm
+     */
+    public static final String ACTION_ALARM = "org.couchbase.health.alarm";
+
+    /**
+     * The maximum number of milliseconds we'll keep the device awake for a
+     * poll (in case the polls never complete)
+     */
+    private static final long WAKELOCK_TIMEOUT = 60 * 1000;
+
+    /**
+     * Held from the alarm fires until the service has polled all of the
+     * clusters
+     */
+    private static PowerManager.WakeLock wakeLock;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        SharedPreferences settings = context.getSharedPreferences(
+                StateMonitorService.PREFS_NAME, 0);
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            if (settings.getBoolean("background", true)
+                    && settings.getLong("schedule.interval", 0) > 0) {
+                context.startService(new Intent(context,
+                        StateMonitorService.class));
+            }
+            return;
+        }
+
+        Diagnostics.recordWakeup();
+        settings.edit()
+                .putLong("schedule.next", System.currentTimeMillis()
+                        + settings.getLong("schedule.interval", 0)).commit();
+
+        // The service releases the wake lock once the polls complete
+        acquireWakeLock(context);
+        Intent poll = new Intent(context, StateMonitorService.class);
+        poll.setAction(StateMonitorService.ACTION_POLL);
+        context.startService(poll);
+    }
+
+    /**
+     * Schedule the alarm. If an alarm was scheduled earlier (before a
+     * reboot or before the process died) the schedule continues from that
+     * alarm.
+     * 
+     * @param context
+     *            the context
+     * @param interval
+     *            the number of milliseconds between each alarm
+     */
+    public static void schedule(Context context, long interval) {
+        SharedPreferences settings = context.getSharedPreferences(
+                StateMonitorService.PREFS_NAME, 0);
+        long now = System.currentTimeMillis();
+        long next = settings.getLong("schedule.next", 0);
+        if (settings.getLong("schedule.interval", 0) != interval
+                || next > now + interval) {
+            // The interval changed (or the clock did)
+            next = now + interval;
+        }
+        settings.edit().putLong("schedule.interval", interval)
+                .putLong("schedule.next", next).commit();
+
+        AlarmManager alarms = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + Math.max(0, next - now),
+                interval, getAlarmIntent(context));
+        Log.i("org.couchbase.health", "Polling every " + interval / 1000
+                + "s while the device sleeps");
+    }
+
+    /**
+     * Cancel the alarm (and forget the schedule)
+     * 
+     * @param context
+     *            the context
+     */
+    public static void cancel(Context context) {
+        AlarmManager alarms = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        alarms.cancel(getAlarmIntent(context));
+        context.getSharedPreferences(StateMonitorService.PREFS_NAME, 0)
+                .edit().remove("schedule.interval").remove("schedule.next")
+                .commit();
+    }
+
+    private static PendingIntent getAlarmIntent(Context context) {
+        Intent intent = new Intent(context, AlarmReceiver.class);
+        intent.setAction(ACTION_ALARM);
+        return PendingIntent.getBroadcast(context, 0, intent, 0);
+    }
+
+    private static synchronized void acquireWakeLock(Context context) {
+        if (wakeLock == null) {
+            PowerManager pm = (PowerManager) context
+                    .getSystemService(Context.POWER_SERVICE);
+            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                    "couchbase-health");
+            wakeLock.setReferenceCounted(false);
+        }
+        wakeLock.acquire(WAKELOCK_TIMEOUT);
+    }
+
+    /**
+     * Let the device go back to sleep (called by the service once it has
+     * polled the clusters)
+     */
+    static synchronized void releaseWakeLock() {
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+}
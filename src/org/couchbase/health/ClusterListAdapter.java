@@ -0,0 +1,405 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.ExpandableListView;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * The list of the clusters (and the nodes in each cluster) shown by the
+ * CouchbaseActivity.
+ * 
+ * The ExpandableListView only asks for the rows on the screen, and hands
+ * us back the rows scrolled off the screen to reuse, so a cluster with 500
+ * nodes costs the same as one with 5. When a new snapshot of a cluster
+ * arrives and the cluster has the same nodes as before (the normal case),
+ * we diff the snapshots and rebind the rows on the screen of the nodes that
+ * changed instead of telling the list that everything changed.
+ * 
+ * The time from an update until the list is about to be drawn is recorded
+ * in the Diagnostics, and the updates over FRAME_BUDGET are logged.
+ * 
+ * @author Trond Norbye
+ */
+public class ClusterListAdapter extends BaseExpandableListAdapter {
+    /**
+     * The time (in nanoseconds) we may spend on an update (a frame at 60
+     * frames per second)
+     */
+    public static final long FRAME_BUDGET = 16 * 1000 * 1000;
+
+    /**
+     * The views of a row (stored as the tag of the row)
+     */
+    private static class ViewHolder {
+        private final ImageView icon;
+        private final TextView title;
+        private final TextView details;
+
+        ViewHolder(View row) {
+            icon = (ImageView) row.findViewById(R.id.row_icon);
+            title = (TextView) row.findViewById(R.id.row_title);
+            details = (TextView) row.findViewById(R.id.row_details);
+        }
+    }
+
+    /**
+     * What we know about a cluster
+     */
+    private static class Cluster {
+        private final String key;
+        private EventBus.MetricsSample sample;
+        private String error;
+
+        Cluster(String key) {
+            this.key = key;
+        }
+
+        int size() {
+            return sample == null ? 0 : sample.getSnapshot().size();
+        }
+    }
+
+    private final LayoutInflater inflater;
+    private final ExpandableListView list;
+    private final List<Cluster> clusters = new ArrayList<Cluster>();
+
+    /**
+     * The time the oldest update not drawn yet started (-1 if none)
+     */
+    private long frameStart = -1;
+
+    /**
+     * Record the time of the updates once the list is about to be drawn
+     */
+    private final ViewTreeObserver.OnPreDrawListener frameListener = new ViewTreeObserver.OnPreDrawListener() {
+        public boolean onPreDraw() {
+            list.getViewTreeObserver().removeOnPreDrawListener(this);
+            if (frameStart != -1) {
+                recordFrame(System.nanoTime() - frameStart);
+                frameStart = -1;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Create the adapter, and set it as the adapter of the list
+     * 
+     * @param context
+     *            the context to inflate the rows in
+     * @param list
+     *            the list showing the clusters
+     */
+    public ClusterListAdapter(Context context, ExpandableListView list) {
+        inflater = LayoutInflater.from(context);
+        this.list = list;
+        list.setAdapter(this);
+    }
+
+    /**
+     * Show the latest snapshot of a cluster
+     * 
+     * @param sample
+     *            the snapshot and the state of the cluster
+     */
+    public void update(EventBus.MetricsSample sample) {
+        long start = System.nanoTime();
+        int group = indexOf(sample.getCluster());
+        Cluster cluster;
+        if (group == -1) {
+            cluster = new Cluster(sample.getCluster());
+            clusters.add(cluster);
+            cluster.sample = sample;
+            notifyDataSetChanged();
+            frameChanged(start);
+            return;
+        }
+
+        cluster = clusters.get(group);
+        ClusterSnapshot before = cluster.sample == null ? null
+                : cluster.sample.getSnapshot();
+        cluster.sample = sample;
+        cluster.error = null;
+        ClusterSnapshot after = sample.getSnapshot();
+        if (before == null || !sameNodes(before, after)) {
+            notifyDataSetChanged();
+            frameChanged(start);
+            return;
+        }
+
+        // Only the rows of the nodes that changed (and the summary of the
+        // cluster) need to be bound again
+        Set<String> changed = null;
+        if (before != after && list.isGroupExpanded(group)) {
+            changed = new HashSet<String>();
+            for (NodeChange change : SnapshotDiffer.diff(before, after,
+                    NodeChange.ALL)) {
+                changed.add(change.getHostname());
+            }
+        }
+        if (rebind(group, changed) > 0) {
+            frameChanged(start);
+        } else {
+            recordFrame(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Show the error of the last poll of a cluster
+     * 
+     * @param key
+     *            the cluster
+     * @param error
+     *            what went wrong
+     */
+    public void setError(String key, String error) {
+        long start = System.nanoTime();
+        int group = indexOf(key);
+        if (group == -1) {
+            // We haven't got a snapshot of the cluster yet
+            Cluster cluster = new Cluster(key);
+            cluster.error = error;
+            clusters.add(cluster);
+            notifyDataSetChanged();
+            frameChanged(start);
+        } else {
+            clusters.get(group).error = error;
+            if (rebind(group, null) > 0) {
+                frameChanged(start);
+            }
+        }
+    }
+
+    /**
+     * Forget all of the clusters
+     */
+    public void clear() {
+        clusters.clear();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @return true if the snapshots have the same nodes in the same order
+     *         (so every row keeps its position)
+     */
+    private static boolean sameNodes(ClusterSnapshot before,
+            ClusterSnapshot after) {
+        if (before == after) {
+            return true;
+        }
+        int size = after.size();
+        if (before.size() != size) {
+            return false;
+        }
+        for (int ii = 0; ii < size; ++ii) {
+            if (!before.getNode(ii).getHostname()
+                    .equals(after.getNode(ii).getHostname())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bind the rows of a cluster on the screen again
+     * 
+     * @param group
+     *            the cluster
+     * @param changed
+     *            the hostnames of the nodes to bind again (null for none)
+     * @return the number of rows bound
+     */
+    private int rebind(int group, Set<String> changed) {
+        Cluster cluster = clusters.get(group);
+        int first = list.getFirstVisiblePosition();
+        int count = list.getChildCount();
+        int ret = 0;
+        for (int ii = 0; ii < count; ++ii) {
+            long position = list.getExpandableListPosition(first + ii);
+            if (ExpandableListView.getPackedPositionGroup(position) != group) {
+                continue;
+            }
+            View row = list.getChildAt(ii);
+            if (ExpandableListView.getPackedPositionType(position) == ExpandableListView.PACKED_POSITION_TYPE_GROUP) {
+                bindCluster((ViewHolder) row.getTag(), cluster);
+                ++ret;
+            } else if (changed != null) {
+                int child = ExpandableListView.getPackedPositionChild(position);
+                if (child < cluster.size()) {
+                    NodeHealth node = cluster.sample.getSnapshot().getNode(
+                            child);
+                    if (changed.contains(node.getHostname())) {
+                        bindNode((ViewHolder) row.getTag(), node);
+                        ++ret;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    private int indexOf(String key) {
+        for (int ii = 0; ii < clusters.size(); ++ii) {
+            if (clusters.get(ii).key.equals(key)) {
+                return ii;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Measure the update once the list is about to be drawn
+     */
+    private void frameChanged(long start) {
+        if (frameStart == -1) {
+            frameStart = start;
+            list.getViewTreeObserver().addOnPreDrawListener(frameListener);
+        }
+    }
+
+    private void recordFrame(long nanos) {
+        Diagnostics.getRenderLatency().record(nanos);
+        if (nanos > FRAME_BUDGET) {
+            Log.w("org.couchbase.health", "Updating the clusters took "
+                    + nanos / 1000000 + " ms");
+        }
+    }
+
+    public int getGroupCount() {
+        return clusters.size();
+    }
+
+    public int getChildrenCount(int groupPosition) {
+        return clusters.get(groupPosition).size();
+    }
+
+    public Object getGroup(int groupPosition) {
+        return clusters.get(groupPosition).key;
+    }
+
+    public Object getChild(int groupPosition, int childPosition) {
+        return clusters.get(groupPosition).sample.getSnapshot().getNode(
+                childPosition);
+    }
+
+    public long getGroupId(int groupPosition) {
+        return groupPosition;
+    }
+
+    public long getChildId(int groupPosition, int childPosition) {
+        return childPosition;
+    }
+
+    public boolean hasStableIds() {
+        return false;
+    }
+
+    public boolean isChildSelectable(int groupPosition, int childPosition) {
+        return false;
+    }
+
+    public View getGroupView(int groupPosition, boolean isExpanded,
+            View convertView, ViewGroup parent) {
+        View row = convertView;
+        if (row == null) {
+            row = inflater.inflate(R.layout.cluster_row, parent, false);
+            row.setTag(new ViewHolder(row));
+        }
+        bindCluster((ViewHolder) row.getTag(), clusters.get(groupPosition));
+        return row;
+    }
+
+    public View getChildView(int groupPosition, int childPosition,
+            boolean isLastChild, View convertView, ViewGroup parent) {
+        View row = convertView;
+        if (row == null) {
+            row = inflater.inflate(R.layout.node_row, parent, false);
+            row.setTag(new ViewHolder(row));
+        }
+        bindNode((ViewHolder) row.getTag(), (NodeHealth) getChild(
+                groupPosition, childPosition));
+        return row;
+    }
+
+    private static void bindCluster(ViewHolder holder, Cluster cluster) {
+        holder.title.setText(cluster.key);
+        StringBuilder sb = new StringBuilder();
+        State state;
+        if (cluster.sample == null) {
+            state = State.NETWORK_ERROR;
+            sb.append(state);
+        } else {
+            state = cluster.sample.getState();
+            ClusterSnapshot snap = cluster.sample.getSnapshot();
+            sb.append(state).append(", ").append(snap.getHealthyCount())
+                    .append(" of ").append(snap.size())
+                    .append(" nodes healthy");
+            if (snap.getRebalance() != null) {
+                sb.append(", ").append(snap.getRebalance());
+            }
+        }
+        if (cluster.error != null) {
+            sb.append(" (").append(cluster.error).append(')');
+        }
+        holder.details.setText(sb);
+        holder.icon.setImageResource(icon(state));
+    }
+
+    private static void bindNode(ViewHolder holder, NodeHealth node) {
+        holder.title.setText(node.getHostname());
+        StringBuilder sb = new StringBuilder();
+        sb.append(node.getStatus()).append(", ")
+                .append(node.getClusterMembership());
+        if (!Double.isNaN(node.getCpu())) {
+            sb.append(", cpu ").append(Math.round(node.getCpu())).append('%');
+        }
+        if (node.getMemoryTotal() > 0) {
+            sb.append(", ")
+                    .append(node.getMemoryFree() * 100 / node.getMemoryTotal())
+                    .append("% free");
+        }
+        sb.append(", ").append(Math.round(node.getOps())).append(" ops/s");
+        holder.details.setText(sb);
+        holder.icon.setImageResource(icon(node.getState()));
+    }
+
+    private static int icon(State state) {
+        switch (state) {
+        case GOOD:
+        case REBALANCING:
+            return R.drawable.ic_stat_looking_good;
+        case NETWORK_ERROR:
+        case UNINITIALISED:
+            return R.drawable.ic_stat_update_error;
+        default:
+            return R.drawable.ic_stat_looking_bad;
+        }
+    }
+}
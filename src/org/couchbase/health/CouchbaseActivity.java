@@ -15,13 +15,15 @@
  */
 package org.couchbase.health;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import android.app.Activity;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.speech.tts.TextToSpeech;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -29,7 +31,9 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.ExpandableListView;
 import android.widget.ImageView;
 
 public class CouchbaseActivity extends Activity {
@@ -37,12 +41,35 @@ public class CouchbaseActivity extends Activity {
     private static final int CHECK_FOR_TTS = 1;
     private Intent stateMonitorIntent;
 
+    /**
+     * The list of the clusters and their nodes
+     */
+    private ClusterListAdapter clusters;
+
+    /**
+     * Run the subscribers on the main thread (after the event was
+     * published, so that they never run inside the monitor's callbacks)
+     */
+    private final Handler handler = new Handler();
+    private final Executor mainThread = new Executor() {
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    /**
+     * Our subscriptions to the EventBus (while we're resumed)
+     */
+    private final List<EventBus.Subscription> subscriptions = new ArrayList<EventBus.Subscription>();
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.main);
         stateMonitorIntent = new Intent(this, StateMonitorService.class);
+        clusters = new ClusterListAdapter(this,
+                (ExpandableListView) findViewById(R.id.clusters_list));
 
         Button saveButton = (Button) findViewById(R.id.save_button);
         saveButton.setOnClickListener(new OnClickListener() {
@@ -55,16 +82,15 @@ public class CouchbaseActivity extends Activity {
                     // enter something
                     return;
                 }
-                int port = 8091;
-                String[] parts = text.split(":");
-
-                if (parts.length == 2) {
-                    try {
-                        port = Integer.parseInt(parts[1]);
-                    } catch (Throwable t) {
-                        // @todo write an error
-                        return;
-                    }
+                List<ClusterTarget> targets;
+                try {
+                    targets = ClusterRegistry.parse(text);
+                } catch (Throwable t) {
+                    // @todo write an error
+                    return;
+                }
+                if (targets.isEmpty()) {
+                    return;
                 }
 
                 int pollInterval = 0;
@@ -81,16 +107,20 @@ public class CouchbaseActivity extends Activity {
                 SharedPreferences settings = getSharedPreferences(
                         StateMonitorService.PREFS_NAME, 0);
                 SharedPreferences.Editor editor = settings.edit();
-                editor.putString("host", parts[0]);
-                editor.putInt("port", port);
+                editor.putString("host", targets.get(0).getHost());
+                editor.putInt("port", targets.get(0).getPort());
+                editor.putString("clusters", text);
                 editor.putInt("pollinterval", pollInterval);
+                CheckBox streaming = (CheckBox) findViewById(R.id.streaming_field);
+                editor.putBoolean("streaming", streaming.isChecked());
+                CheckBox background = (CheckBox) findViewById(R.id.background_field);
+                editor.putBoolean("background", background.isChecked());
                 editor.commit();
 
-                unregisterReceiver(receiver);
+                // We keep our subscriptions, but the clusters may change
+                clusters.clear();
                 stopService(stateMonitorIntent);
                 startService(stateMonitorIntent);
-                registerReceiver(receiver, new IntentFilter(
-                        StateMonitorService.BROADCAST_ACTION));
             }
         });
 
@@ -143,46 +173,89 @@ public class CouchbaseActivity extends Activity {
         String host = settings.getString("host", "localhost");
         int port = settings.getInt("port", 8091);
         EditText edit = (EditText) findViewById(R.id.servername_field);
-        edit.setText(host + ":" + port);
+        edit.setText(settings.getString("clusters", host + ":" + port));
         edit = (EditText) findViewById(R.id.poll_field);
         edit.setText("" + settings.getInt("pollinterval", 5 * 60));
+        CheckBox streaming = (CheckBox) findViewById(R.id.streaming_field);
+        streaming.setChecked(settings.getBoolean("streaming", false));
+        CheckBox background = (CheckBox) findViewById(R.id.background_field);
+        background.setChecked(settings.getBoolean("background", true));
     }
 
     /**
-     * We are going to subscribe to notification messages from our monitor
-     * service.
+     * Subscribe to the events about the clusters published by the monitor in
+     * the service (the bus replays the last state and snapshots)
      */
-    private BroadcastReceiver receiver = new BroadcastReceiver() {
+    private void subscribe() {
+        EventBus bus = EventBus.getDefault();
+        subscriptions.add(bus.subscribe(EventBus.StateChanged.class,
+                mainThread, new EventBus.Subscriber<EventBus.StateChanged>() {
+                    public void onEvent(EventBus.StateChanged event) {
+                        if (event.getCluster() == null) {
+                            showState(event.getState());
+                        }
+                    }
+                }));
+        subscriptions.add(bus.subscribe(EventBus.AlertsDelivered.class,
+                mainThread,
+                new EventBus.Subscriber<EventBus.AlertsDelivered>() {
+                    public void onEvent(EventBus.AlertsDelivered event) {
+                        speak(event.getState());
+                    }
+                }));
+        subscriptions.add(bus.subscribe(EventBus.MetricsSample.class,
+                mainThread, new EventBus.Subscriber<EventBus.MetricsSample>() {
+                    public void onEvent(EventBus.MetricsSample event) {
+                        clusters.update(event);
+                    }
+                }));
+        subscriptions.add(bus.subscribe(EventBus.PollFailed.class,
+                mainThread, new EventBus.Subscriber<EventBus.PollFailed>() {
+                    public void onEvent(EventBus.PollFailed event) {
+                        clusters.setError(event.getCluster(), event.getError());
+                    }
+                }));
+    }
 
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            onDataChanged(intent);
+    private void unsubscribe() {
+        for (EventBus.Subscription subscription : subscriptions) {
+            subscription.cancel();
         }
-    };
+        subscriptions.clear();
+    }
 
     /**
-     * Handle the data notifications sent from the health monitor. Update the
-     * Icon on the screen and use the text service to notify the user.
-     * 
-     * @param intent
-     *            Currently not used...
+     * Update the Icon on the screen with the aggregated state of the
+     * clusters
      */
-    public void onDataChanged(Intent intent) {
-        State state = State.valueOf(intent.getStringExtra("state"));
+    private void showState(State state) {
         ImageView img = (ImageView) findViewById(R.id.widget_logo);
+        img.setImageResource(state == State.GOOD
+                || state == State.REBALANCING ? R.drawable.ic_launcher_logo_green
+                : R.drawable.ic_launcher_logo);
+    }
+
+    /**
+     * Use the text service to notify the user about the alerts (which the
+     * monitor has already coalesced and rate limited)
+     * 
+     * @param state
+     *            the aggregated state of the clusters
+     */
+    private void speak(State state) {
+        showState(state);
+        if (speech == null) {
+            return;
+        }
+        String message;
         if (state == State.GOOD) {
-            if (speech != null) {
-                String message = "Relax!! Everythings seems perfect!";
-                speech.speak(message, TextToSpeech.QUEUE_FLUSH, null);
-            }
-            img.setImageResource(R.drawable.ic_launcher_logo_green);
+            message = "Relax!! Everythings seems perfect!";
+        } else if (state == State.REBALANCING) {
+            message = "The cluster is rebalancing";
         } else {
-            if (speech != null) {
-                String message = "HELP! There seems to be a failure";
-                speech.speak(message, TextToSpeech.QUEUE_FLUSH, null);
-            }
-            img.setImageResource(R.drawable.ic_launcher_logo);
+            message = "HELP! There seems to be a failure";
         }
+        speech.speak(message, TextToSpeech.QUEUE_FLUSH, null);
     }
 
     /**
@@ -203,8 +276,12 @@ public class CouchbaseActivity extends Activity {
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+        case R.id.diagnostics:
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            break;
+
         case R.id.exit:
-            unregisterReceiver(receiver);
+            unsubscribe();
             stopService(stateMonitorIntent);
             System.exit(0);
             break;
@@ -217,25 +294,34 @@ public class CouchbaseActivity extends Activity {
 
     /**
      * Called by the framework when the Activity is about to be started. Start
-     * the health monitor service.
+     * the health monitor service, and show the last known state until it
+     * tells us about the next one.
      */
     @Override
     public void onResume() {
         super.onResume();
+        StateCache.Entry entry = StateCache.get();
+        if (entry != null) {
+            showState(entry.getState());
+        }
+        // Start the service (if it isn't running)
         startService(stateMonitorIntent);
-        registerReceiver(receiver, new IntentFilter(
-                StateMonitorService.BROADCAST_ACTION));
+        subscribe();
     }
 
     /**
      * Called by the framework when the Activity is about to be paused
      * (execution is about to be moved to another Activity). Stop the health
-     * monitor service.
+     * monitor service unless it should keep monitoring in the background.
      */
     @Override
     public void onPause() {
         super.onPause();
-        unregisterReceiver(receiver);
-        stopService(stateMonitorIntent);
+        unsubscribe();
+        SharedPreferences settings = getSharedPreferences(
+                StateMonitorService.PREFS_NAME, 0);
+        if (!settings.getBoolean("background", true)) {
+            stopService(stateMonitorIntent);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+/**
+ * Show the diagnostics recorded on the poll path (the timings of each
+ * phase of the polls and the errors per cluster), and let the user share
+ * them (for instance by email) when something is slow.
+ * 
+ * @author Trond Norbye
+ */
+public class DiagnosticsActivity extends Activity {
+    /**
+     * The name of the file the diagnostics are written to before we share
+     * them
+     */
+    private static final String DUMP_FILE = "couchbase-health-diagnostics.txt";
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    /**
+     * Show the current diagnostics
+     * 
+     * @return the diagnostics shown
+     */
+    private String refresh() {
+        String dump = Diagnostics.dump();
+        TextView text = (TextView) findViewById(R.id.diagnostics_text);
+        text.setText(dump);
+        return dump;
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.diagnostics_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+        case R.id.refresh:
+            refresh();
+            break;
+
+        case R.id.reset:
+            Diagnostics.reset();
+            refresh();
+            break;
+
+        case R.id.share:
+            share(refresh());
+            break;
+
+        default:
+            return super.onOptionsItemSelected(item);
+        }
+        return true;
+    }
+
+    /**
+     * Write the diagnostics to a file on the external storage (so that
+     * other applications may read it) and let the user pick where to send
+     * it. The text is attached as well in case the storage isn't mounted.
+     * 
+     * @param dump
+     *            the diagnostics
+     */
+    private void share(String dump) {
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT, "Couchbase health diagnostics");
+        intent.putExtra(Intent.EXTRA_TEXT, dump);
+
+        File dir = getExternalFilesDir(null);
+        if (dir != null) {
+            File file = new File(dir, DUMP_FILE);
+            try {
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(dump.getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+                intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+            } catch (IOException e) {
+                Log.e("org.couchbase.health", "Failed to write " + file
+                        + ": " + e);
+            }
+        }
+        startActivity(Intent.createChooser(intent, "Share the diagnostics"));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *     Copyright 2011 Couchbase, Inc.
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package org.couchbase.health;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.RemoteViews;
+
+/**
+ * The home screen widget showing the state of the clusters.
+ * 
+ * The widget never polls the clusters itself: it renders whatever the
+ * StateMonitorService last published in the StateCache, and the service
+ * pushes an update to the widget every time the state of a cluster changes.
+ * 
+ * @author Trond Norbye
+ */
+public class HealthWidgetProvider extends AppWidgetProvider {
+    @Override
+    public void onUpdate(Context context, AppWidgetManager manager,
+            int[] appWidgetIds) {
+        manager.updateAppWidget(appWidgetIds, render(context));
+    }
+
+    /**
+     * Update all of the widgets from the StateCache
+     * 
+     * @param context
+     *            the context to use
+     */
+    public static void update(Context context) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        manager.updateAppWidget(new ComponentName(context,
+                HealthWidgetProvider.class), render(context));
+    }
+
+    private static RemoteViews render(Context context) {
+        RemoteViews views = new RemoteViews(context.getPackageName(),
+                R.layout.widget);
+        StateCache.Entry entry = StateCache.get();
+        State state = entry == null ? State.UNINITIALISED : entry.getState();
+
+        views.setImageViewResource(R.id.widget_icon,
+                state == State.GOOD || state == State.REBALANCING ? R.drawable.ic_launcher_logo_green
+                        : R.drawable.ic_launcher_logo);
+
+        String text;
+        if (entry == null) {
+            text = "Not monitoring";
+        } else if (entry.size() == 1) {
+            text = entry.getState().toString();
+        } else {
+            // A rebalance is healthy (like in the rest of the UI)
+            int good = entry.count(State.GOOD) + entry.count(State.REBALANCING);
+            text = entry.getState() + " (" + good + "/" + entry.size()
+                    + " good)";
+        }
+        views.setTextViewText(R.id.widget_state, text);
+
+        Intent intent = new Intent(context, CouchbaseActivity.class);
+        views.setOnClickPendingIntent(R.id.widget_icon,
+                PendingIntent.getActivity(context, 0, intent, 0));
+        return views;
+    }
+}
@@ -15,7 +15,12 @@
  */
 package org.couchbase.health;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -34,8 +39,16 @@ import android.util.Log;
  * The StateMonitorService is a service that Activities may use in order to get
  * notifications when something happens to the cluster.
  * 
- * It should really be rewritten to use dedicated threads to communicate over
- * the network.
+ * The monitoring itself is done by the (Android independent) HealthMonitor.
+ * The service reads the configuration from the preferences, runs the
+ * monitor's callbacks on the main thread, and turns the state changes and
+ * the alerts into widget updates and notifications. The activities follow
+ * the clusters through the default EventBus the monitor publishes to.
+ * 
+ * In background mode (the default) the service runs in the foreground
+ * (with an ongoing notification) so that it keeps monitoring after the
+ * user leaves the activity, and the AlarmReceiver wakes the device up to
+ * poll all of the clusters while it sleeps.
  * 
  * @author Trond Norbye
  */
@@ -46,112 +59,106 @@ public class StateMonitorService extends Service {
     public static final String PREFS_NAME = "CouchbaseHealthPrefs";
 
     /**
-     * The name of the action we're going to broadcast when the data change
+     * The action used by the AlarmReceiver to request a poll of all of the
+     * clusters
      */
-    public static final String BROADCAST_ACTION = "org.couchbase.health.statemonitorservice.updatedata";
+    public static final String ACTION_POLL = "org.couchbase.health.statemonitorservice.poll";
 
     /**
-     * The handler object we're using to request our next invocation to poll the
-     * state
+     * The id of the ongoing notification shown while we're monitoring in
+     * the background (the alerts use 0)
      */
-    private Handler pollHandler = new Handler();
+    private static final int FOREGROUND_ID = 1;
 
     /**
-     * The state on the cluster
+     * The maximum number of alerts listed in a notification
      */
-    private State state;
+    private static final int MAX_ALERTS_SHOWN = 5;
 
     /**
-     * The reader we're using to get the current health of the cluster
+     * The handler object we're using to run the monitor's callbacks on the
+     * main thread
      */
-    private PoolHealthReader healthReader;
+    private Handler pollHandler = new Handler();
 
     /**
-     * The intent object so send every time we see a change in the configuration
+     * Run the monitor's callbacks and our subscribers on the main thread
      */
-    private Intent broadcastIntent;
+    private final Executor mainThread = new Executor() {
+        public void execute(Runnable command) {
+            pollHandler.post(command);
+        }
+    };
 
     /**
-     * The hostname we're currently using (cached from the preferences to avoid
-     * reading it off disk every time)
+     * Our subscription to the state changes of the clusters, keeping the
+     * widget up to date
      */
-    private String host;
+    private EventBus.Subscription widgetSubscription;
+
     /**
-     * The port we're currently using (cached from the preferences to avoid
-     * reading it off disk every time)
+     * The monitor polling the clusters
      */
-    private int port;
+    private HealthMonitor monitor;
+
     /**
-     * The number milliseconds to sleep between each time we're going to poll
-     * the server
+     * Set if we keep monitoring in the background
      */
-    private int pollInterval;
+    private boolean background;
 
     /**
-     * The Runnable object to use to refresh the state and reschedule the next
-     * poll for status.
-     * 
-     * This should be refactored to run in it's own thread to avoid blocking the
-     * rest of of the server.
+     * Set once the service is started (rather than just bound)
      */
-    private Runnable poller = new Runnable() {
+    private boolean started;
 
+    /**
+     * Let the device go back to sleep once the polls requested by the
+     * alarm complete
+     */
+    private final Runnable releaseWakeLock = new Runnable() {
         public void run() {
-            refreshState();
-            reschedule();
+            AlarmReceiver.releaseWakeLock();
         }
     };
 
     /**
-     * Connect to the couchbase cluster and read the state f the server..
-     * 
-     * @return the "aggregated" state of the cluster.
+     * The listener receiving the state changes and alerts from the monitor
+     * (on the main thread)
      */
-    private State doGetState() {
-        State[] states;
-        try {
-            states = healthReader.getStates();
-        } catch (IOException e) {
-            e.printStackTrace();
-            // @todo add a notification that it failed ;)
-            return State.NETWORK_ERROR;
+    private HealthMonitor.Listener monitorListener = new HealthMonitor.Listener() {
+        public void onStateChanged(State state) {
+            if (background) {
+                NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+                notificationManager.notify(FOREGROUND_ID,
+                        createForegroundNotification(state));
+            }
         }
 
-        State ret = State.GOOD;
-        for (State s : states) {
-            if (s != State.GOOD) {
-                ret = State.DEGRADED;
-                break;
+        public void onAlerts(List<AlertPipeline.Alert> batch, State state) {
+            StringBuilder sb = new StringBuilder();
+            for (int ii = 0; ii < batch.size(); ++ii) {
+                if (ii == MAX_ALERTS_SHOWN) {
+                    sb.append("; and ").append(batch.size() - ii)
+                            .append(" more");
+                    break;
+                }
+                if (ii > 0) {
+                    sb.append("; ");
+                }
+                sb.append(batch.get(ii));
             }
+            showNotification(batch.size(), sb.toString(), state);
         }
 
-        return ret;
-    }
-
-    private void refreshState() {
-        State next = doGetState();
-
-        if (next != state) {
-            // Broadcast a notification that we've got a state change
-            broadcastIntent.putExtra("state", next.toString());
-            sendBroadcast(broadcastIntent);
-            State prev = state;
-            state = next;
-
+        /**
+         * Show a batch of alerts to the user in a single notification
+         */
+        private void showNotification(int count, String summary, State state) {
             String ns = Context.NOTIFICATION_SERVICE;
             NotificationManager notificationManager = (NotificationManager) getSystemService(ns);
 
-            if (next == State.GOOD) {
-                notificationManager.cancelAll();
-            }
-
-            if (prev == State.UNINITIALISED && next == State.GOOD) {
-                return;
-            }
-
-            // Send notification events if we went from
-            // @todo we should send an alarm per node ;)
-            CharSequence tickerText = "" + state;
+            CharSequence tickerText = count == 1 ? summary : count
+                    + " Couchbase alerts";
             long when = System.currentTimeMillis();
             int icon;
             switch (state) {
@@ -159,6 +166,7 @@ public class StateMonitorService extends Service {
                 icon = R.drawable.ic_stat_looking_bad;
                 break;
             case GOOD:
+            case REBALANCING:
                 icon = R.drawable.ic_stat_looking_good;
                 break;
             case NETWORK_ERROR:
@@ -172,50 +180,165 @@ public class StateMonitorService extends Service {
             notification.flags = Notification.FLAG_AUTO_CANCEL;
 
             Context context = getApplicationContext();
-            CharSequence contentTitle = "Couchbase notification";
-            CharSequence contentText = "The state is now: " + state;
+            CharSequence contentTitle = "Couchbase: the state is now " + state;
+            ClusterRegistry registry = monitor.getRegistry();
+            ClusterTarget failing = null;
+            for (ClusterTarget target : registry.getTargets()) {
+                if (target.getState() != State.GOOD) {
+                    failing = target;
+                    break;
+                }
+            }
+            if (failing == null) {
+                failing = registry.getTargets().get(0);
+            }
             Intent notificationIntent = new Intent(Intent.ACTION_VIEW,
-                    Uri.parse("http://" + host + ":" + port + "/index.html"));
+                    Uri.parse("http://" + failing.getKey() + "/index.html"));
 
-            PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
-                    notificationIntent, 0);
+            PendingIntent contentIntent = PendingIntent.getActivity(
+                    StateMonitorService.this, 0, notificationIntent, 0);
 
-            notification.setLatestEventInfo(context, contentTitle, contentText,
+            notification.setLatestEventInfo(context, contentTitle, summary,
                     contentIntent);
 
             notificationManager.notify(0, notification);
         }
+    };
+
+    /**
+     * Create the ongoing notification shown while we're monitoring in the
+     * background
+     * 
+     * @param state
+     *            the aggregated state of the clusters
+     */
+    private Notification createForegroundNotification(State state) {
+        int icon = state == State.GOOD || state == State.REBALANCING
+                || state == State.UNINITIALISED ? R.drawable.ic_stat_looking_good
+                : R.drawable.ic_stat_looking_bad;
+        Notification notification = new Notification(icon, null,
+                System.currentTimeMillis());
+        notification.flags = Notification.FLAG_ONGOING_EVENT
+                | Notification.FLAG_NO_CLEAR;
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, CouchbaseActivity.class), 0);
+        int clusters = monitor == null ? 0 : monitor.getRegistry().size();
+        notification.setLatestEventInfo(getApplicationContext(),
+                "Monitoring " + clusters
+                        + (clusters == 1 ? " Couchbase cluster"
+                                : " Couchbase clusters"), "The state is "
+                        + state, contentIntent);
+        return notification;
+    }
+
+    /**
+     * Load the default health rules shipped with the core
+     * 
+     * @return the compiled rules
+     */
+    private RuleEngine loadRules() {
+        try {
+            return RuleEngine.compileDefaults();
+        } catch (IOException e) {
+            Log.e("org.couchbase.health", "Failed to load the health rules: "
+                    + e);
+        }
+        try {
+            return RuleEngine.compile(new StringReader(
+                    RuleEngine.FALLBACK_RULES));
+        } catch (IOException e) {
+            throw new IllegalStateException(e.toString());
+        }
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
-        broadcastIntent = new Intent(BROADCAST_ACTION);
 
         // Restore preferences
-        SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
-        host = settings.getString("host", "localhost");
-        port = settings.getInt("port", 8091);
-        pollInterval = settings.getInt("pollinterval", 5 * 60);
+        final SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
+        String host = settings.getString("host", "localhost");
+        int port = settings.getInt("port", 8091);
+        String clusters = settings.getString("clusters", host + ":" + port);
+        int pollInterval = settings.getInt("pollinterval", 5 * 60);
         pollInterval *= 1000;
-        healthReader = new PoolHealthReader(host, port, "default");
+        boolean streaming = settings.getBoolean("streaming", false);
+        background = settings.getBoolean("background", true);
+
+        ClusterRegistry registry = new ClusterRegistry();
+        try {
+            for (ClusterTarget target : ClusterRegistry.parse(clusters)) {
+                registry.add(target);
+            }
+        } catch (NumberFormatException e) {
+            Log.e("org.couchbase.health", "Invalid cluster list: " + clusters);
+        }
+        if (registry.size() == 0) {
+            registry.add(new ClusterTarget(host, port));
+        }
 
-        Log.d("org.couchbase.health", "Using Couchbase Server" + host + ":"
-                + port);
+        monitor = new HealthMonitor(registry, loadRules(), mainThread,
+                monitorListener);
 
-        state = State.UNINITIALISED;
-        pollHandler.post(poller);
+        monitor.setStore(new HealthMonitor.Store() {
+            public String get(String name) {
+                return settings.getString(name, null);
+            }
+
+            public void putAll(Map<String, String> values) {
+                SharedPreferences.Editor editor = settings.edit();
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    editor.putString(entry.getKey(), entry.getValue());
+                }
+                editor.commit();
+            }
+        });
+
+        monitor.setHistory(new File(getFilesDir(), "history.dat"));
+        monitor.setLastKnown(new File(getFilesDir(), "snapshots.dat"));
+        monitor.setEventBus(EventBus.getDefault());
+
+        // The widget shows the state of every cluster, so it is updated
+        // when any of them changes (not just the aggregated state)
+        widgetSubscription = EventBus.getDefault().subscribe(
+                EventBus.StateChanged.class, mainThread,
+                new EventBus.Subscriber<EventBus.StateChanged>() {
+                    public void onEvent(EventBus.StateChanged event) {
+                        HealthWidgetProvider.update(StateMonitorService.this);
+                    }
+                });
+
+        monitor.start(pollInterval, streaming);
+
+        if (background) {
+            startForeground(FOREGROUND_ID,
+                    createForegroundNotification(State.UNINITIALISED));
+            AlarmReceiver.schedule(this, pollInterval);
+        }
     }
 
-    private void reschedule() {
-        pollHandler.removeCallbacks(poller);
-        pollHandler.postDelayed(poller, pollInterval);
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        started = true;
+        if (intent != null && ACTION_POLL.equals(intent.getAction())) {
+            monitor.pollAll(releaseWakeLock);
+        }
+        // Let the system restart us if it kills the process
+        return background ? START_STICKY : START_NOT_STICKY;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        pollHandler.removeCallbacks(poller);
+        if (background) {
+            AlarmReceiver.cancel(this);
+            stopForeground(true);
+        }
+        widgetSubscription.cancel();
+        monitor.shutdown();
+        // The next monitor may watch other clusters
+        EventBus.getDefault().clearRetained();
+        AlarmReceiver.releaseWakeLock();
     }
 
     private Binder binder = new MyBinder();
@@ -230,12 +353,21 @@ public class StateMonitorService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        if (--clients == 0) {
-            pollHandler.removeCallbacks(poller);
+        // Keep monitoring if we're started (and not only bound)
+        if (--clients == 0 && !started) {
+            monitor.stop();
         }
         return super.onUnbind(intent);
     }
 
+    /**
+     * @return the history of all of the clusters (or null if it isn't
+     *         available)
+     */
+    public HistoryStore getHistory() {
+        return monitor.getHistory();
+    }
+
     public class MyBinder extends Binder {
         StateMonitorService getService() {
             return StateMonitorService.this;